@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Target of the calls that {@link SystemStreamTransformer} puts in place of calls to PrintStream's printing methods
+ * in application classes: <code>stream.println(x)</code> becomes
+ * <code>CallSites.println(stream, x, "com.example.TheClass")</code>. Each method records the name of the calling
+ * class in {@link #CALLING_CLASS} while it makes the original call, so that sysout-over-slf4j knows which class is
+ * printing without walking the stack. Since it is the call to the stream that is tagged, not the read of System.out,
+ * output is attributed to the class that prints it even when the stream was captured somewhere else.<br>
+ *
+ * Arguments that may run application code, Objects, CharSequences and format arguments, are turned into Strings
+ * before the call is tagged, so that anything printed or logged from their toString methods is not taken for output
+ * of the calling class.<br>
+ *
+ * This class is loaded by the bootstrap classloader, so that the classes of every context can see it.
+ */
+public final class CallSites {
+
+    /**
+     * The name of the class whose call to a PrintStream the current thread is making, if that class was rewritten by
+     * the agent.
+     */
+    public static final ThreadLocal<String> CALLING_CLASS = new ThreadLocal<String>();
+
+    public static void print(final PrintStream stream, final String string, final String className) {
+        final String previous = tag(className);
+        try {
+            stream.print(string);
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void println(final PrintStream stream, final String string, final String className) {
+        final String previous = tag(className);
+        try {
+            stream.println(string);
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void println(final PrintStream stream, final String className) {
+        final String previous = tag(className);
+        try {
+            stream.println();
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void write(final PrintStream stream, final int integer, final String className) {
+        final String previous = tag(className);
+        try {
+            stream.write(integer);
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void write(final PrintStream stream, final byte[] buf, final int off, final int len,
+            final String className) {
+        final String previous = tag(className);
+        try {
+            stream.write(buf, off, len);
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void write(final PrintStream stream, final byte[] bytes, final String className)
+            throws IOException {
+        final String previous = tag(className);
+        try {
+            stream.write(bytes);
+        } finally {
+            untag(previous);
+        }
+    }
+
+    public static void print(final PrintStream stream, final boolean bool, final String className) {
+        print(stream, String.valueOf(bool), className);
+    }
+
+    public static void print(final PrintStream stream, final char character, final String className) {
+        print(stream, String.valueOf(character), className);
+    }
+
+    public static void print(final PrintStream stream, final int integer, final String className) {
+        print(stream, String.valueOf(integer), className);
+    }
+
+    public static void print(final PrintStream stream, final long lon, final String className) {
+        print(stream, String.valueOf(lon), className);
+    }
+
+    public static void print(final PrintStream stream, final float floa, final String className) {
+        print(stream, String.valueOf(floa), className);
+    }
+
+    public static void print(final PrintStream stream, final double doubl, final String className) {
+        print(stream, String.valueOf(doubl), className);
+    }
+
+    public static void print(final PrintStream stream, final char[] charArray, final String className) {
+        print(stream, String.valueOf(charArray), className);
+    }
+
+    public static void print(final PrintStream stream, final Object object, final String className) {
+        print(stream, String.valueOf(object), className);
+    }
+
+    public static void println(final PrintStream stream, final boolean bool, final String className) {
+        println(stream, String.valueOf(bool), className);
+    }
+
+    public static void println(final PrintStream stream, final char character, final String className) {
+        println(stream, String.valueOf(character), className);
+    }
+
+    public static void println(final PrintStream stream, final int integer, final String className) {
+        println(stream, String.valueOf(integer), className);
+    }
+
+    public static void println(final PrintStream stream, final long lon, final String className) {
+        println(stream, String.valueOf(lon), className);
+    }
+
+    public static void println(final PrintStream stream, final float floa, final String className) {
+        println(stream, String.valueOf(floa), className);
+    }
+
+    public static void println(final PrintStream stream, final double doubl, final String className) {
+        println(stream, String.valueOf(doubl), className);
+    }
+
+    public static void println(final PrintStream stream, final char[] charArray, final String className) {
+        println(stream, String.valueOf(charArray), className);
+    }
+
+    public static void println(final PrintStream stream, final Object object, final String className) {
+        println(stream, String.valueOf(object), className);
+    }
+
+    public static PrintStream append(final PrintStream stream, final char character, final String className) {
+        print(stream, String.valueOf(character), className);
+        return stream;
+    }
+
+    public static PrintStream append(final PrintStream stream, final CharSequence csq, final String className) {
+        print(stream, String.valueOf(csq), className);
+        return stream;
+    }
+
+    public static PrintStream append(final PrintStream stream, final CharSequence csq, final int start,
+            final int end, final String className) {
+        final CharSequence sequence = csq == null ? "null" : csq;
+        print(stream, sequence.subSequence(start, end).toString(), className);
+        return stream;
+    }
+
+    public static PrintStream format(final PrintStream stream, final String format, final Object[] args,
+            final String className) {
+        print(stream, String.format(format, args), className);
+        return stream;
+    }
+
+    public static PrintStream format(final PrintStream stream, final Locale locale, final String format,
+            final Object[] args, final String className) {
+        print(stream, String.format(locale, format, args), className);
+        return stream;
+    }
+
+    public static PrintStream printf(final PrintStream stream, final String format, final Object[] args,
+            final String className) {
+        return format(stream, format, args, className);
+    }
+
+    public static PrintStream printf(final PrintStream stream, final Locale locale, final String format,
+            final Object[] args, final String className) {
+        return format(stream, locale, format, args, className);
+    }
+
+    /**
+     * @return the tag the call being tagged was made under, to be restored when it returns
+     */
+    private static String tag(final String className) {
+        final String previous = CALLING_CLASS.get();
+        CALLING_CLASS.set(className);
+        return previous;
+    }
+
+    private static void untag(final String previous) {
+        if (previous == null) {
+            CALLING_CLASS.remove();
+        } else {
+            CALLING_CLASS.set(previous);
+        }
+    }
+
+    private CallSites() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/**
+ * Wraps the body of printStackTrace(PrintStream) in the given class in
+ * <code>StackTracePrinting.enter(this); try { ... } finally { StackTracePrinting.exit(this); }</code>.<br>
+ *
+ * Public only because, once the agent jar is on the bootstrap classpath, this class is loaded by the bootstrap
+ * classloader while the {@link SysOutOverSLF4JAgent} that creates it has already been loaded by the system one.
+ */
+public final class PrintStackTraceTransformer implements ClassFileTransformer {
+
+    private static final String METHOD_NAME = "printStackTrace";
+    private static final String METHOD_DESCRIPTOR = "(Ljava/io/PrintStream;)V";
+    // Named rather than referenced, so that the agent does not load StackTracePrinting outside the bootstrap classloader
+    private static final String HOOK = "uk/org/lidalia/sysoutslf4j/agent/StackTracePrinting";
+    private static final String HOOK_DESCRIPTOR = "(Ljava/lang/Throwable;)V";
+
+    private final String className;
+
+    public PrintStackTraceTransformer(final String className) {
+        super();
+        this.className = className;
+    }
+
+    public byte[] transform(final ClassLoader loader, final String name, final Class<?> classBeingRedefined,
+            final ProtectionDomain protectionDomain, final byte[] classfileBuffer) {
+        if (!className.equals(name)) {
+            return null;
+        }
+        final ClassNode classNode = new ClassNode();
+        new ClassReader(classfileBuffer).accept(classNode, 0);
+        boolean transformed = false;
+        for (MethodNode method : classNode.methods) {
+            if (METHOD_NAME.equals(method.name) && METHOD_DESCRIPTOR.equals(method.desc)
+                    && (method.access & Opcodes.ACC_ABSTRACT) == 0) {
+                wrap(classNode, method);
+                transformed = true;
+            }
+        }
+        if (!transformed) {
+            return null;
+        }
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private static void wrap(final ClassNode classNode, final MethodNode method) {
+        final InsnList instructions = method.instructions;
+        for (AbstractInsnNode instruction = instructions.getFirst(); instruction != null;
+                instruction = instruction.getNext()) {
+            if (instruction.getOpcode() == Opcodes.RETURN) {
+                instructions.insertBefore(instruction, callHook("exit"));
+            }
+        }
+
+        final LabelNode start = new LabelNode();
+        final InsnList prologue = callHook("enter");
+        prologue.add(start);
+        instructions.insert(prologue);
+
+        final LabelNode end = new LabelNode();
+        instructions.add(end);
+        if ((classNode.version & 0xFFFF) >= Opcodes.V1_6) {
+            instructions.add(new FrameNode(Opcodes.F_FULL,
+                    2, new Object[] {classNode.name, "java/io/PrintStream"},
+                    1, new Object[] {"java/lang/Throwable"}));
+        }
+        instructions.add(callHook("exit"));
+        instructions.add(new InsnNode(Opcodes.ATHROW));
+        // Added last, so that any handlers in the original body still take precedence
+        method.tryCatchBlocks.add(new TryCatchBlockNode(start, end, end, null));
+    }
+
+    private static InsnList callHook(final String hookMethod) {
+        final InsnList call = new InsnList();
+        call.add(new VarInsnNode(Opcodes.ALOAD, 0));
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, HOOK, hookMethod, HOOK_DESCRIPTOR, false));
+        return call;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+/**
+ * Records, per thread, which Throwable is having its stack trace printed to a PrintStream. Calls to
+ * {@link #enter(Throwable)} and {@link #exit(Throwable)} are woven into Throwable.printStackTrace(PrintStream) by the
+ * {@link SysOutOverSLF4JAgent}.<br>
+ *
+ * This class is loaded by the bootstrap classloader, so that Throwable can see it; sysout-over-slf4j finds it there
+ * by name rather than linking to it, so that it works as before when the agent is absent.
+ */
+public final class StackTracePrinting {
+
+    /**
+     * The outermost Throwable whose stack trace the current thread is printing, if any.
+     */
+    public static final ThreadLocal<Throwable> PRINTING = new ThreadLocal<Throwable>();
+
+    public static void enter(final Throwable throwable) {
+        if (PRINTING.get() == null) {
+            PRINTING.set(throwable);
+        }
+    }
+
+    public static void exit(final Throwable throwable) {
+        if (PRINTING.get() == throwable) {
+            PRINTING.remove();
+        }
+    }
+
+    private StackTracePrinting() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
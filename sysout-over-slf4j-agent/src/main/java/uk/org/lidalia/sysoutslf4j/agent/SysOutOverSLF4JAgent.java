@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+/**
+ * Java agent which lets sysout-over-slf4j log the actual Throwable when its stack trace is printed to a redirected
+ * System.out or System.err, as a single event, rather than logging the printed text line by line. Install it by
+ * adding <code>-javaagent:/path/to/sysout-over-slf4j-agent.jar</code> to the JVM arguments; without it stack traces
+ * are handled from their text as before.<br>
+ *
+ * The agent adds its own jar to the bootstrap classpath and instruments Throwable.printStackTrace(PrintStream) to
+ * record, in {@link StackTracePrinting}, which Throwable the current thread is printing. It also rewrites calls to
+ * PrintStream's printing methods in application classes loaded after it starts, so that their output is tagged with
+ * the name of the class printing it and sysout-over-slf4j need not walk the stack to find out; see {@link CallSites}.
+ */
+public final class SysOutOverSLF4JAgent {
+
+    private static final String THROWABLE = "java/lang/Throwable";
+    private static final String HOOK = "uk.org.lidalia.sysoutslf4j.agent.StackTracePrinting";
+    private static final String CALL_SITES = "uk.org.lidalia.sysoutslf4j.agent.CallSites";
+
+    public static void premain(final String agentArgs, final Instrumentation instrumentation)
+            throws IOException, UnmodifiableClassException {
+        instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(agentJar()));
+        letJavaBaseReadHook(instrumentation);
+        instrumentation.addTransformer(new PrintStackTraceTransformer(THROWABLE), true);
+        instrumentation.retransformClasses(Throwable.class);
+        loadCallSites();
+        instrumentation.addTransformer(new SystemStreamTransformer(namedModulePackages()));
+    }
+
+    /**
+     * Makes sure CallSites is loaded before any class is rewritten to use it, so that loading it can never recurse
+     * into the transformer.
+     */
+    private static void loadCallSites() {
+        try {
+            Class.forName(CALL_SITES, true, null);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Agent jar was not added to the bootstrap classpath", e);
+        }
+    }
+
+    /**
+     * Classes in named modules do not read the bootstrap classpath, so must not be rewritten to call CallSites. This
+     * finds the packages of the named modules in the boot layer, reflectively so that the agent still runs on
+     * Java 6, where there are none.
+     */
+    private static Set<String> namedModulePackages() {
+        final Set<String> packages = new HashSet<String>();
+        try {
+            final Class<?> moduleLayer = Class.forName("java.lang.ModuleLayer");
+            final Object bootLayer = moduleLayer.getMethod("boot").invoke(null);
+            for (Object module : (Set<?>) moduleLayer.getMethod("modules").invoke(bootLayer)) {
+                for (Object packageName : (Set<?>) module.getClass().getMethod("getPackages").invoke(module)) {
+                    packages.add(((String) packageName).replace('.', '/'));
+                }
+            }
+        } catch (ClassNotFoundException noModules) {
+            return packages;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Unable to find the packages of named modules", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to find the packages of named modules", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to find the packages of named modules", e.getCause());
+        }
+        return packages;
+    }
+
+    private static File agentJar() throws IOException {
+        try {
+            return new File(SysOutOverSLF4JAgent.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Unable to locate the sysout-over-slf4j agent jar: " + e.getMessage());
+        }
+    }
+
+    /**
+     * From Java 9 the bootstrap classpath is the unnamed module of the bootstrap classloader, which java.base, and so
+     * Throwable, does not read unless told to. This is done reflectively so that the agent still runs on Java 6.
+     */
+    private static void letJavaBaseReadHook(final Instrumentation instrumentation) {
+        final Method getModule;
+        try {
+            getModule = Class.class.getMethod("getModule");
+        } catch (NoSuchMethodException e) {
+            return;
+        }
+        try {
+            final Object hookModule = getModule.invoke(Class.forName(HOOK, true, null));
+            final Object javaBase = getModule.invoke(Throwable.class);
+            for (Method method : Instrumentation.class.getMethods()) {
+                if ("redefineModule".equals(method.getName())) {
+                    method.invoke(instrumentation, javaBase, Collections.singleton(hookModule),
+                            Collections.emptyMap(), Collections.emptyMap(), Collections.emptySet(),
+                            Collections.emptyMap());
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Agent jar was not added to the bootstrap classpath", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to let java.base read " + HOOK, e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Unable to let java.base read " + HOOK, e.getCause());
+        }
+    }
+
+    private SysOutOverSLF4JAgent() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.PrintStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.ProtectionDomain;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Rewrites every call to one of PrintStream's printing methods in an application class into a call to
+ * {@link CallSites}, so that output printed by that class is tagged with its name:
+ * <code>stream.println(x)</code> becomes <code>CallSites.println(stream, x, "com.example.TheClass")</code>. Whatever
+ * stream is being printed to, and wherever it was read from System.out or System.err, it is the class making the call
+ * that is tagged. Calls to methods CallSites has no counterpart for, and calls through a subclass of PrintStream, are
+ * left as they are.<br>
+ *
+ * Classes of the JDK, of sysout-over-slf4j itself and of named modules, which cannot read the bootstrap classpath,
+ * are left alone, as are classes that never mention PrintStream.<br>
+ *
+ * Public only because, once the agent jar is on the bootstrap classpath, this class is loaded by the bootstrap
+ * classloader while the {@link SysOutOverSLF4JAgent} that creates it has already been loaded by the system one.
+ */
+public final class SystemStreamTransformer implements ClassFileTransformer {
+
+    private static final String PRINT_STREAM = Type.getInternalName(PrintStream.class);
+    private static final String CALL_SITES = Type.getInternalName(CallSites.class);
+    private static final String CLASS_NAME_DESCRIPTOR = Type.getDescriptor(String.class);
+    private static final byte[] PRINT_STREAM_BYTES = PRINT_STREAM.getBytes();
+    private static final Set<String> CALL_SITE_METHODS = callSiteMethods();
+    private static final String[] EXCLUDED_PREFIXES = {
+        "java/", "javax/", "jdk/", "sun/", "com/sun/", "uk/org/lidalia/sysoutslf4j/"
+    };
+
+    private final Set<String> namedModulePackages;
+
+    /**
+     * @param namedModulePackages The packages, in internal form, of the named modules whose classes must be left
+     *                            alone
+     */
+    public SystemStreamTransformer(final Set<String> namedModulePackages) {
+        super();
+        this.namedModulePackages = namedModulePackages;
+    }
+
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+            final ProtectionDomain protectionDomain, final byte[] classfileBuffer) {
+        if (loader == null || className == null || isExcluded(className) || !mentionsPrintStream(classfileBuffer)) {
+            return null;
+        }
+        final ClassReader reader = new ClassReader(classfileBuffer);
+        final ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        final CallSiteRewriter rewriter = new CallSiteRewriter(writer, className.replace('/', '.'));
+        reader.accept(rewriter, 0);
+        return rewriter.rewritten ? writer.toByteArray() : null;
+    }
+
+    /**
+     * @return the name and descriptor of each public static method of CallSites that takes the stream first and the
+     *         class name last, which are the calls that can be rewritten
+     */
+    private static Set<String> callSiteMethods() {
+        final Set<String> methods = new HashSet<String>();
+        for (Method method : CallSites.class.getMethods()) {
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            if (Modifier.isStatic(method.getModifiers()) && parameterTypes.length >= 2
+                    && parameterTypes[0] == PrintStream.class
+                    && parameterTypes[parameterTypes.length - 1] == String.class) {
+                methods.add(method.getName() + Type.getMethodDescriptor(method));
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * @return the descriptor of the CallSites counterpart of a PrintStream method with the given descriptor
+     */
+    private static String callSiteDescriptor(final String methodDescriptor) {
+        final int endOfParameters = methodDescriptor.indexOf(')');
+        return "(L" + PRINT_STREAM + ";" + methodDescriptor.substring(1, endOfParameters) + CLASS_NAME_DESCRIPTOR
+                + methodDescriptor.substring(endOfParameters);
+    }
+
+    private boolean isExcluded(final String className) {
+        for (String prefix : EXCLUDED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        final int endOfPackage = className.lastIndexOf('/');
+        return endOfPackage != -1 && namedModulePackages.contains(className.substring(0, endOfPackage));
+    }
+
+    /**
+     * A cheap check, before parsing the class, that its constant pool could refer to PrintStream at all.
+     */
+    private static boolean mentionsPrintStream(final byte[] classfileBuffer) {
+        final int last = classfileBuffer.length - PRINT_STREAM_BYTES.length;
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < PRINT_STREAM_BYTES.length; j++) {
+                if (classfileBuffer[i + j] != PRINT_STREAM_BYTES[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final class CallSiteRewriter extends ClassVisitor {
+
+        private final String className;
+        private boolean rewritten = false;
+
+        CallSiteRewriter(final ClassVisitor classVisitor, final String className) {
+            super(Opcodes.ASM9, classVisitor);
+            this.className = className;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name, final String descriptor,
+                final String signature, final String[] exceptions) {
+            return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                @Override
+                public void visitMethodInsn(final int opcode, final String owner, final String methodName,
+                        final String methodDescriptor, final boolean isInterface) {
+                    if (opcode == Opcodes.INVOKEVIRTUAL && PRINT_STREAM.equals(owner)) {
+                        final String callSiteDescriptor = callSiteDescriptor(methodDescriptor);
+                        if (CALL_SITE_METHODS.contains(methodName + callSiteDescriptor)) {
+                            super.visitLdcInsn(className);
+                            super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SITES, methodName, callSiteDescriptor,
+                                    false);
+                            rewritten = true;
+                            return;
+                        }
+                    }
+                    super.visitMethodInsn(opcode, owner, methodName, methodDescriptor, isInterface);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CallSitesTests {
+
+    private final List<String> callingClasses = new ArrayList<String>();
+
+    @After
+    public void removeTag() {
+        CallSites.CALLING_CLASS.remove();
+    }
+
+    @Test
+    public void callIsTaggedWithCallingClass() {
+        CallSites.println(recordingStream(), "message", "org.something.A");
+
+        assertEquals(asList("org.something.A:message"), callingClasses);
+        assertNull(CallSites.CALLING_CLASS.get());
+    }
+
+    @Test
+    public void nestedCallRestoresOuterTag() {
+        final PrintStream inner = recordingStream();
+        final PrintStream outer = new PrintStream(new ByteArrayOutputStream()) {
+            @Override
+            public void println(final String string) {
+                CallSites.println(inner, "inner", "org.something.Inner");
+                callingClasses.add(CallSites.CALLING_CLASS.get() + ":" + string);
+            }
+        };
+
+        CallSites.println(outer, "outer", "org.something.Outer");
+
+        assertEquals(asList("org.something.Inner:inner", "org.something.Outer:outer"), callingClasses);
+    }
+
+    @Test
+    public void objectIsTurnedIntoAStringBeforeCallIsTagged() {
+        CallSites.println(recordingStream(), new Object() {
+            @Override
+            public String toString() {
+                callingClasses.add("toString:" + CallSites.CALLING_CLASS.get());
+                return "object";
+            }
+        }, "org.something.A");
+
+        assertEquals(asList("toString:null", "org.something.A:object"), callingClasses);
+    }
+
+    @Test
+    public void printsWhatTheStreamWouldHavePrinted() throws Exception {
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        printEverything(new PrintStream(expected, true, "UTF-8"));
+
+        final PrintStream stream = new PrintStream(actual, true, "UTF-8");
+        final String className = "org.something.A";
+        CallSites.print(stream, true, className);
+        CallSites.print(stream, 'c', className);
+        CallSites.print(stream, 1, className);
+        CallSites.print(stream, 2L, className);
+        CallSites.print(stream, 3.5F, className);
+        CallSites.print(stream, 4.5D, className);
+        CallSites.print(stream, new char[] {'a', 'b'}, className);
+        CallSites.print(stream, (Object) null, className);
+        CallSites.println(stream, className);
+        CallSites.println(stream, (String) null, className);
+        CallSites.println(stream, 5, className);
+        CallSites.append(stream, 'd', className);
+        CallSites.append(stream, (CharSequence) null, className);
+        CallSites.append(stream, "sequence", 2, 5, className);
+        CallSites.append(stream, null, 1, 3, className);
+        CallSites.printf(stream, "%s-%d", new Object[] {"x", 6}, className);
+        CallSites.format(stream, Locale.FRANCE, "%.1f", new Object[] {7.5D}, className);
+        CallSites.write(stream, 'e', className);
+        CallSites.write(stream, new byte[] {'f', 'g', 'h'}, 1, 2, className);
+        CallSites.write(stream, new byte[] {'i'}, className);
+
+        assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+    }
+
+    private static void printEverything(final PrintStream stream) throws Exception {
+        stream.print(true);
+        stream.print('c');
+        stream.print(1);
+        stream.print(2L);
+        stream.print(3.5F);
+        stream.print(4.5D);
+        stream.print(new char[] {'a', 'b'});
+        stream.print((Object) null);
+        stream.println();
+        stream.println((String) null);
+        stream.println(5);
+        stream.append('d');
+        stream.append((CharSequence) null);
+        stream.append("sequence", 2, 5);
+        stream.append(null, 1, 3);
+        stream.printf("%s-%d", "x", 6);
+        stream.format(Locale.FRANCE, "%.1f", 7.5D);
+        stream.write('e');
+        stream.write(new byte[] {'f', 'g', 'h'}, 1, 2);
+        stream.write(new byte[] {'i'});
+    }
+
+    @Test
+    public void chainedCallsReturnTheStream() {
+        final PrintStream stream = new PrintStream(new ByteArrayOutputStream());
+
+        assertSame(stream, CallSites.append(stream, "text", "org.something.A"));
+        assertSame(stream, CallSites.printf(stream, "%s", new Object[] {"text"}, "org.something.A"));
+    }
+
+    private PrintStream recordingStream() {
+        return new PrintStream(new ByteArrayOutputStream()) {
+            @Override
+            public void println(final String string) {
+                callingClasses.add(CallSites.CALLING_CLASS.get() + ":" + string);
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class PrintStackTraceTransformerTests {
+
+    private static final String FIXTURE = RecordingThrowable.class.getName();
+
+    @Test
+    public void recordsThrowableWhilePrintStackTraceRuns() throws Exception {
+        Throwable throwable = instantiateTransformedFixture();
+
+        throwable.printStackTrace(new PrintStream(new ByteArrayOutputStream()));
+
+        assertSame(throwable, throwable.getClass().getField("printing").get(throwable));
+        assertNull(StackTracePrinting.PRINTING.get());
+    }
+
+    @Test
+    public void stopsRecordingWhenPrintStackTraceThrows() throws Exception {
+        Throwable throwable = instantiateTransformedFixture();
+
+        try {
+            throwable.printStackTrace((PrintStream) null);
+            fail("Expected exception");
+        } catch (NullPointerException expected) {
+            assertNull(StackTracePrinting.PRINTING.get());
+        }
+    }
+
+    @Test
+    public void recordsOutermostThrowableOnly() throws Exception {
+        Throwable outer = instantiateTransformedFixture();
+        StackTracePrinting.enter(outer);
+        try {
+            Throwable inner = instantiateTransformedFixture();
+
+            inner.printStackTrace(new PrintStream(new ByteArrayOutputStream()));
+
+            assertSame(outer, inner.getClass().getField("printing").get(inner));
+            assertSame(outer, StackTracePrinting.PRINTING.get());
+        } finally {
+            StackTracePrinting.exit(outer);
+        }
+    }
+
+    @Test
+    public void leavesOtherClassesAlone() {
+        assertNull(new PrintStackTraceTransformer(FIXTURE.replace('.', '/'))
+                .transform(null, "java/lang/Object", null, null, new byte[0]));
+    }
+
+    private Throwable instantiateTransformedFixture() throws Exception {
+        final byte[] transformed = new PrintStackTraceTransformer(FIXTURE.replace('.', '/'))
+                .transform(null, FIXTURE.replace('.', '/'), null, null, fixtureBytes());
+        assertNotNull(transformed);
+        ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+                if (FIXTURE.equals(name)) {
+                    return defineClass(name, transformed, 0, transformed.length);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+        return (Throwable) loader.loadClass(FIXTURE).newInstance();
+    }
+
+    private static byte[] fixtureBytes() throws IOException {
+        InputStream input = PrintStackTraceTransformerTests.class.getResourceAsStream("/" + FIXTURE.replace('.', '/') + ".class");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    public static class RecordingThrowable extends Throwable {
+
+        public Throwable printing;
+
+        @Override
+        public void printStackTrace(final PrintStream s) {
+            printing = StackTracePrinting.PRINTING.get();
+            s.println(this);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SystemStreamTransformerTests {
+
+    private static final String FIXTURE = PrintingClass.class.getName();
+    private static final String FIXTURE_INTERNAL_NAME = FIXTURE.replace('.', '/');
+    // The fixture is in an excluded package, so it is transformed as if it were this class
+    private static final String CLASS_NAME = "org.something.SomeClass";
+
+    private final PrintStream originalOut = System.out;
+    private final PrintStream originalErr = System.err;
+    private final List<String> callingClasses = new ArrayList<String>();
+
+    @After
+    public void restoreSystemStreams() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+    }
+
+    @Test
+    public void rewrittenClassPrintsToSystemStreamsTaggedWithItsName() throws Exception {
+        System.setOut(recordingCallingClass());
+        System.setErr(recordingCallingClass());
+        Runnable printing = instantiate(transform("org/something/SomeClass", Collections.<String>emptySet()));
+
+        printing.run();
+
+        assertEquals(asList(CLASS_NAME, CLASS_NAME), callingClasses);
+        assertNull(CallSites.CALLING_CLASS.get());
+    }
+
+    @Test
+    public void streamCapturedByAnotherClassIsTaggedWithTheClassPrintingToIt() throws Exception {
+        System.setOut(recordingCallingClass());
+        StreamHolder.capture();
+        Runnable printing = instantiate(CapturedStreamPrintingClass.class, transform(CapturedStreamPrintingClass.class,
+                "org/something/logging/ConsoleAppender", Collections.<String>emptySet()));
+
+        printing.run();
+
+        assertNull(transform(StreamHolder.class, "org/something/StreamHolder", Collections.<String>emptySet()));
+        assertEquals(asList("org.something.logging.ConsoleAppender"), callingClasses);
+    }
+
+    @Test
+    public void leavesExcludedClassesAlone() throws Exception {
+        assertNull(transform("java/lang/SomeClass", Collections.<String>emptySet()));
+        assertNull(transform(FIXTURE_INTERNAL_NAME, Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void leavesClassesInNamedModulesAlone() throws Exception {
+        assertNull(transform("org/something/SomeClass", Collections.singleton("org/something")));
+    }
+
+    @Test
+    public void leavesClassesThatDoNotUsePrintStreamAlone() throws Exception {
+        assertNull(new SystemStreamTransformer(Collections.<String>emptySet()).transform(
+                getClass().getClassLoader(), "org/something/SomeClass", null, null, "no print stream here".getBytes()));
+    }
+
+    private byte[] transform(final String className, final Set<String> namedModulePackages)
+            throws IOException {
+        return transform(PrintingClass.class, className, namedModulePackages);
+    }
+
+    private byte[] transform(final Class<?> fixture, final String className, final Set<String> namedModulePackages)
+            throws IOException {
+        return new SystemStreamTransformer(namedModulePackages)
+                .transform(getClass().getClassLoader(), className, null, null, fixtureBytes(fixture));
+    }
+
+    private PrintStream recordingCallingClass() {
+        return new PrintStream(new ByteArrayOutputStream()) {
+            @Override
+            public void println(final String string) {
+                callingClasses.add(CallSites.CALLING_CLASS.get());
+            }
+        };
+    }
+
+    private Runnable instantiate(final byte[] transformed) throws Exception {
+        return instantiate(PrintingClass.class, transformed);
+    }
+
+    private Runnable instantiate(final Class<?> fixture, final byte[] transformed) throws Exception {
+        assertNotNull(transformed);
+        ClassLoader loader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+                if (fixture.getName().equals(name)) {
+                    return defineClass(name, transformed, 0, transformed.length);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+        return (Runnable) loader.loadClass(fixture.getName()).newInstance();
+    }
+
+    private static byte[] fixtureBytes(final Class<?> fixture) throws IOException {
+        InputStream input = SystemStreamTransformerTests.class.getResourceAsStream(
+                "/" + fixture.getName().replace('.', '/') + ".class");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    public static class PrintingClass implements Runnable {
+        @Override
+        public void run() {
+            System.out.println("out");
+            System.err.println("err");
+        }
+    }
+
+    public static class StreamHolder {
+        public static PrintStream stream; // NOPMD public, as the rewritten fixture is in another classloader
+
+        public static void capture() {
+            stream = System.out;
+        }
+    }
+
+    public static class CapturedStreamPrintingClass implements Runnable {
+        @Override
+        public void run() {
+            StreamHolder.stream.println("captured");
+        }
+    }
+}
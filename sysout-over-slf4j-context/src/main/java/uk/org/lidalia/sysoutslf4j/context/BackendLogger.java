@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.PrintStream;
+
+import org.slf4j.Logger;
+import org.slf4j.Marker;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
+
+import uk.org.lidalia.slf4jext.Level;
+
+/**
+ * The {@link Logger} an {@link uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy} is
+ * passed with each line of a stack trace. Events logged through it go to the {@link LoggingBackend} rather than
+ * straight to SLF4J, so that a trace a strategy has held back and logs later, such as when it is told that what
+ * follows is not part of the trace, is subject to the watchdog and journalled if SLF4J fails to accept it. If it can
+ * be neither delivered nor journalled it is printed to the console the trace was printed to.
+ */
+final class BackendLogger implements Logger {
+
+    private final LoggingBackend loggingBackend;
+    private final String name;
+    private final PrintStream console;
+
+    BackendLogger(final LoggingBackend loggingBackend, final String name, final PrintStream console) {
+        super();
+        this.loggingBackend = loggingBackend;
+        this.name = name;
+        this.console = console;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isTraceEnabled() {
+        return delegate().isTraceEnabled();
+    }
+
+    public void trace(final String msg) {
+        log(Level.TRACE, null, msg, null);
+    }
+
+    public void trace(final String format, final Object arg) {
+        log(Level.TRACE, null, format, new Object[] {arg});
+    }
+
+    public void trace(final String format, final Object arg1, final Object arg2) {
+        log(Level.TRACE, null, format, new Object[] {arg1, arg2});
+    }
+
+    public void trace(final String format, final Object... arguments) {
+        log(Level.TRACE, null, format, arguments);
+    }
+
+    public void trace(final String msg, final Throwable t) {
+        log(Level.TRACE, null, msg, new Object[] {t});
+    }
+
+    public boolean isTraceEnabled(final Marker marker) {
+        return delegate().isTraceEnabled(marker);
+    }
+
+    public void trace(final Marker marker, final String msg) {
+        log(Level.TRACE, marker, msg, null);
+    }
+
+    public void trace(final Marker marker, final String format, final Object arg) {
+        log(Level.TRACE, marker, format, new Object[] {arg});
+    }
+
+    public void trace(final Marker marker, final String format, final Object arg1, final Object arg2) {
+        log(Level.TRACE, marker, format, new Object[] {arg1, arg2});
+    }
+
+    public void trace(final Marker marker, final String format, final Object... arguments) {
+        log(Level.TRACE, marker, format, arguments);
+    }
+
+    public void trace(final Marker marker, final String msg, final Throwable t) {
+        log(Level.TRACE, marker, msg, new Object[] {t});
+    }
+
+    public boolean isDebugEnabled() {
+        return delegate().isDebugEnabled();
+    }
+
+    public void debug(final String msg) {
+        log(Level.DEBUG, null, msg, null);
+    }
+
+    public void debug(final String format, final Object arg) {
+        log(Level.DEBUG, null, format, new Object[] {arg});
+    }
+
+    public void debug(final String format, final Object arg1, final Object arg2) {
+        log(Level.DEBUG, null, format, new Object[] {arg1, arg2});
+    }
+
+    public void debug(final String format, final Object... arguments) {
+        log(Level.DEBUG, null, format, arguments);
+    }
+
+    public void debug(final String msg, final Throwable t) {
+        log(Level.DEBUG, null, msg, new Object[] {t});
+    }
+
+    public boolean isDebugEnabled(final Marker marker) {
+        return delegate().isDebugEnabled(marker);
+    }
+
+    public void debug(final Marker marker, final String msg) {
+        log(Level.DEBUG, marker, msg, null);
+    }
+
+    public void debug(final Marker marker, final String format, final Object arg) {
+        log(Level.DEBUG, marker, format, new Object[] {arg});
+    }
+
+    public void debug(final Marker marker, final String format, final Object arg1, final Object arg2) {
+        log(Level.DEBUG, marker, format, new Object[] {arg1, arg2});
+    }
+
+    public void debug(final Marker marker, final String format, final Object... arguments) {
+        log(Level.DEBUG, marker, format, arguments);
+    }
+
+    public void debug(final Marker marker, final String msg, final Throwable t) {
+        log(Level.DEBUG, marker, msg, new Object[] {t});
+    }
+
+    public boolean isInfoEnabled() {
+        return delegate().isInfoEnabled();
+    }
+
+    public void info(final String msg) {
+        log(Level.INFO, null, msg, null);
+    }
+
+    public void info(final String format, final Object arg) {
+        log(Level.INFO, null, format, new Object[] {arg});
+    }
+
+    public void info(final String format, final Object arg1, final Object arg2) {
+        log(Level.INFO, null, format, new Object[] {arg1, arg2});
+    }
+
+    public void info(final String format, final Object... arguments) {
+        log(Level.INFO, null, format, arguments);
+    }
+
+    public void info(final String msg, final Throwable t) {
+        log(Level.INFO, null, msg, new Object[] {t});
+    }
+
+    public boolean isInfoEnabled(final Marker marker) {
+        return delegate().isInfoEnabled(marker);
+    }
+
+    public void info(final Marker marker, final String msg) {
+        log(Level.INFO, marker, msg, null);
+    }
+
+    public void info(final Marker marker, final String format, final Object arg) {
+        log(Level.INFO, marker, format, new Object[] {arg});
+    }
+
+    public void info(final Marker marker, final String format, final Object arg1, final Object arg2) {
+        log(Level.INFO, marker, format, new Object[] {arg1, arg2});
+    }
+
+    public void info(final Marker marker, final String format, final Object... arguments) {
+        log(Level.INFO, marker, format, arguments);
+    }
+
+    public void info(final Marker marker, final String msg, final Throwable t) {
+        log(Level.INFO, marker, msg, new Object[] {t});
+    }
+
+    public boolean isWarnEnabled() {
+        return delegate().isWarnEnabled();
+    }
+
+    public void warn(final String msg) {
+        log(Level.WARN, null, msg, null);
+    }
+
+    public void warn(final String format, final Object arg) {
+        log(Level.WARN, null, format, new Object[] {arg});
+    }
+
+    public void warn(final String format, final Object arg1, final Object arg2) {
+        log(Level.WARN, null, format, new Object[] {arg1, arg2});
+    }
+
+    public void warn(final String format, final Object... arguments) {
+        log(Level.WARN, null, format, arguments);
+    }
+
+    public void warn(final String msg, final Throwable t) {
+        log(Level.WARN, null, msg, new Object[] {t});
+    }
+
+    public boolean isWarnEnabled(final Marker marker) {
+        return delegate().isWarnEnabled(marker);
+    }
+
+    public void warn(final Marker marker, final String msg) {
+        log(Level.WARN, marker, msg, null);
+    }
+
+    public void warn(final Marker marker, final String format, final Object arg) {
+        log(Level.WARN, marker, format, new Object[] {arg});
+    }
+
+    public void warn(final Marker marker, final String format, final Object arg1, final Object arg2) {
+        log(Level.WARN, marker, format, new Object[] {arg1, arg2});
+    }
+
+    public void warn(final Marker marker, final String format, final Object... arguments) {
+        log(Level.WARN, marker, format, arguments);
+    }
+
+    public void warn(final Marker marker, final String msg, final Throwable t) {
+        log(Level.WARN, marker, msg, new Object[] {t});
+    }
+
+    public boolean isErrorEnabled() {
+        return delegate().isErrorEnabled();
+    }
+
+    public void error(final String msg) {
+        log(Level.ERROR, null, msg, null);
+    }
+
+    public void error(final String format, final Object arg) {
+        log(Level.ERROR, null, format, new Object[] {arg});
+    }
+
+    public void error(final String format, final Object arg1, final Object arg2) {
+        log(Level.ERROR, null, format, new Object[] {arg1, arg2});
+    }
+
+    public void error(final String format, final Object... arguments) {
+        log(Level.ERROR, null, format, arguments);
+    }
+
+    public void error(final String msg, final Throwable t) {
+        log(Level.ERROR, null, msg, new Object[] {t});
+    }
+
+    public boolean isErrorEnabled(final Marker marker) {
+        return delegate().isErrorEnabled(marker);
+    }
+
+    public void error(final Marker marker, final String msg) {
+        log(Level.ERROR, marker, msg, null);
+    }
+
+    public void error(final Marker marker, final String format, final Object arg) {
+        log(Level.ERROR, marker, format, new Object[] {arg});
+    }
+
+    public void error(final Marker marker, final String format, final Object arg1, final Object arg2) {
+        log(Level.ERROR, marker, format, new Object[] {arg1, arg2});
+    }
+
+    public void error(final Marker marker, final String format, final Object... arguments) {
+        log(Level.ERROR, marker, format, arguments);
+    }
+
+    public void error(final Marker marker, final String msg, final Throwable t) {
+        log(Level.ERROR, marker, msg, new Object[] {t});
+    }
+
+    private void log(final Level level, final Marker marker, final String format, final Object[] arguments) {
+        final FormattingTuple message = MessageFormatter.arrayFormat(format, arguments);
+        loggingBackend.logFromExceptionHandlingStrategy(
+                level, name, marker, message.getMessage(), message.getThrowable(), console);
+    }
+
+    private Logger delegate() {
+        return org.slf4j.LoggerFactory.getLogger(name);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Circuit breaker around delivery to SLF4J; see {@link BackendWatchdogMXBean}.<br>
+ *
+ * A stall is detected without a thread of its own: any delivery attempted while another has been in progress, with
+ * no delivery completing, for longer than the latency threshold trips the watchdog. A delivery that completes but
+ * took longer than the threshold trips it too, so that threads queued up behind a stalled appender go to the
+ * fallback rather than each waiting on it in turn.
+ */
+class BackendWatchdog implements BackendWatchdogMXBean {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final long DEFAULT_LATENCY_THRESHOLD_MILLIS = 1000;
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_RETRY_INTERVAL_MILLIS = 5000;
+
+    private final Ticker ticker;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger deliveriesInProgress = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong tripCount = new AtomicLong();
+    private final AtomicLong failedDeliveryCount = new AtomicLong();
+    private final AtomicLong divertedEventCount = new AtomicLong();
+    private volatile long lastProgress;
+    private volatile long openedAt;
+    private volatile long latencyThreshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_THRESHOLD_MILLIS);
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long retryInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RETRY_INTERVAL_MILLIS);
+
+    BackendWatchdog() {
+        this(Ticker.systemTicker());
+    }
+
+    BackendWatchdog(final Ticker ticker) {
+        this.ticker = ticker;
+        this.lastProgress = ticker.read();
+    }
+
+    /**
+     * @return true if the caller may deliver to SLF4J, in which case it must call {@link #deliveryStarted} and then
+     *             either {@link #deliverySucceeded} or {@link #deliveryFailed}; false if it should use the fallback
+     */
+    boolean allowDelivery() {
+        final State currentState = state.get();
+        final boolean allowed;
+        if (currentState == State.CLOSED) {
+            if (isStalled()) {
+                trip(State.CLOSED);
+                allowed = false;
+            } else {
+                allowed = true;
+            }
+        } else if (currentState == State.OPEN) {
+            allowed = ticker.read() - openedAt >= retryInterval && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        } else {
+            allowed = false;
+        }
+        return allowed;
+    }
+
+    /**
+     * Unlike {@link #allowDelivery}, never lets a trial delivery through, so may be asked by callers that do not go on
+     * to deliver.
+     *
+     * @return true if delivery is being held back, tripping the watchdog first if a delivery has stalled
+     */
+    boolean isHoldingBack() {
+        final State currentState = state.get();
+        if (currentState == State.CLOSED && isStalled()) {
+            trip(State.CLOSED);
+            return true;
+        }
+        return currentState != State.CLOSED;
+    }
+
+    private boolean isStalled() {
+        return deliveriesInProgress.get() > 0 && ticker.read() - lastProgress > latencyThreshold;
+    }
+
+    long deliveryStarted() {
+        final long now = ticker.read();
+        if (deliveriesInProgress.getAndIncrement() == 0) {
+            lastProgress = now;
+        }
+        return now;
+    }
+
+    void deliverySucceeded(final long startedAt) {
+        final long now = deliveryFinished();
+        if (now - startedAt > latencyThreshold) {
+            trip(state.get());
+        } else {
+            consecutiveFailures.set(0);
+            state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+        }
+    }
+
+    void deliveryFailed() {
+        deliveryFinished();
+        failedDeliveryCount.incrementAndGet();
+        final State currentState = state.get();
+        if (currentState == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            trip(currentState);
+        }
+    }
+
+    private long deliveryFinished() {
+        final long now = ticker.read();
+        lastProgress = now;
+        deliveriesInProgress.decrementAndGet();
+        return now;
+    }
+
+    void eventDiverted() {
+        divertedEventCount.incrementAndGet();
+    }
+
+    private void trip(final State from) {
+        if (from != State.OPEN && state.compareAndSet(from, State.OPEN)) {
+            openedAt = ticker.read();
+            consecutiveFailures.set(0);
+            tripCount.incrementAndGet();
+        }
+    }
+
+    boolean isClosed() {
+        return state.get() == State.CLOSED;
+    }
+
+    @Override
+    public String getState() {
+        return state.get().name();
+    }
+
+    @Override
+    public long getTripCount() {
+        return tripCount.get();
+    }
+
+    @Override
+    public long getFailedDeliveryCount() {
+        return failedDeliveryCount.get();
+    }
+
+    @Override
+    public long getDivertedEventCount() {
+        return divertedEventCount.get();
+    }
+
+    @Override
+    public int getDeliveriesInProgress() {
+        return deliveriesInProgress.get();
+    }
+
+    @Override
+    public long getLatencyThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(latencyThreshold);
+    }
+
+    @Override
+    public void setLatencyThresholdMillis(final long latencyThresholdMillis) {
+        this.latencyThreshold = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+    }
+
+    @Override
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    @Override
+    public void setFailureThreshold(final int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    @Override
+    public long getRetryIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(retryInterval);
+    }
+
+    @Override
+    public void setRetryIntervalMillis(final long retryIntervalMillis) {
+        this.retryInterval = TimeUnit.MILLISECONDS.toNanos(retryIntervalMillis);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+/**
+ * Management view of the watchdog that stops System.out and System.err blocking behind a logging system that has
+ * stalled or keeps failing.<br>
+ *
+ * While the logging system is healthy the watchdog is CLOSED and output goes to SLF4J. When a delivery to SLF4J
+ * has been in progress for longer than the latency threshold, or the failure threshold of consecutive deliveries
+ * have thrown, it trips and becomes OPEN; output is then diverted to the journal, if one has been configured, or
+ * to the original console. Once the retry interval has passed a single delivery is let through to SLF4J
+ * (HALF_OPEN); if it succeeds promptly the watchdog closes again, otherwise it reopens.
+ */
+public interface BackendWatchdogMXBean {
+
+    /**
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    String getState();
+
+    long getTripCount();
+
+    long getFailedDeliveryCount();
+
+    long getDivertedEventCount();
+
+    int getDeliveriesInProgress();
+
+    long getLatencyThresholdMillis();
+
+    void setLatencyThresholdMillis(long latencyThresholdMillis);
+
+    int getFailureThreshold();
+
+    void setFailureThreshold(int failureThreshold);
+
+    long getRetryIntervalMillis();
+
+    void setRetryIntervalMillis(long retryIntervalMillis);
+}
@@ -26,7 +26,9 @@ package uk.org.lidalia.sysoutslf4j.context;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
+import uk.org.lidalia.sysoutslf4j.system.CallingClass;
 import uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream;
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
 
 import java.util.List;
 
@@ -72,6 +74,10 @@ final class CallOrigin {
     }
 
     static CallOrigin getCallOrigin(LoggingSystemRegister loggingSystemRegister) {
+        final String callingClass = CallingClass.get();
+        if (callingClass != null) {
+            return getTaggedCallOrigin(loggingSystemRegister, callingClass);
+        }
         Thread currentThread = Thread.currentThread();
         final List<StackTraceElement> stackTraceElements = asList(currentThread.getStackTrace());
         int firstPerContextPrintStreamFrame = frameWithPrintStreamClassName(stackTraceElements, 0).or(THROW_ILLEGAL_STATE_EXCEPTION);
@@ -92,6 +98,18 @@ final class CallOrigin {
         return new CallOrigin(false, false, getOuterClassName(interestingStackTraceElements.get(0).getClassName()));
     }
 
+    /**
+     * The agent has tagged the call with the class making it, so there is no need to walk the stack. Only that class
+     * is checked against the logging system register, and a stack trace is known to be printing only if the agent
+     * says so.
+     */
+    private static CallOrigin getTaggedCallOrigin(final LoggingSystemRegister loggingSystemRegister, final String callingClass) {
+        if (loggingSystemRegister.isInLoggingSystem(callingClass)) {
+            return new CallOrigin(false, true, null);
+        }
+        return new CallOrigin(ThrowableBeingPrinted.get() != null, false, getOuterClassName(callingClass));
+    }
+
     private static Optional<Integer> frameWithPrintStreamClassName(final List<StackTraceElement> stackTraceElements, int startPoint) {
         for (int i = startPoint; i < stackTraceElements.size(); i++) {
             StackTraceElement stackTraceElement = stackTraceElements.get(i);
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import uk.org.lidalia.sysoutslf4j.system.ContextBinding;
+import uk.org.lidalia.sysoutslf4j.system.PerContextSystemOutput;
+
+/**
+ * A context using sysout-over-slf4j, as returned by {@link SysOutOverSLF4J#getCaptureContext()}, which can be bound
+ * to a thread so that System.out and System.err calls made on it go to this context whatever the thread's context
+ * class loader. This is for threads that run work for several contexts, such as a shared pool or an event loop,
+ * which cannot be told apart by class loader; it also spares each call the class loader lookup.<br>
+ *
+ * A binding follows the context rather than its current PrintStreams: if the context sends System.out and
+ * System.err to SLF4J again the bound thread uses the new ones, and once it stops the thread falls back to routing
+ * by class loader.<br>
+ *
+ * Work handed to another thread can take the context with it by wrapping the task, or the executor or thread factory
+ * that runs it; each task then costs one extra object holding a reference to this context, with no class loader
+ * lookup at all. Otherwise typical use is:
+ * <pre>
+ * CaptureContext.Binding binding = captureContext.bindToCurrentThread();
+ * try {
+ *     ...
+ * } finally {
+ *     binding.close();
+ * }
+ * </pre>
+ */
+public final class CaptureContext {
+
+    private final ContextBinding contextBinding = new ContextBinding();
+
+    CaptureContext() {
+        super();
+    }
+
+    /**
+     * Binds this context to the current thread until the returned binding is closed.<br>
+     *
+     * The binding must be closed, in a finally block, before the thread dies or is returned to a pool. While any
+     * thread is bound every System.out and System.err call in the JVM pays a thread local lookup to find its binding,
+     * and a thread that dies still bound is counted as bound for good, so that cost is never lifted again. Where the
+     * work to bind is a single task, {@link #runInScope(Runnable)} or one of the wrap methods cannot leave a binding
+     * behind.
+     *
+     * @return the binding, which must be closed on the same thread
+     */
+    public Binding bindToCurrentThread() {
+        return new Binding(contextBinding.bindToCurrentThread());
+    }
+
+    /**
+     * Runs the task with this context bound for as long as it runs. On JVMs with java.lang.ScopedValue the binding is
+     * carried in one, so threads the task forks in a StructuredTaskScope print to this context too, with nothing
+     * kept per thread; on older JVMs only the current thread is bound.
+     */
+    public void runInScope(final Runnable task) {
+        contextBinding.runInScope(task);
+    }
+
+    /**
+     * Calls the task with this context bound for as long as it runs, as {@link #runInScope(Runnable)} does.
+     *
+     * @return the result of the task
+     * @throws Exception if the task does
+     */
+    public <T> T callInScope(final Callable<T> task) throws Exception {
+        final ScopedCall<T> call = new ScopedCall<T>(task);
+        contextBinding.runInScope(call);
+        return call.getResult();
+    }
+
+    /**
+     * @return a Runnable that runs the given task with this context bound to the thread running it
+     */
+    public Runnable wrap(final Runnable task) {
+        return new BoundRunnable(contextBinding, task);
+    }
+
+    /**
+     * @return a Callable that calls the given task with this context bound to the thread calling it
+     */
+    public <T> Callable<T> wrap(final Callable<T> task) {
+        return new BoundCallable<T>(contextBinding, task);
+    }
+
+    /**
+     * @return an Executor that runs the tasks given it on the given executor with this context bound to the thread
+     * running them
+     */
+    public Executor wrap(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(wrap(command));
+            }
+        };
+    }
+
+    /**
+     * @return an ExecutorService that runs the tasks given it on the given executor service with this context bound
+     * to the thread running them; shutting it down shuts down the given executor service
+     */
+    public ExecutorService wrap(final ExecutorService executorService) {
+        return new CaptureContextExecutorService(this, executorService);
+    }
+
+    /**
+     * @return a ThreadFactory whose threads have this context bound to them for as long as they run
+     */
+    public ThreadFactory wrap(final ThreadFactory threadFactory) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return threadFactory.newThread(wrap(runnable));
+            }
+        };
+    }
+
+    void setPrintStream(final PerContextSystemOutput systemOutput, final PrintStream printStream) {
+        contextBinding.setPrintStream(systemOutput, printStream);
+    }
+
+    private static final class BoundRunnable implements Runnable {
+
+        private final ContextBinding contextBinding;
+        private final Runnable task;
+
+        BoundRunnable(final ContextBinding contextBinding, final Runnable task) {
+            this.contextBinding = contextBinding;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            final ContextBinding previous = contextBinding.bindToCurrentThread();
+            try {
+                task.run();
+            } finally {
+                ContextBinding.restore(previous);
+            }
+        }
+    }
+
+    private static final class BoundCallable<T> implements Callable<T> {
+
+        private final ContextBinding contextBinding;
+        private final Callable<T> task;
+
+        BoundCallable(final ContextBinding contextBinding, final Callable<T> task) {
+            this.contextBinding = contextBinding;
+            this.task = task;
+        }
+
+        @Override
+        public T call() throws Exception {
+            final ContextBinding previous = contextBinding.bindToCurrentThread();
+            try {
+                return task.call();
+            } finally {
+                ContextBinding.restore(previous);
+            }
+        }
+    }
+
+    private static final class ScopedCall<T> implements Runnable {
+
+        private final Callable<T> task;
+        private T result;
+        private Exception failure;
+
+        ScopedCall(final Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result = task.call();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        T getResult() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A binding of a context to a thread, made by {@link CaptureContext#bindToCurrentThread()}. Closing it puts back
+     * whatever the thread was bound to before, so bindings can be nested.
+     */
+    public static final class Binding implements Closeable {
+
+        private final ContextBinding previous;
+
+        private Binding(final ContextBinding previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            ContextBinding.restore(previous);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.Date;
+
+/**
+ * The number of times stack traces of one exception class have been printed by one class, and when one was last
+ * printed. An entry of {@link ExceptionStatisticsMXBean#getExceptions()}.
+ */
+public final class ExceptionCount {
+
+    private final String exceptionClass;
+    private final String loggerName;
+    private final long count;
+    private final Date lastSeen;
+
+    ExceptionCount(final String exceptionClass, final String loggerName, final long count, final long lastSeen) {
+        super();
+        this.exceptionClass = exceptionClass;
+        this.loggerName = loggerName;
+        this.count = count;
+        this.lastSeen = new Date(lastSeen);
+    }
+
+    public String getExceptionClass() {
+        return exceptionClass;
+    }
+
+    public String getLoggerName() {
+        return loggerName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public Date getLastSeen() {
+        return new Date(lastSeen.getTime());
+    }
+
+    @Override
+    public String toString() {
+        return exceptionClass + " from " + loggerName + ": " + count + ", last seen " + lastSeen;
+    }
+}
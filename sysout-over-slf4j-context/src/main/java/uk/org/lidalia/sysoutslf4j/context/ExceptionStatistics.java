@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Index of printed exceptions; see {@link ExceptionStatisticsMXBean}.<br>
+ *
+ * Recording takes no locks: an exception already in the index only increments its counter, and a new entry
+ * reserves its place against the bound before it is added, so the index never grows past its maximum however many
+ * threads race to add to it. Only Strings are held, so the index pins no classes.<br>
+ *
+ * Resetting swaps in a new, empty index rather than clearing the current one, so that the counts, the entries and
+ * the bound always agree. An exception recorded at the same moment lands wholly in one index or the other.
+ */
+class ExceptionStatistics implements ExceptionStatisticsMXBean {
+
+    private static final int DEFAULT_MAXIMUM_ENTRIES = 1000;
+    private static final String UNCAUGHT_EXCEPTION_PREFIX = "Exception in thread \"";
+
+    private static final Comparator<ExceptionCount> MOST_FREQUENT_FIRST = new Comparator<ExceptionCount>() {
+        @Override
+        public int compare(final ExceptionCount first, final ExceptionCount second) {
+            return second.getCount() < first.getCount() ? -1 : (second.getCount() == first.getCount() ? 0 : 1);
+        }
+    };
+
+    private final AtomicReference<Index> index = new AtomicReference<Index>(new Index());
+    private final int maximumEntries;
+
+    ExceptionStatistics() {
+        this(DEFAULT_MAXIMUM_ENTRIES);
+    }
+
+    ExceptionStatistics(final int maximumEntries) {
+        super();
+        if (maximumEntries < 0) {
+            throw new IllegalArgumentException("maximumEntries must not be negative; was " + maximumEntries);
+        }
+        this.maximumEntries = maximumEntries;
+    }
+
+    void record(final String exceptionClass, final String loggerName) {
+        final Index currentIndex = index.get();
+        currentIndex.totalCount.incrementAndGet();
+        final Key key = new Key(exceptionClass, loggerName);
+        Counter counter = currentIndex.counters.get(key);
+        if (counter == null) {
+            counter = add(currentIndex, key);
+            if (counter == null) {
+                currentIndex.untrackedCount.incrementAndGet();
+                return;
+            }
+        }
+        counter.increment();
+    }
+
+    private Counter add(final Index currentIndex, final Key key) {
+        if (currentIndex.size.incrementAndGet() > maximumEntries) {
+            currentIndex.size.decrementAndGet();
+            return currentIndex.counters.get(key);
+        }
+        final Counter added = new Counter();
+        final Counter existing = currentIndex.counters.putIfAbsent(key, added);
+        if (existing != null) {
+            currentIndex.size.decrementAndGet();
+            return existing;
+        }
+        return added;
+    }
+
+    /**
+     * Takes the exception class from the first line of a printed stack trace, as written by
+     * Throwable.printStackTrace and by the default uncaught exception handler:
+     * {@code [Exception in thread "name" ]fully.qualified.ClassName[: message]}<br>
+     * The thread name is skipped first, as it may itself contain ": ".
+     */
+    static String exceptionClassOf(final String header) {
+        final String throwable = header.startsWith(UNCAUGHT_EXCEPTION_PREFIX) ? afterThreadName(header) : header;
+        final int endOfClassName = throwable.indexOf(": ");
+        final String className = endOfClassName == -1 ? throwable : throwable.substring(0, endOfClassName);
+        return className.substring(className.lastIndexOf(' ') + 1);
+    }
+
+    private static String afterThreadName(final String header) {
+        final int endOfThreadName = header.indexOf("\" ", UNCAUGHT_EXCEPTION_PREFIX.length());
+        return endOfThreadName == -1 ? header : header.substring(endOfThreadName + 2);
+    }
+
+    @Override
+    public List<ExceptionCount> getExceptions() {
+        final ConcurrentMap<Key, Counter> counters = index.get().counters;
+        final List<ExceptionCount> exceptions = new ArrayList<ExceptionCount>(counters.size());
+        for (Map.Entry<Key, Counter> entry : counters.entrySet()) {
+            final Key key = entry.getKey();
+            final Counter counter = entry.getValue();
+            exceptions.add(new ExceptionCount(key.exceptionClass, key.loggerName, counter.count.get(), counter.lastSeen));
+        }
+        Collections.sort(exceptions, MOST_FREQUENT_FIRST);
+        return exceptions;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return index.get().totalCount.get();
+    }
+
+    @Override
+    public long getUntrackedCount() {
+        return index.get().untrackedCount.get();
+    }
+
+    @Override
+    public int getMaximumEntries() {
+        return maximumEntries;
+    }
+
+    @Override
+    public void reset() {
+        index.set(new Index());
+    }
+
+    private static final class Index {
+
+        private final ConcurrentMap<Key, Counter> counters = new ConcurrentHashMap<Key, Counter>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong totalCount = new AtomicLong();
+        private final AtomicLong untrackedCount = new AtomicLong();
+    }
+
+    private static final class Key {
+
+        private final String exceptionClass;
+        private final String loggerName;
+
+        Key(final String exceptionClass, final String loggerName) {
+            this.exceptionClass = exceptionClass;
+            this.loggerName = loggerName;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return exceptionClass.equals(key.exceptionClass) && loggerName.equals(key.loggerName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * exceptionClass.hashCode() + loggerName.hashCode();
+        }
+    }
+
+    private static final class Counter {
+
+        private final AtomicLong count = new AtomicLong();
+        private volatile long lastSeen;
+
+        void increment() {
+            count.incrementAndGet();
+            lastSeen = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.List;
+
+/**
+ * Management view of the exceptions whose stack traces have been printed to System.out and System.err in this
+ * context, counted by exception class and by the logger (the class that printed them) they were logged against.<br>
+ *
+ * The index is held in memory and bounded; once it holds its maximum number of distinct combinations of exception
+ * class and logger, exceptions falling outside the combinations already held are counted only as untracked.
+ */
+public interface ExceptionStatisticsMXBean {
+
+    /**
+     * @return a snapshot of the index, most frequently printed first
+     */
+    List<ExceptionCount> getExceptions();
+
+    long getTotalCount();
+
+    long getUntrackedCount();
+
+    int getMaximumEntries();
+
+    void reset();
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bytes a thread has written to a {@link LoggingOutputStream} that have not yet been delivered as complete
+ * lines. It is lent to one thread at a time, for as long as that thread is writing or has left something in it, so
+ * its lock is only ever contended by the shared timer taking a partial line the thread has left in it.<br>
+ *
+ * While it holds a partial line, or the state of a line or stack trace being written, it puts itself in the map of
+ * buffers in use against the thread that left it there, so that the thread finds it again, the shared timer can find
+ * the partial line and the state is not lost; it takes itself out again once it holds neither. This is done as its
+ * lock is released, as every change to what it holds is made under the lock. Only then does it refer to the thread,
+ * and then weakly.<br>
+ *
+ * Lines are assembled as bytes and only decoded once complete, so a character whose bytes are split between two
+ * writes is decoded whole. Decoding reuses the buffer's own decoder and the buffer of chars it decodes into.<br>
+ *
+ * A thread that prints one very long line grows the buffer to hold it. Capacity beyond {@value #RETAINED_CAPACITY}
+ * bytes is given back once the bytes no longer need it, so that a spike does not keep the buffer large for good.<br>
+ *
+ * Line breaks are searched for a word at a time: eight bytes are read as a long and tested for the byte of '\n' all
+ * at once, with no branch per byte. The bytes are read through a ByteBuffer, which the JIT compiles to a single load.
+ * There is no version using the Vector API: the modules are built for Java 6, while jdk.incubator.vector needs
+ * Java 16 or later, and its module has to be added to the JVM at run time.
+ */
+final class LineBuffer {
+
+    private static final int INITIAL_CAPACITY = 32;
+    private static final int RETAINED_CAPACITY = 8192;
+    private static final int WORD = 8;
+    private static final int SHORTEST_SEARCHED_BY_WORD = 4 * WORD;
+    private static final long LINE_BREAKS = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private final Lock lock = new ReentrantLock();
+    private final ConcurrentMap<Thread, LineBuffer> buffersInUse;
+    private WeakReference<Thread> inUseBy;
+    private boolean inUse = false;
+    private int users = 0;
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+    private byte[] spare;
+    private byte[] handedOver;
+    private final CharsetDecoder decoder;
+    private ByteBuffer bytesToDecode;
+    private ByteBuffer otherBytesToDecode;
+    private CharBuffer decoded = CharBuffer.allocate(INITIAL_CAPACITY);
+    private Throwable loggedThrowable;
+    private LineOverflowPolicy longLinePolicy;
+
+    LineBuffer(final Charset charset, final ConcurrentMap<Thread, LineBuffer> buffersInUse) {
+        super();
+        this.buffersInUse = buffersInUse;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        try {
+            noteWhetherInUse();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only the thread writing to the buffer gives it something to hold, so that is the thread it is in use by.
+     */
+    private void noteWhetherInUse() {
+        final boolean nowInUse = holdsAnything();
+        if (nowInUse == inUse) {
+            return;
+        }
+        inUse = nowInUse;
+        if (nowInUse) {
+            final Thread currentThread = Thread.currentThread();
+            inUseBy = new WeakReference<Thread>(currentThread);
+            buffersInUse.put(currentThread, this);
+        } else {
+            final Thread owner = inUseBy.get();
+            inUseBy = null;
+            if (owner != null) {
+                buffersInUse.remove(owner, this);
+            }
+        }
+    }
+
+    private boolean holdsAnything() {
+        return count > 0 || loggedThrowable != null || longLinePolicy != null;
+    }
+
+    /**
+     * Notes that a thread is writing through the buffer, which it may do again from within a write, if the logging
+     * system prints. Called under the lock.
+     */
+    void addUser() {
+        users++;
+    }
+
+    /**
+     * Called under the lock.
+     *
+     * @return true if no thread is writing through the buffer any longer and it holds nothing, so that it can be lent
+     * to another thread
+     */
+    boolean removeUser() {
+        users--;
+        return users == 0 && !holdsAnything();
+    }
+
+    void write(final int b) {
+        ensureCapacity(count + 1);
+        buf[count] = (byte) b;
+        count++;
+    }
+
+    void write(final byte[] b, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(final int minCapacity) {
+        if (minCapacity > buf.length) {
+            forgetByteBufferOf(buf);
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, minCapacity));
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the index just past the last line break, or 0 if there is none
+     */
+    int endOfLastLine() {
+        return count < SHORTEST_SEARCHED_BY_WORD
+                ? endOfLastLineByByte(buf, 0, count) : endOfLastLine(wordsOf(buf), 0, count);
+    }
+
+    /**
+     * @return true if the bytes after the last line break are more than maxLength
+     */
+    boolean hasPartialLineLongerThan(final int maxLength) {
+        return count > maxLength && count - endOfLastLine() > maxLength;
+    }
+
+    /**
+     * @return the index just past the last line break between start and end, or start if there is none
+     */
+    static int endOfLastLine(final byte[] bytes, final int start, final int end) {
+        return end - start < SHORTEST_SEARCHED_BY_WORD
+                ? endOfLastLineByByte(bytes, start, end) : endOfLastLine(wordsIn(bytes), start, end);
+    }
+
+    /**
+     * @return the index just past the first line break between start and end, or start if there is none
+     */
+    static int endOfFirstLine(final byte[] bytes, final int start, final int end) {
+        return end - start < SHORTEST_SEARCHED_BY_WORD
+                ? endOfFirstLineByByte(bytes, start, end) : endOfFirstLine(wordsIn(bytes), start, end);
+    }
+
+    /**
+     * @param words bytes viewed by {@link #wordsOf(byte[])}
+     * @return the index just past the last line break between start and end, or start if there is none
+     */
+    static int endOfLastLine(final ByteBuffer words, final int start, final int end) {
+        int endOfWord = end;
+        while (endOfWord - WORD >= start) {
+            final long lineBreaks = lineBreaksIn(words.getLong(endOfWord - WORD));
+            if (lineBreaks != 0) {
+                return endOfWord - (Long.numberOfLeadingZeros(lineBreaks) >>> 3);
+            }
+            endOfWord -= WORD;
+        }
+        return endOfLastLineByByte(words.array(), start, endOfWord);
+    }
+
+    /**
+     * @param words bytes viewed by {@link #wordsOf(byte[])}
+     * @return the index just past the first line break between start and end, or start if there is none
+     */
+    static int endOfFirstLine(final ByteBuffer words, final int start, final int end) {
+        int startOfWord = start;
+        while (startOfWord + WORD <= end) {
+            final long lineBreaks = lineBreaksIn(words.getLong(startOfWord));
+            if (lineBreaks != 0) {
+                return startOfWord + (Long.numberOfTrailingZeros(lineBreaks) >>> 3) + 1;
+            }
+            startOfWord += WORD;
+        }
+        final int endOfLine = endOfFirstLineByByte(words.array(), startOfWord, end);
+        return endOfLine == startOfWord ? start : endOfLine;
+    }
+
+    /**
+     * Sets the top bit of each byte that is a line break, and no other. Each byte is tested on its own, with no carry
+     * into the next, so the bits are exact and the first and last line break in the word can both be read off them.
+     * The bytes are little-endian, so the first is the lowest.
+     */
+    private static long lineBreaksIn(final long word) {
+        final long differences = word ^ LINE_BREAKS;
+        return ~(((differences & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | differences | LOW_SEVEN_BITS);
+    }
+
+    private static int endOfLastLineByByte(final byte[] bytes, final int start, final int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    private static int endOfFirstLineByByte(final byte[] bytes, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return a view of bytes for searching a word at a time, which for this buffer's own arrays is kept
+     */
+    ByteBuffer wordsOf(final byte[] bytes) {
+        final ByteBuffer words = byteBufferOf(bytes);
+        words.clear();
+        return words;
+    }
+
+    private static ByteBuffer wordsIn(final byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Hands over the array holding the first end bytes, to be given back by {@link #release(byte[])} once they have
+     * been logged, and carries on in another array holding the bytes that follow them. The two arrays are swapped
+     * back and forth, so that lines are logged straight out of the array they were assembled in. If lines are taken
+     * again before the last are given back, as they may be if the logging system prints while logging them, another
+     * array is made.
+     */
+    byte[] takeLines(final int end) {
+        final byte[] lines = buf;
+        final int remaining = count - end;
+        buf = spare == null || spare.length < remaining ? new byte[retainedCapacity(lines.length, remaining)] : spare;
+        spare = null;
+        handedOver = lines;
+        System.arraycopy(lines, end, buf, 0, remaining);
+        count = remaining;
+        return lines;
+    }
+
+    void release(final byte[] lines) {
+        if (handedOver == lines) {
+            handedOver = null;
+        }
+        if (lines.length > RETAINED_CAPACITY) {
+            forgetByteBufferOf(lines);
+        } else {
+            spare = lines;
+        }
+    }
+
+    /**
+     * Takes the partial line in the buffer as text, except for the bytes of a character that has not been written in
+     * full, which are left to be completed by the next write.
+     */
+    String takeAll() {
+        return take(count);
+    }
+
+    /**
+     * Takes, as text, up to length bytes from the start of a partial line in the buffer, stopping short of a
+     * character that is not complete within them.
+     */
+    String take(final int length) {
+        final ByteBuffer bytes = byteBufferOf(buf);
+        final String taken = decode(bytes, 0, Math.min(length, count), false);
+        final int consumed = bytes.position();
+        System.arraycopy(buf, consumed, buf, 0, count - consumed);
+        count -= consumed;
+        shrinkIfLarge();
+        return taken;
+    }
+
+    void discard() {
+        count = 0;
+        shrinkIfLarge();
+    }
+
+    /**
+     * Decodes the bytes between start and end, which make up whole lines.
+     */
+    String decode(final byte[] bytes, final int start, final int end) {
+        return decode(byteBufferOf(bytes), start, end, true);
+    }
+
+    private String decode(final ByteBuffer bytesToDecode, final int start, final int end, final boolean endOfInput) {
+        bytesToDecode.limit(end);
+        bytesToDecode.position(start);
+        final CharBuffer chars = charBufferFor(end - start);
+        decoder.reset();
+        decoder.decode(bytesToDecode, chars, endOfInput);
+        if (endOfInput) {
+            decoder.flush(chars);
+        }
+        // the same bytes may be searched for the next line break once this line is logged
+        bytesToDecode.limit(bytesToDecode.capacity());
+        return new String(chars.array(), 0, chars.position());
+    }
+
+    /**
+     * The buffer of chars decoded into is kept for lines of up to {@value #RETAINED_CAPACITY} bytes; a longer line
+     * is decoded into a buffer of its own.
+     */
+    private CharBuffer charBufferFor(final int length) {
+        final int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (decoded.capacity() >= maxChars) {
+            decoded.clear();
+            return decoded;
+        }
+        if (length > RETAINED_CAPACITY) {
+            return CharBuffer.allocate(maxChars);
+        }
+        decoded = CharBuffer.allocate(Math.max(maxChars, decoded.capacity() << 1));
+        return decoded;
+    }
+
+    void writeTo(final PrintStream printStream) {
+        printStream.write(buf, 0, count);
+        count = 0;
+        shrinkIfLarge();
+    }
+
+    private void shrinkIfLarge() {
+        final int capacity = retainedCapacity(buf.length, count);
+        if (capacity < buf.length) {
+            forgetByteBufferOf(buf);
+            buf = Arrays.copyOf(buf, capacity);
+        }
+    }
+
+    /**
+     * @return capacity, or if that is more than {@value #RETAINED_CAPACITY} bytes, that many or as many as needed
+     */
+    private static int retainedCapacity(final int capacity, final int needed) {
+        return capacity <= RETAINED_CAPACITY ? capacity : Math.max(RETAINED_CAPACITY, needed);
+    }
+
+    /**
+     * The decoder reads from a ByteBuffer, and line breaks are searched for through one. Those wrapping this
+     * buffer's own two arrays are kept, to save making one for every line, but not those wrapping a caller's array,
+     * which would keep it from being garbage collected.
+     */
+    private ByteBuffer byteBufferOf(final byte[] bytes) {
+        if (bytesToDecode != null && bytesToDecode.array() == bytes) {
+            return bytesToDecode;
+        }
+        if (otherBytesToDecode != null && otherBytesToDecode.array() == bytes) {
+            return otherBytesToDecode;
+        }
+        final ByteBuffer byteBuffer = wordsIn(bytes);
+        if (bytes == buf || bytes == handedOver) {
+            otherBytesToDecode = bytesToDecode;
+            bytesToDecode = byteBuffer;
+        }
+        return byteBuffer;
+    }
+
+    private void forgetByteBufferOf(final byte[] bytes) {
+        if (bytesToDecode != null && bytesToDecode.array() == bytes) {
+            bytesToDecode = null;
+        }
+        if (otherBytesToDecode != null && otherBytesToDecode.array() == bytes) {
+            otherBytesToDecode = null;
+        }
+    }
+
+    /**
+     * @return the index just past the last byte between start and end that is not a space or line break, or start
+     * if there is none
+     */
+    static int endOfText(final byte[] bytes, final int start, final int end) {
+        int endOfText = end;
+        while (endOfText > start && isSpaceOrLineBreak(bytes[endOfText - 1])) {
+            endOfText--;
+        }
+        return endOfText;
+    }
+
+    private static boolean isSpaceOrLineBreak(final byte b) {
+        return b == ' ' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return the Throwable the agent reported this thread as printing the stack trace of, once logged
+     */
+    Throwable getLoggedThrowable() {
+        return loggedThrowable;
+    }
+
+    void setLoggedThrowable(final Throwable loggedThrowable) {
+        this.loggedThrowable = loggedThrowable;
+    }
+
+    /**
+     * @return the policy that the line being written was handled by once it grew too long, until its line break is
+     * written, or null
+     */
+    LineOverflowPolicy getLongLinePolicy() {
+        return longLinePolicy;
+    }
+
+    void setLongLinePolicy(final LineOverflowPolicy longLinePolicy) {
+        this.longLinePolicy = longLinePolicy;
+    }
+}
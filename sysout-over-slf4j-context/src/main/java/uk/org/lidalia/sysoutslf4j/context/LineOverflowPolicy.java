@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+/**
+ * What is done with a line that is still being written once it is longer than the maximum line length set by
+ * {@link SysOutOverSLF4J#setMaximumLineLength(int, LineOverflowPolicy)}, so that output that never prints a line
+ * break, such as a progress indicator or a binary dump, is not buffered without limit.
+ */
+public enum LineOverflowPolicy {
+
+    /**
+     * Logs the line in pieces of the maximum length as it is written.
+     */
+    SPLIT,
+
+    /**
+     * Logs the first part of the line, of the maximum length, followed by " [truncated]", and discards the rest of
+     * the line up to its line break.
+     */
+    TRUNCATE,
+
+    /**
+     * Writes the line, and the rest of it up to its line break, to the original System.out or System.err rather than
+     * logging it.
+     */
+    PASS_THROUGH
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jext.LoggerFactory;
+import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
+import uk.org.lidalia.sysoutslf4j.context.journal.Journal;
+
+/**
+ * Delivers captured output to SLF4J. If a {@link Journal} has been set, output that SLF4J fails to accept is
+ * journalled rather than lost, and is replayed ahead of any new output once SLF4J starts accepting events again.<br>
+ *
+ * Delivery is guarded by a {@link BackendWatchdog}; while it is open output is not sent to SLF4J but is journalled
+ * or, failing that, handed back to the caller to print to the original console.<br>
+ *
+ * An {@link ExceptionHandlingStrategy} is passed a {@link BackendLogger}, so that what it logs is delivered the same
+ * way. What it logs while handling a line goes straight to SLF4J, the line itself having already been let through.
+ */
+class LoggingBackend {
+
+    private static final Marker STACKTRACE = MarkerFactory.getMarker("stacktrace");
+
+    private final BackendWatchdog watchdog;
+    private final ExceptionStatistics exceptionStatistics = new ExceptionStatistics();
+    private final ThreadLocal<Boolean> handlingStackTraceLine = new ThreadLocal<Boolean>();
+    private volatile Journal journal;
+
+    /**
+     * @return false if the message was not delivered and should be written to the original console instead
+     */
+    boolean log(final Level level, final String loggerName, final String message) {
+        return deliver(null, null, level, loggerName, null, message, null);
+    }
+
+    /**
+     * @param console where anything the strategy logs later is printed if it can be neither delivered nor journalled
+     * @return false if the line was not delivered and should be written to the original console instead
+     */
+    boolean logStackTraceLine(final ExceptionHandlingStrategy exceptionHandlingStrategy,
+            final Level level, final String loggerName, final String line, final PrintStream console) {
+        return deliver(exceptionHandlingStrategy, console, level, loggerName, null, line, null);
+    }
+
+    /**
+     * Logs a Throwable whose stack trace was printed as a single event, with the "stacktrace" marker. If it has to
+     * be journalled its printed stack trace is journalled as the message.
+     *
+     * @return false if the throwable was not delivered and its stack trace should be printed as usual instead
+     */
+    boolean logThrowable(final Level level, final String loggerName, final Throwable throwable) {
+        return deliver(null, null, level, loggerName, STACKTRACE, throwable.toString(), throwable);
+    }
+
+    /**
+     * Logs an event an {@link ExceptionHandlingStrategy} has logged to a {@link BackendLogger}. If the strategy is
+     * handling a line on this thread the event goes straight to SLF4J, and a failure is dealt with as a failure to
+     * deliver that line.
+     */
+    void logFromExceptionHandlingStrategy(final Level level, final String loggerName, final Marker marker,
+            final String message, final Throwable throwable, final PrintStream console) {
+        if (handlingStackTraceLine.get() != null) {
+            logToSLF4J(level, loggerName, marker, message, throwable);
+        } else if (!deliver(null, null, level, loggerName, marker, message, throwable)) {
+            console.println(journalMessage(message, throwable));
+        }
+    }
+
+    private boolean deliver(final ExceptionHandlingStrategy exceptionHandlingStrategy, final PrintStream console,
+            final Level level, final String loggerName, final Marker marker, final String message,
+            final Throwable throwable) {
+        if (!watchdog.allowDelivery()) {
+            return divert(level, loggerName, journalMessage(message, throwable));
+        }
+        if (!journalHasCaughtUp()) {
+            if (appendToJournal(level, loggerName, journalMessage(message, throwable))) {
+                return true;
+            }
+        }
+        return deliverToSLF4J(exceptionHandlingStrategy, console, level, loggerName, marker, message, throwable);
+    }
+
+    private boolean deliverToSLF4J(final ExceptionHandlingStrategy exceptionHandlingStrategy,
+            final PrintStream console, final Level level, final String loggerName, final Marker marker,
+            final String message, final Throwable throwable) {
+        final long startedAt = watchdog.deliveryStarted();
+        try {
+            if (exceptionHandlingStrategy == null) {
+                logToSLF4J(level, loggerName, marker, message, throwable);
+            } else {
+                handlingStackTraceLine.set(Boolean.TRUE);
+                try {
+                    exceptionHandlingStrategy.handleExceptionLine(message, new BackendLogger(this, loggerName, console));
+                } finally {
+                    handlingStackTraceLine.remove();
+                }
+            }
+        } catch (RuntimeException e) {
+            watchdog.deliveryFailed();
+            if (appendToJournal(level, loggerName, journalMessage(message, throwable))) {
+                return true;
+            }
+            if (watchdog.isClosed()) {
+                throw e;
+            }
+            watchdog.eventDiverted();
+            return false;
+        }
+        watchdog.deliverySucceeded(startedAt);
+        return true;
+    }
+
+    private static void logToSLF4J(final Level level, final String loggerName, final Marker marker,
+            final String message, final Throwable throwable) {
+        if (throwable != null) {
+            LoggerFactory.getLogger(loggerName).log(level, marker, message, throwable);
+        } else if (marker != null) {
+            LoggerFactory.getLogger(loggerName).log(level, marker, message);
+        } else {
+            LoggerFactory.getLogger(loggerName).log(level, message);
+        }
+    }
+
+    private static String journalMessage(final String message, final Throwable throwable) {
+        if (throwable == null) {
+            return message;
+        }
+        final StringWriter stackTrace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(stackTrace));
+        return StringUtils.stripEnd(stackTrace.toString(), " \r\n");
+    }
+
+    /**
+     * Journals output that is not to be sent to SLF4J at all.
+     *
+     * @return false if the message was not journalled and should be written to the original console instead
+     */
+    boolean divert(final Level level, final String loggerName, final String message) {
+        watchdog.eventDiverted();
+        return appendToJournal(level, loggerName, message);
+    }
+
+    /**
+     * Replays anything in the journal into SLF4J, unless the watchdog is holding delivery back.
+     */
+    void flushJournal() {
+        final Journal currentJournal = journal;
+        if (currentJournal != null && currentJournal.hasPendingEvents() && watchdog.allowDelivery()) {
+            journalHasCaughtUp();
+        }
+    }
+
+    /**
+     * @return true if there is no journal or if everything in it has been replayed, so that new output can go
+     *             straight to SLF4J without overtaking older output
+     */
+    private boolean journalHasCaughtUp() {
+        final Journal currentJournal = journal;
+        if (currentJournal == null || !currentJournal.hasPendingEvents()) {
+            return true;
+        }
+        final long startedAt = watchdog.deliveryStarted();
+        currentJournal.replay();
+        if (currentJournal.hasPendingEvents()) {
+            watchdog.deliveryFailed();
+            return false;
+        }
+        watchdog.deliverySucceeded(startedAt);
+        return true;
+    }
+
+    private boolean appendToJournal(final Level level, final String loggerName, final String message) {
+        final Journal currentJournal = journal;
+        return currentJournal != null && currentJournal.append(level, loggerName, message);
+    }
+
+    void setJournal(final Journal newJournal) throws IOException {
+        final Journal oldJournal = journal;
+        journal = newJournal;
+        if (oldJournal != null) {
+            oldJournal.close();
+        }
+    }
+
+    Journal getJournal() {
+        return journal;
+    }
+
+    BackendWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    ExceptionStatistics getExceptionStatistics() {
+        return exceptionStatistics;
+    }
+
+    LoggingBackend() {
+        this(new BackendWatchdog());
+    }
+
+    LoggingBackend(final BackendWatchdog watchdog) {
+        super();
+        this.watchdog = watchdog;
+    }
+}
@@ -1,66 +1,616 @@
 package uk.org.lidalia.sysoutslf4j.context;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.MapMaker;
 
 import uk.org.lidalia.slf4jext.Level;
-import uk.org.lidalia.slf4jext.Logger;
-import uk.org.lidalia.slf4jext.LoggerFactory;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
+import uk.org.lidalia.sysoutslf4j.system.SharedTimer;
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
 
 import static uk.org.lidalia.sysoutslf4j.context.CallOrigin.getCallOrigin;
 
-class LoggingOutputStream extends ByteArrayOutputStream {
+/**
+ * Buffers output from a context until it makes up whole lines and logs them.<br>
+ *
+ * Each thread's output is buffered separately, in a {@link LineBuffer} of its own, so that threads printing at the
+ * same time neither wait on one another to assemble their lines nor have fragments of their lines spliced together.
+ * Only complete lines are handed on to be logged, which is done under a single lock as the exception handling
+ * strategy keeps state across lines. A thread keeps a buffer only while it has left a partial line in it, in a map
+ * weakly keyed by the thread, where the shared timer also finds it; otherwise it borrows an idle buffer for each write
+ * and gives it back when the write is done. Idle buffers are held strongly in a fixed number of slots, a thread looking
+ * first in the slot its id picks, so that threads printing over and over reuse the same buffers, while a short-lived or
+ * virtual thread that prints whole lines leaves nothing behind it, and the threads of a container's pool keep
+ * nothing, not even a ThreadLocal, that keeps this context reachable once the context is gone.<br>
+ *
+ * A line that grows longer than the maximum line length before its line break is written is handled as the
+ * {@link LineOverflowPolicy} says, so that a thread that never prints a line break does not buffer without limit.<br>
+ *
+ * It is guarded by {@link ReentrantLock}s rather than by monitors, so that a virtual thread waiting on a slow logging
+ * system is not pinned to its carrier thread. A thread stuck in a stalled appender holds the lock lines are logged
+ * under, so other threads wait for it no longer than the {@link BackendWatchdog} allows a delivery to take, and once
+ * the watchdog is holding delivery back not at all; output they cannot log is journalled or printed to the original
+ * console instead.
+ */
+class LoggingOutputStream extends OutputStream {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(LoggingOutputStream.class);
+    private static final long DEFAULT_IDLE_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_MAXIMUM_LINE_LENGTH = 64 * 1024;
+    private static final int MINIMUM_LINE_LENGTH = 4;
+    private static final String TRUNCATION_MARKER = " [truncated]";
+    private static final int IDLE_LINE_BUFFERS = idleLineBuffers(Runtime.getRuntime().availableProcessors());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] LINE_BREAK = {'\n'};
+
+    private static volatile long idleFlushInterval = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_FLUSH_INTERVAL_MILLIS);
+    private static volatile int maximumLineLength = DEFAULT_MAXIMUM_LINE_LENGTH;
+    private static volatile LineOverflowPolicy lineOverflowPolicy = LineOverflowPolicy.SPLIT;
 
     private final Level level;
     private final ExceptionHandlingStrategy exceptionHandlingStrategy;
     private final PrintStream originalPrintStream;
+    private final Charset charset;
     private final LoggingSystemRegister loggingSystemRegister;
+    private final LoggingBackend loggingBackend;
+    private final ConcurrentMap<Thread, LineBuffer> lineBuffersInUse = new MapMaker().weakKeys().makeMap();
+    private final AtomicReferenceArray<LineBuffer> idleLineBuffers =
+            new AtomicReferenceArray<LineBuffer>(IDLE_LINE_BUFFERS);
+    private final Lock lock = new ReentrantLock();
+    private final AtomicBoolean idleFlushScheduled = new AtomicBoolean(false);
+    private final Runnable idleFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushIfIdle();
+        }
+    };
+    private volatile long lastActivity;
+    /*
+     * The thread whose stack trace is being given to the exception handling strategy, guarded by the lock. Only that
+     * thread ends the trace by printing something else, so that lines other threads print while it is printing the
+     * trace do not cut it in two.
+     */
+    private Thread stackTracePrinter;
+    private boolean stackTraceFramesSeen = false;
 
     LoggingOutputStream(final Level level, final ExceptionHandlingStrategy exceptionHandlingStrategy,
-            final PrintStream originalPrintStream, final LoggingSystemRegister loggingSystemRegister) {
+            final PrintStream originalPrintStream, final Charset charset,
+            final LoggingSystemRegister loggingSystemRegister, final LoggingBackend loggingBackend) {
         super();
         this.level = level;
         this.exceptionHandlingStrategy = exceptionHandlingStrategy;
         this.originalPrintStream = originalPrintStream;
+        this.charset = charset;
         this.loggingSystemRegister = loggingSystemRegister;
+        this.loggingBackend = loggingBackend;
+    }
+
+    /**
+     * @return a power of two, so that a slot can be picked by masking, of at least four slots per processor
+     */
+    static int idleLineBuffers(final int processors) {
+        return Integer.highestOneBit(Math.max(processors, 1) * 4 - 1) << 1;
+    }
+
+    /**
+     * @return the buffer the current thread has left something in, or else an idle buffer, which is to be given
+     * back by {@link #releaseLineBuffer(LineBuffer)}
+     */
+    private LineBuffer acquireLineBuffer() {
+        final Thread currentThread = Thread.currentThread();
+        LineBuffer lineBuffer = lineBuffersInUse.get(currentThread);
+        if (lineBuffer == null) {
+            lineBuffer = takeIdleLineBuffer(currentThread);
+        }
+        lineBuffer.lock();
+        try {
+            lineBuffer.addUser();
+        } finally {
+            lineBuffer.unlock();
+        }
+        return lineBuffer;
+    }
+
+    private LineBuffer takeIdleLineBuffer(final Thread currentThread) {
+        final int first = (int) currentThread.getId();
+        for (int i = 0; i < IDLE_LINE_BUFFERS; i++) {
+            final int slot = (first + i) & (IDLE_LINE_BUFFERS - 1);
+            if (idleLineBuffers.get(slot) != null) {
+                final LineBuffer idle = idleLineBuffers.getAndSet(slot, null);
+                if (idle != null) {
+                    return idle;
+                }
+            }
+        }
+        return new LineBuffer(charset, lineBuffersInUse);
+    }
+
+    /**
+     * Gives the buffer back to be lent to other threads, unless the current thread has left something in it, or is
+     * still writing through it further up the stack. A buffer there is no free slot for is left to be garbage
+     * collected.
+     */
+    private void releaseLineBuffer(final LineBuffer lineBuffer) {
+        final boolean idle;
+        lineBuffer.lock();
+        try {
+            idle = lineBuffer.removeUser();
+        } finally {
+            lineBuffer.unlock();
+        }
+        if (idle) {
+            final int first = (int) Thread.currentThread().getId();
+            for (int i = 0; i < IDLE_LINE_BUFFERS; i++) {
+                if (idleLineBuffers.compareAndSet((first + i) & (IDLE_LINE_BUFFERS - 1), null, lineBuffer)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        final LineBuffer lineBuffer = acquireLineBuffer();
+        try {
+            if (isPrintingLoggedThrowable(lineBuffer)) {
+                return;
+            }
+            flush(lineBuffer, getCallOrigin(loggingSystemRegister));
+        } finally {
+            releaseLineBuffer(lineBuffer);
+        }
+    }
+
+    private void flush(final LineBuffer lineBuffer, final CallOrigin callOrigin) {
+        if (callOrigin.isInLoggingSystem()) {
+            writeToOriginalPrintStream(lineBuffer);
+        } else {
+            logCompleteLines(callOrigin, lineBuffer);
+        }
+    }
+
+    private void logCompleteLines(final CallOrigin callOrigin, final LineBuffer lineBuffer) {
+        final int end;
+        final boolean partialLineFollows;
+        final byte[] lines;
+        lineBuffer.lock();
+        try {
+            end = lineBuffer.endOfLastLine();
+            if (end == 0) {
+                return;
+            }
+            partialLineFollows = end < lineBuffer.size();
+            lines = lineBuffer.takeLines(end);
+        } finally {
+            lineBuffer.unlock();
+        }
+        try {
+            log(callOrigin, lineBuffer, lines, 0, end, partialLineFollows);
+        } finally {
+            lineBuffer.lock();
+            try {
+                lineBuffer.release(lines);
+            } finally {
+                lineBuffer.unlock();
+            }
+        }
     }
 
     @Override
-    public synchronized void flush() throws IOException {
+    public void write(final int b) {
+        final LineBuffer lineBuffer = acquireLineBuffer();
+        try {
+            write(lineBuffer, b);
+        } finally {
+            releaseLineBuffer(lineBuffer);
+        }
+    }
+
+    private void write(final LineBuffer lineBuffer, final int b) {
+        if (isPrintingLoggedThrowable(lineBuffer)) {
+            return;
+        }
+        final boolean lineTooLong;
+        lineBuffer.lock();
+        try {
+            if (lineBuffer.getLongLinePolicy() == null) {
+                lineBuffer.write(b);
+            } else {
+                skipRestOfLongLine(lineBuffer, b);
+            }
+            lineTooLong = lineBuffer.hasPartialLineLongerThan(maximumLineLength);
+        } finally {
+            lineBuffer.unlock();
+        }
+        if (lineTooLong) {
+            handleLongLine(lineBuffer);
+        }
+        noteActivity();
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        final LineBuffer lineBuffer = acquireLineBuffer();
+        try {
+            write(lineBuffer, b, off, len);
+        } finally {
+            releaseLineBuffer(lineBuffer);
+        }
+    }
+
+    private void write(final LineBuffer lineBuffer, final byte[] b, final int off, final int len) {
+        if (isPrintingLoggedThrowable(lineBuffer)) {
+            return;
+        }
+        final int end = off + len;
+        final boolean lineTooLong;
+        lineBuffer.lock();
+        try {
+            final int start = lineBuffer.getLongLinePolicy() == null
+                    ? off : skipRestOfLongLine(lineBuffer, b, off, end);
+            lineBuffer.write(b, start, end - start);
+            lineTooLong = lineBuffer.hasPartialLineLongerThan(maximumLineLength);
+        } finally {
+            lineBuffer.unlock();
+        }
+        if (lineTooLong) {
+            handleLongLine(lineBuffer);
+        }
+        noteActivity();
+    }
+
+    /**
+     * Applies the line overflow policy to a partial line that has grown longer than the maximum line length, once
+     * the complete lines ahead of it have been logged. The partial line may meanwhile have been drained by the
+     * shared timer, which is why it is checked again under the lock.
+     */
+    private void handleLongLine(final LineBuffer lineBuffer) {
         final CallOrigin callOrigin = getCallOrigin(loggingSystemRegister);
         if (callOrigin.isInLoggingSystem()) {
-            writeToOriginalPrintStream();
+            writeToOriginalPrintStream(lineBuffer);
+            return;
+        }
+        final LineOverflowPolicy policy = lineOverflowPolicy;
+        final int maxLength = maximumLineLength;
+        if (!lockForDelivery()) {
+            logCompleteLines(callOrigin, lineBuffer);
+            divert(callOrigin.getClassName(), StringUtils.stripEnd(takeAll(lineBuffer), " \r\n"));
+            return;
+        }
+        try {
+            logCompleteLines(callOrigin, lineBuffer);
+            if (!hasPartialLineLongerThan(lineBuffer, maxLength)) {
+                return;
+            }
+            if (policy == LineOverflowPolicy.SPLIT) {
+                logPiecesOfLongLine(callOrigin, lineBuffer, maxLength);
+            } else if (policy == LineOverflowPolicy.TRUNCATE) {
+                logStartOfLongLine(callOrigin, lineBuffer, maxLength);
+            } else {
+                passLongLineThrough(lineBuffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean hasPartialLineLongerThan(final LineBuffer lineBuffer, final int maxLength) {
+        lineBuffer.lock();
+        try {
+            return lineBuffer.hasPartialLineLongerThan(maxLength);
+        } finally {
+            lineBuffer.unlock();
+        }
+    }
+
+    /**
+     * All the pieces are taken before any is logged, so that a logging system printing as it logs them does not find
+     * the rest of the line still in the buffer.
+     */
+    private void logPiecesOfLongLine(final CallOrigin callOrigin, final LineBuffer lineBuffer, final int maxLength) {
+        final List<String> pieces = new ArrayList<String>();
+        lineBuffer.lock();
+        try {
+            do {
+                pieces.add(lineBuffer.take(maxLength));
+            } while (lineBuffer.hasPartialLineLongerThan(maxLength));
+        } finally {
+            lineBuffer.unlock();
+        }
+        for (String piece : pieces) {
+            log(callOrigin, piece);
+        }
+    }
+
+    private void logStartOfLongLine(final CallOrigin callOrigin, final LineBuffer lineBuffer, final int maxLength) {
+        final String start;
+        lineBuffer.lock();
+        try {
+            start = lineBuffer.take(maxLength);
+            lineBuffer.discard();
+            lineBuffer.setLongLinePolicy(LineOverflowPolicy.TRUNCATE);
+        } finally {
+            lineBuffer.unlock();
+        }
+        log(callOrigin, start + TRUNCATION_MARKER);
+    }
+
+    private void passLongLineThrough(final LineBuffer lineBuffer) {
+        endStackTraceOfCurrentThread();
+        lineBuffer.lock();
+        try {
+            lineBuffer.writeTo(originalPrintStream);
+            lineBuffer.setLongLinePolicy(LineOverflowPolicy.PASS_THROUGH);
+        } finally {
+            lineBuffer.unlock();
+        }
+        originalPrintStream.flush();
+    }
+
+    /**
+     * Bytes written after a line grew too long to be buffered, up to and including its line break, are discarded if
+     * the line was truncated or written to the original PrintStream if it is being passed through.
+     *
+     * @return the index from which the bytes are to be buffered
+     */
+    private int skipRestOfLongLine(final LineBuffer lineBuffer, final byte[] b, final int off, final int end) {
+        final int endOfLine = LineBuffer.endOfFirstLine(b, off, end);
+        final int endOfSkipped = endOfLine == off ? end : endOfLine;
+        if (lineBuffer.getLongLinePolicy() == LineOverflowPolicy.PASS_THROUGH) {
+            originalPrintStream.write(b, off, endOfSkipped - off);
+            originalPrintStream.flush();
+        }
+        if (endOfLine > off) {
+            lineBuffer.setLongLinePolicy(null);
+        }
+        return endOfSkipped;
+    }
+
+    private void skipRestOfLongLine(final LineBuffer lineBuffer, final int b) {
+        if (lineBuffer.getLongLinePolicy() == LineOverflowPolicy.PASS_THROUGH) {
+            originalPrintStream.write(b);
+            originalPrintStream.flush();
+        }
+        if (b == '\n') {
+            lineBuffer.setLongLinePolicy(null);
+        }
+    }
+
+    /**
+     * Writes the bytes and, if asked to, flushes them. Output from other threads cannot come in between, as it goes
+     * to buffers of their own.
+     */
+    void write(final byte[] b, final int off, final int len, final boolean flush) throws IOException {
+        if (flush) {
+            writeAndFlush(b, off, len);
         } else {
-            String bufferAsString = new String(toByteArray());
-            if (bufferAsString.endsWith("\n")) {
-                reset();
-                log(callOrigin, bufferAsString);
-            } else if (bufferAsString.contains("\n")) {
-                reset();
-                List<String> messages = Arrays.asList(bufferAsString.split("\n"));
-                List<String> messagesToLog = messages.subList(0, messages.size() - 1);
-                for (String messageToLog : messagesToLog) {
-                    log(callOrigin, messageToLog);
+            write(b, off, len);
+        }
+    }
+
+    private void writeAndFlush(final byte[] b, final int off, final int len) {
+        final LineBuffer lineBuffer = acquireLineBuffer();
+        try {
+            writeAndFlush(lineBuffer, b, off, len);
+        } finally {
+            releaseLineBuffer(lineBuffer);
+        }
+    }
+
+    private void writeAndFlush(final LineBuffer lineBuffer, final byte[] b, final int off, final int len) {
+        if (isPrintingLoggedThrowable(lineBuffer)) {
+            return;
+        }
+        final CallOrigin callOrigin = getCallOrigin(loggingSystemRegister);
+        final int end = off + len;
+        final int endOfLines = LineBuffer.endOfLastLine(b, off, end);
+        if (callOrigin.isInLoggingSystem() || endOfLines == off || lineBuffer.getLongLinePolicy() != null) {
+            write(lineBuffer, b, off, len);
+            flush(lineBuffer, callOrigin);
+        } else {
+            logLinesInPlace(callOrigin, lineBuffer, b, off, endOfLines, end);
+        }
+    }
+
+    /**
+     * Logs the complete lines in a block of output straight out of the caller's array, so that bulk output is not
+     * copied into the thread's buffer only to be taken out again. What is copied is a partial line the thread had
+     * left in its buffer together with the bytes that complete it, and a partial line left at the end of the block.
+     */
+    private void logLinesInPlace(final CallOrigin callOrigin, final LineBuffer lineBuffer, final byte[] b,
+            final int off, final int endOfLines, final int end) {
+        final boolean partialLineFollows = endOfLines < end;
+        if (!lockForDelivery()) {
+            write(lineBuffer, b, off, end - off);
+            logCompleteLines(callOrigin, lineBuffer);
+            return;
+        }
+        try {
+            logCompleteLines(callOrigin, lineBuffer);
+            final int startOfLines;
+            if (isEmpty(lineBuffer)) {
+                startOfLines = off;
+            } else if (partialLineFollows) {
+                startOfLines = LineBuffer.endOfFirstLine(b, off, end);
+                write(lineBuffer, b, off, startOfLines - off);
+                logCompleteLines(callOrigin, lineBuffer);
+            } else {
+                write(lineBuffer, b, off, end - off);
+                logCompleteLines(callOrigin, lineBuffer);
+                return;
+            }
+            log(callOrigin, lineBuffer, b, startOfLines, endOfLines, partialLineFollows);
+            if (partialLineFollows) {
+                write(lineBuffer, b, endOfLines, end - endOfLines);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isEmpty(final LineBuffer lineBuffer) {
+        lineBuffer.lock();
+        try {
+            return lineBuffer.size() == 0;
+        } finally {
+            lineBuffer.unlock();
+        }
+    }
+
+    /**
+     * Logs a Throwable, reported by the agent as having its stack trace printed to this stream, as a single event,
+     * and discards the text of that stack trace as the current thread writes it.
+     *
+     * @return false if the Throwable was not logged, and so its stack trace should be handled as text as usual
+     */
+    boolean logThrowable(final Throwable throwable) {
+        final CallOrigin callOrigin = getCallOrigin(loggingSystemRegister);
+        if (callOrigin.isInLoggingSystem()) {
+            return false;
+        }
+        final LineBuffer lineBuffer = acquireLineBuffer();
+        try {
+            return logThrowable(callOrigin, lineBuffer, throwable);
+        } finally {
+            releaseLineBuffer(lineBuffer);
+        }
+    }
+
+    private boolean logThrowable(final CallOrigin callOrigin, final LineBuffer lineBuffer, final Throwable throwable) {
+        if (!lockForDelivery()) {
+            return false;
+        }
+        try {
+            final String partialLine = StringUtils.stripEnd(takeAll(lineBuffer), " \r\n");
+            endStackTraceOfCurrentThread();
+            if (partialLine.length() > 0 && !loggingBackend.log(level, callOrigin.getClassName(), partialLine)) {
+                originalPrintStream.println(partialLine);
+            }
+            if (!loggingBackend.logThrowable(level, callOrigin.getClassName(), throwable)) {
+                return false;
+            }
+            loggingBackend.getExceptionStatistics().record(throwable.getClass().getName(), callOrigin.getClassName());
+        } finally {
+            lock.unlock();
+        }
+        setLoggedThrowable(lineBuffer, throwable);
+        return true;
+    }
+
+    private boolean isPrintingLoggedThrowable(final LineBuffer lineBuffer) {
+        final Throwable loggedThrowable = lineBuffer.getLoggedThrowable();
+        if (loggedThrowable == null) {
+            return false;
+        }
+        if (ThrowableBeingPrinted.get() == loggedThrowable) {
+            return true;
+        }
+        setLoggedThrowable(lineBuffer, null);
+        return false;
+    }
+
+    private static void setLoggedThrowable(final LineBuffer lineBuffer, final Throwable throwable) {
+        lineBuffer.lock();
+        try {
+            lineBuffer.setLoggedThrowable(throwable);
+        } finally {
+            lineBuffer.unlock();
+        }
+    }
+
+    private static String takeAll(final LineBuffer lineBuffer) {
+        lineBuffer.lock();
+        try {
+            return lineBuffer.takeAll();
+        } finally {
+            lineBuffer.unlock();
+        }
+    }
+
+    /**
+     * Ensures that whatever is left pending - a partial line, or a stack trace the exception handling strategy may
+     * be buffering - is flushed by the shared timer if nothing more is written for the idle flush interval.
+     */
+    private void noteActivity() {
+        lastActivity = System.nanoTime();
+        if (!idleFlushScheduled.get() && idleFlushInterval > 0 && idleFlushScheduled.compareAndSet(false, true)) {
+            SharedTimer.schedule(idleFlush, idleFlushInterval, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flushIfIdle() {
+        final long interval = idleFlushInterval;
+        final long idleFor = System.nanoTime() - lastActivity;
+        if (interval > 0 && idleFor < interval) {
+            SharedTimer.schedule(idleFlush, interval - idleFor, TimeUnit.NANOSECONDS);
+        } else {
+            idleFlushScheduled.set(false);
+            drainIfPending();
+        }
+    }
+
+    /**
+     * The shared timer does not wait for a thread stuck delivering to SLF4J, but tries again after another interval.
+     */
+    private void drainIfPending() {
+        if (!lock.tryLock()) {
+            noteActivity();
+            return;
+        }
+        try {
+            if (stackTracePrinter != null || hasPartialLines()) {
+                drain();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasPartialLines() {
+        for (LineBuffer lineBuffer : lineBuffersInUse.values()) {
+            lineBuffer.lock();
+            try {
+                if (lineBuffer.size() > 0) {
+                    return true;
                 }
-                String lastMessage = messages.get(messages.size() - 1);
-                write(lastMessage.getBytes());
+            } finally {
+                lineBuffer.unlock();
             }
         }
+        return false;
     }
 
-    private void writeToOriginalPrintStream() throws IOException {
-        exceptionHandlingStrategy.notifyNotStackTrace();
+    private void writeToOriginalPrintStream(final LineBuffer lineBuffer) {
+        if (lockForDelivery()) {
+            try {
+                endStackTraceOfCurrentThread();
+            } finally {
+                lock.unlock();
+            }
+        }
         warnAboutPerformance();
-        writeTo(originalPrintStream);
+        lineBuffer.lock();
+        try {
+            lineBuffer.writeTo(originalPrintStream);
+        } finally {
+            lineBuffer.unlock();
+        }
         originalPrintStream.flush();
-        reset();
     }
 
     private static final AtomicBoolean warned = new AtomicBoolean(false);
@@ -71,16 +621,60 @@ class LoggingOutputStream extends ByteArrayOutputStream {
         }
     }
 
-    private void log(final CallOrigin callOrigin, String bufferAsString) {
-        String valueToLog = StringUtils.stripEnd(bufferAsString, " \r\n");
+    /**
+     * Text that ends with a line break is logged as a single message, even if it spans several lines; if a partial
+     * line was left behind it, each of its lines is logged separately. Lines are found and trimmed by index, so the
+     * only objects made are the messages logged and, for lines in a caller's array, a view to search it through.
+     */
+    private void log(final CallOrigin callOrigin, final LineBuffer lineBuffer, final byte[] lines, final int start,
+            final int end, final boolean partialLineFollows) {
+        if (!lockForDelivery()) {
+            divert(callOrigin, lineBuffer, lines, start, end);
+            return;
+        }
         try {
-            if (valueToLog.length() > 0) {
-                if (callOrigin.isPrintingStackTrace()) {
-                    exceptionHandlingStrategy.handleExceptionLine(valueToLog, org.slf4j.LoggerFactory.getLogger(callOrigin.getClassName()));
-                } else {
-                    exceptionHandlingStrategy.notifyNotStackTrace();
-                    LoggerFactory.getLogger(callOrigin.getClassName()).log(level, valueToLog);
+            if (partialLineFollows) {
+                final ByteBuffer words = lineBuffer.wordsOf(lines);
+                int startOfLine = start;
+                int endOfLine = LineBuffer.endOfFirstLine(words, startOfLine, end);
+                while (endOfLine > startOfLine) {
+                    log(callOrigin, lineBuffer, lines, startOfLine, endOfLine - 1);
+                    startOfLine = endOfLine;
+                    endOfLine = LineBuffer.endOfFirstLine(words, startOfLine, end);
                 }
+            } else {
+                log(callOrigin, lineBuffer, lines, start, end);
+            }
+            if (stackTracePrinter != null) {
+                noteActivity();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void log(final CallOrigin callOrigin, final LineBuffer lineBuffer, final byte[] bytes, final int start,
+            final int end) {
+        final int endOfText = LineBuffer.endOfText(bytes, start, end);
+        if (endOfText > start) {
+            log(callOrigin, lineBuffer.decode(bytes, start, endOfText));
+        }
+    }
+
+    private void log(final CallOrigin callOrigin, final String valueToLog) {
+        try {
+            final boolean delivered;
+            if (callOrigin.isPrintingStackTrace()) {
+                final boolean continuingStackTrace = startStackTraceOfCurrentThread();
+                recordIfHeader(continuingStackTrace, callOrigin.getClassName(), valueToLog);
+                delivered = loggingBackend.logStackTraceLine(
+                        exceptionHandlingStrategy, level, callOrigin.getClassName(), valueToLog, originalPrintStream);
+            } else {
+                endStackTraceOfCurrentThread();
+                delivered = loggingBackend.log(level, callOrigin.getClassName(), valueToLog);
+            }
+            if (!delivered) {
+                originalPrintStream.println(valueToLog);
             }
         } catch (StackOverflowError stackOverflowError) {
             throw new IllegalStateException("Logging system " + org.slf4j.LoggerFactory.getLogger(Object.class).getClass() +
@@ -89,13 +683,162 @@ class LoggingOutputStream extends ByteArrayOutputStream {
         }
     }
 
-    protected void finalize() throws Throwable {
-        super.finalize();
-        String bufferAsString = StringUtils.stripEnd(new String(toByteArray()), " \r\n");
-        if (bufferAsString.length() > 0) {
-            Logger logger = LoggerFactory.getLogger(SysOutOverSLF4J.class);
-            logger.log(level, bufferAsString);
+    /**
+     * A stack trace line printed by a thread other than the one whose trace is being given to the exception handling
+     * strategy ends that trace. Threads printing stack traces to the same PrintStream already wait for one another,
+     * as Throwable.printStackTrace holds the stream's monitor while it prints.
+     *
+     * @return true if the current thread's stack trace was already being given to the strategy
+     */
+    private boolean startStackTraceOfCurrentThread() {
+        final Thread currentThread = Thread.currentThread();
+        if (stackTracePrinter == currentThread) {
+            return true;
+        }
+        if (stackTracePrinter != null) {
+            exceptionHandlingStrategy.notifyNotStackTrace();
+        }
+        stackTracePrinter = currentThread;
+        return false;
+    }
+
+    /**
+     * Tells the exception handling strategy that what it is given is not a stack trace, unless it is in the middle of
+     * a stack trace another thread is printing.
+     */
+    private void endStackTraceOfCurrentThread() {
+        if (stackTracePrinter == null || stackTracePrinter == Thread.currentThread()) {
+            endStackTrace();
+        }
+    }
+
+    private void endStackTrace() {
+        exceptionHandlingStrategy.notifyNotStackTrace();
+        stackTracePrinter = null;
+    }
+
+    /**
+     * The first line of a stack trace is the first line printed while printing it, or a line at the left margin
+     * following the frames of a previous trace; a "Caused by: " line or a multi-line message continues the trace.
+     */
+    private void recordIfHeader(final boolean continuingStackTrace, final String loggerName, final String line) {
+        if (line.startsWith("\t")) {
+            stackTraceFramesSeen = true;
+            return;
+        }
+        if (!line.startsWith("Caused by: ") && (!continuingStackTrace || stackTraceFramesSeen)) {
+            loggingBackend.getExceptionStatistics().record(ExceptionStatistics.exceptionClassOf(line), loggerName);
+        }
+        stackTraceFramesSeen = false;
+    }
+
+    /**
+     * Takes the lock that lines are logged under, waiting for a thread that holds it no longer than the watchdog
+     * allows a delivery to take, and not at all once the watchdog is holding delivery back. A wait that runs out while
+     * the holder is delivering trips the watchdog. Threads printing heavily enough to queue up for that long are
+     * diverted too, though nothing is stuck.
+     *
+     * @return false if the lock was not taken and output should be diverted rather than logged
+     */
+    private boolean lockForDelivery() {
+        if (lock.tryLock()) {
+            return true;
         }
-        reset();
+        final BackendWatchdog watchdog = loggingBackend.getWatchdog();
+        if (watchdog.isHoldingBack()) {
+            return false;
+        }
+        try {
+            if (lock.tryLock(watchdog.getLatencyThresholdMillis(), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        watchdog.isHoldingBack();
+        return false;
+    }
+
+    /**
+     * Output that could not wait for the lock is journalled or printed to the original console as it is, without
+     * going through the exception handling strategy, whose state is guarded by the lock. It is decoded under the
+     * line buffer's lock, as the decoder is otherwise only used under the lock that was not taken.
+     */
+    private void divert(final CallOrigin callOrigin, final LineBuffer lineBuffer, final byte[] bytes, final int start,
+            final int end) {
+        final String text;
+        lineBuffer.lock();
+        try {
+            text = lineBuffer.decode(bytes, start, LineBuffer.endOfText(bytes, start, end));
+        } finally {
+            lineBuffer.unlock();
+        }
+        divert(callOrigin.getClassName(), text);
+    }
+
+    private void divert(final String loggerName, final String text) {
+        if (text.length() > 0 && !loggingBackend.divert(level, loggerName, text)) {
+            originalPrintStream.println(text);
+        }
+    }
+
+    /**
+     * Logs any partial line left in the buffer of any thread, so that it is not lost if nothing more is ever written
+     * to this stream. Partial lines are left where they are if a thread is stuck delivering to SLF4J.
+     */
+    void drain() {
+        if (!lockForDelivery()) {
+            return;
+        }
+        try {
+            endStackTrace();
+            for (LineBuffer lineBuffer : lineBuffersInUse.values()) {
+                final String partialLine = StringUtils.stripEnd(takeAll(lineBuffer), " \r\n");
+                if (partialLine.length() > 0 && !loggingBackend.log(level, SysOutOverSLF4J.class.getName(), partialLine)) {
+                    originalPrintStream.println(partialLine);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Output is decoded with the charset that the {@link LoggingPrintStream} wrapping this stream encodes text with,
+     * and that other code writing bytes to System.out and System.err is taken to use. Lines are found by looking for
+     * the byte of '\n', which is only right for charsets that encode it as that byte alone, as ASCII does; UTF-8 is
+     * used in place of a charset that does not.
+     */
+    static Charset charsetFor(final Charset charset) {
+        return Arrays.equals(LINE_BREAK, "\n".getBytes(charset)) ? charset : UTF_8;
+    }
+
+    static void setMaximumLineLength(final int maximumLineLength, final LineOverflowPolicy lineOverflowPolicy) {
+        if (maximumLineLength < MINIMUM_LINE_LENGTH) {
+            throw new IllegalArgumentException("maximumLineLength must be at least " + MINIMUM_LINE_LENGTH + "; was "
+                    + maximumLineLength);
+        }
+        if (lineOverflowPolicy == null) {
+            throw new IllegalArgumentException("lineOverflowPolicy must not be null");
+        }
+        LoggingOutputStream.lineOverflowPolicy = lineOverflowPolicy;
+        LoggingOutputStream.maximumLineLength = maximumLineLength;
+    }
+
+    static int getMaximumLineLength() {
+        return maximumLineLength;
+    }
+
+    static LineOverflowPolicy getLineOverflowPolicy() {
+        return lineOverflowPolicy;
+    }
+
+    static void setIdleFlushInterval(final long interval, final TimeUnit unit) {
+        idleFlushInterval = unit.toNanos(interval);
+    }
+
+    static long getIdleFlushInterval(final TimeUnit unit) {
+        return unit.convert(idleFlushInterval, TimeUnit.NANOSECONDS);
     }
 }
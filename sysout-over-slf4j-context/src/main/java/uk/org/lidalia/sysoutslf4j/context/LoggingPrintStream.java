@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Formatter;
+import java.util.Locale;
+
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
+
+/**
+ * The PrintStream that System.out and System.err output from a context is sent to. If the agent reports that the
+ * Throwable passed to println is the one whose stack trace is being printed, that Throwable is logged as it is
+ * rather than its stack trace being logged as text.<br>
+ *
+ * A PrintStream subclass holds its own monitor while it writes and flushes, which for this one means while the
+ * logging system is called; that pins a virtual thread to its carrier thread for as long as an appender blocks. So
+ * text is converted to bytes here and handed to the {@link LoggingOutputStream} in a single call, leaving it to do
+ * the locking. Text is encoded in the charset the LoggingOutputStream decodes with.
+ */
+class LoggingPrintStream extends PrintStream {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final LoggingOutputStream loggingOutputStream;
+    private final Charset charset;
+
+    LoggingPrintStream(final LoggingOutputStream loggingOutputStream, final Charset charset) {
+        super(loggingOutputStream, true);
+        this.loggingOutputStream = loggingOutputStream;
+        this.charset = charset;
+    }
+
+    @Override
+    public void println(final Object object) {
+        if (!(object instanceof Throwable) || object != ThrowableBeingPrinted.get()
+                || !loggingOutputStream.logThrowable((Throwable) object)) {
+            printLine(String.valueOf(object));
+        }
+    }
+
+    @Override
+    public void println(final String string) {
+        printLine(String.valueOf(string));
+    }
+
+    @Override
+    public void println() {
+        printLine("");
+    }
+
+    @Override
+    public void println(final boolean bool) {
+        printLine(String.valueOf(bool));
+    }
+
+    @Override
+    public void println(final char character) {
+        printLine(String.valueOf(character));
+    }
+
+    @Override
+    public void println(final char[] charArray) {
+        printLine(String.valueOf(charArray));
+    }
+
+    @Override
+    public void println(final double doub) {
+        printLine(String.valueOf(doub));
+    }
+
+    @Override
+    public void println(final float floa) {
+        printLine(String.valueOf(floa));
+    }
+
+    @Override
+    public void println(final int integer) {
+        printLine(String.valueOf(integer));
+    }
+
+    @Override
+    public void println(final long lon) {
+        printLine(String.valueOf(lon));
+    }
+
+    @Override
+    public void print(final String string) {
+        printText(String.valueOf(string));
+    }
+
+    @Override
+    public void print(final Object object) {
+        printText(String.valueOf(object));
+    }
+
+    @Override
+    public void print(final boolean bool) {
+        printText(String.valueOf(bool));
+    }
+
+    @Override
+    public void print(final char character) {
+        printText(String.valueOf(character));
+    }
+
+    @Override
+    public void print(final char[] charArray) {
+        printText(String.valueOf(charArray));
+    }
+
+    @Override
+    public void print(final double doubl) {
+        printText(String.valueOf(doubl));
+    }
+
+    @Override
+    public void print(final float floa) {
+        printText(String.valueOf(floa));
+    }
+
+    @Override
+    public void print(final int integer) {
+        printText(String.valueOf(integer));
+    }
+
+    @Override
+    public void print(final long lon) {
+        printText(String.valueOf(lon));
+    }
+
+    @Override
+    public PrintStream format(final String format, final Object... args) {
+        printText(new Formatter().format(format, args).toString());
+        return this;
+    }
+
+    @Override
+    public PrintStream format(final Locale locale, final String format, final Object... args) {
+        printText(new Formatter(locale).format(format, args).toString());
+        return this;
+    }
+
+    @Override
+    public void write(final int integer) {
+        write(new byte[] {(byte) integer}, integer == '\n');
+    }
+
+    @Override
+    public void write(final byte[] buf, final int off, final int len) {
+        try {
+            loggingOutputStream.write(buf, off, len, true);
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            loggingOutputStream.flush();
+        } catch (IOException e) {
+            setError();
+        }
+    }
+
+    private void printLine(final String text) {
+        write((text + LINE_SEPARATOR).getBytes(charset), true);
+    }
+
+    private void printText(final String text) {
+        write(text.getBytes(charset), text.indexOf('\n') >= 0);
+    }
+
+    private void write(final byte[] bytes, final boolean flush) {
+        try {
+            loggingOutputStream.write(bytes, 0, bytes.length, flush);
+        } catch (IOException e) {
+            setError();
+        }
+    }
+}
@@ -24,20 +24,25 @@
 
 package uk.org.lidalia.sysoutslf4j.context;
 
-import java.util.Collections;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * The system jar holds the PrintStreams registered with it only weakly, so that it never keeps a context's
+ * classloader alive; this keeps each of them reachable for as long as it is registered. Objects are held against a
+ * key, such as the system output they are registered with, and holding another object against the same key
+ * releases the first.
+ */
 final class ReferenceHolder {
 
-    private static final Map<Object, Object> REFERENCES = Collections.synchronizedMap(new IdentityHashMap<Object, Object>());
+    private static final ConcurrentMap<Object, Object> REFERENCES = new ConcurrentHashMap<Object, Object>();
 
-    static void preventGarbageCollectionForLifeOfClassLoader(final Object objectToBeMaintained) {
-        REFERENCES.put(objectToBeMaintained, objectToBeMaintained);
+    static void holdUntilReleased(final Object key, final Object objectToBeMaintained) {
+        REFERENCES.put(key, objectToBeMaintained);
     }
 
-    static void allowGarbageCollection(final Object objectBeingMaintained) {
-        REFERENCES.remove(objectBeingMaintained);
+    static void release(final Object key) {
+        REFERENCES.remove(key);
     }
 
     private ReferenceHolder() {
@@ -24,8 +24,21 @@
 
 package uk.org.lidalia.sysoutslf4j.context;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +48,8 @@ import uk.org.lidalia.slf4jext.Level;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategyFactory;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.LogPerLineExceptionHandlingStrategyFactory;
+import uk.org.lidalia.sysoutslf4j.context.journal.Journal;
+import uk.org.lidalia.sysoutslf4j.system.PerContextDrains;
 import uk.org.lidalia.sysoutslf4j.system.PerContextSystemOutput;
 
 import static uk.org.lidalia.lang.Exceptions.throwUnchecked;
@@ -45,8 +60,10 @@ import static uk.org.lidalia.lang.Exceptions.throwUnchecked;
  * custom {@link uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream}s that redirect to a logging system
  * via SLF4J.
  *
- * Synchronizes on System.class to ensure proper synchronization even if this class is loaded
- * by multiple classloaders.
+ * Each context loads its own copy of this class, so methods that change the state of the current context synchronize
+ * on SysOutOverSLF4J.class. Changes to System.out and System.err themselves are guarded by locks in the shared
+ * {@link PerContextSystemOutput}s, so contexts in different classloaders cannot interfere with each other, and no
+ * context waits on another's monitor.
  *
  * @author Robert Elliot
  * @see uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream
@@ -55,12 +72,24 @@ public final class SysOutOverSLF4J {
 
     private static final Logger LOG = LoggerFactory.getLogger(SysOutOverSLF4J.class);
     private static final LoggingSystemRegister LOGGING_SYSTEM_REGISTER = new LoggingSystemRegister();
+    private static final LoggingBackend LOGGING_BACKEND = new LoggingBackend();
+    private static final long DEFAULT_FLUSH_TIMEOUT_MILLIS = 5000;
+    private static final String MBEAN_DOMAIN = "uk.org.lidalia.sysoutslf4j";
+    private static final ConcurrentMap<PerContextSystemOutput, LoggingOutputStream> LOGGING_OUTPUT_STREAMS =
+            new ConcurrentHashMap<PerContextSystemOutput, LoggingOutputStream>();
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            drainThisContext();
+        }
+    };
+    private static CaptureContext captureContext; // guarded by SysOutOverSLF4J.class
 
     /**
      * If they have not previously been wrapped, wraps the System.out and
      * System.err PrintStreams in an {@link uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream} and registers
      * SLF4J for the current context.<br>
-     * Can be called any number of times, and is synchronized on System.class.<br>
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.<br>
      * Uses the {@link uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.LogPerLineExceptionHandlingStrategyFactory}
      * for handling printlns coming from Throwable.printStackTrace().<br>
      * Logs at info level for System.out and at error level for System.err.
@@ -73,7 +102,7 @@ public final class SysOutOverSLF4J {
      * If they have not previously been wrapped, wraps the System.out and
      * System.err PrintStreams in an {@link uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream} and registers
      * SLF4J for the current context's classloader.<br>
-     * Can be called any number of times, and is synchronized on System.class.<br>
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.<br>
      * Uses the LogPerLineExceptionHandlingStrategy for handling printlns coming from
      * Throwable.printStackTrace().
      *
@@ -88,7 +117,7 @@ public final class SysOutOverSLF4J {
      * If they have not previously been wrapped, wraps the System.out and
      * System.err PrintStreams in an {@link uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream} and registers
      * SLF4J for the current context's classloader.<br>
-     * Can be called any number of times, and is synchronized on System.class.
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.
      * Logs at info level for System.out and at error level for System.err.
      *
      * @param exceptionHandlingStrategyFactory
@@ -103,7 +132,7 @@ public final class SysOutOverSLF4J {
      * If they have not previously been wrapped, wraps the System.out and
      * System.err PrintStreams in an {@link uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream} and registers
      * SLF4J for the current context's classloader.<br>
-     * Can be called any number of times, and is synchronized on System.class.<br>
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.<br>
      *
      * @param outLevel The SLF4J {@link Level} at which calls to System.out should be logged
      * @param errLevel The SLF4J {@link Level} at which calls to System.err should be logged
@@ -113,12 +142,13 @@ public final class SysOutOverSLF4J {
      */
     public static void sendSystemOutAndErrToSLF4J(final Level outLevel, final Level errLevel,
             final ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory) throws SysOutOverSLF4JSystemJarNotPresentException {
-        synchronized (System.class) {
+        synchronized (SysOutOverSLF4J.class) {
             doWithSystemClasses(new Task() {
                 @Override
                 public void perform() {
                     registerNewLoggerAppender(exceptionHandlingStrategyFactory, PerContextSystemOutput.OUT, outLevel);
                     registerNewLoggerAppender(exceptionHandlingStrategyFactory, PerContextSystemOutput.ERR, errLevel);
+                    PerContextDrains.register(DRAIN);
                     LOG.info("Redirected System.out and System.err to SLF4J for this context");
                 }
             });
@@ -128,35 +158,274 @@ public final class SysOutOverSLF4J {
     private static void registerNewLoggerAppender(
             final ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory,
             final PerContextSystemOutput perContextSystemOutput, final Level logLevel) {
-        final PrintStream slf4jPrintStream = buildPrintStream(exceptionHandlingStrategyFactory, perContextSystemOutput, logLevel);
-        ReferenceHolder.preventGarbageCollectionForLifeOfClassLoader(slf4jPrintStream);
+        final Charset charset = LoggingOutputStream.charsetFor(Charset.defaultCharset());
+        final LoggingOutputStream loggingOutputStream = buildLoggingOutputStream(exceptionHandlingStrategyFactory, perContextSystemOutput, logLevel, charset);
+        final PrintStream slf4jPrintStream = new LoggingPrintStream(loggingOutputStream, charset);
         perContextSystemOutput.registerPrintStreamForThisContext(slf4jPrintStream);
+        ReferenceHolder.holdUntilReleased(perContextSystemOutput, slf4jPrintStream);
+        captureContext().setPrintStream(perContextSystemOutput, slf4jPrintStream);
+        final LoggingOutputStream replaced = LOGGING_OUTPUT_STREAMS.put(perContextSystemOutput, loggingOutputStream);
+        if (replaced != null) {
+            replaced.drain();
+        }
     }
 
-    private static PrintStream buildPrintStream(
+    private static LoggingOutputStream buildLoggingOutputStream(
             final ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory,
-            final PerContextSystemOutput perContextSystemOutput, final Level logLevel) {
+            final PerContextSystemOutput perContextSystemOutput, final Level logLevel, final Charset charset) {
         final PrintStream originalPrintStream = perContextSystemOutput.getOriginalPrintStream();
         final ExceptionHandlingStrategy exceptionHandlingStrategy = exceptionHandlingStrategyFactory.makeExceptionHandlingStrategy(logLevel, originalPrintStream);
-        return new PrintStream(new LoggingOutputStream(logLevel, exceptionHandlingStrategy, originalPrintStream, LOGGING_SYSTEM_REGISTER), true);
+        return new LoggingOutputStream(logLevel, exceptionHandlingStrategy, originalPrintStream,
+                charset, LOGGING_SYSTEM_REGISTER, LOGGING_BACKEND);
+    }
+
+    /**
+     * Gives access to this context as a {@link CaptureContext}, which can be bound to threads that print on its
+     * behalf but do not have its classloader as their context classloader, such as those of a pool shared between
+     * contexts. It can be obtained before System.out and System.err are sent to SLF4J, and stays valid across
+     * stopping and sending them again.
+     *
+     * @return the capture context of this context
+     */
+    public static CaptureContext getCaptureContext() throws SysOutOverSLF4JSystemJarNotPresentException {
+        return doWithSystemClasses(new Callable<CaptureContext>() {
+            @Override
+            public CaptureContext call() {
+                return captureContext();
+            }
+        });
+    }
+
+    private static CaptureContext captureContext() {
+        synchronized (SysOutOverSLF4J.class) {
+            if (captureContext == null) {
+                captureContext = new CaptureContext();
+            }
+            return captureContext;
+        }
+    }
+
+    /**
+     * Journals output from this context that SLF4J fails to accept, by throwing an exception, to memory mapped files
+     * in the given directory rather than losing it. Journalled output is replayed into SLF4J, ahead of any newer
+     * output, as soon as SLF4J accepts events again.<br>
+     * Anything journalled in the directory by a previous run and never replayed, for instance because the JVM
+     * crashed, is replayed immediately.<br>
+     * Each context must use its own directory. The journal is closed by
+     * {@link SysOutOverSLF4J#stopSendingSystemOutAndErrToSLF4J}.
+     *
+     * @param directory The directory in which to keep the journal; created if it does not exist
+     * @throws IOException if the journal cannot be opened
+     */
+    public static void journalUndeliverableOutputTo(final File directory) throws IOException {
+        final Journal journal = Journal.open(directory);
+        final int replayed = journal.replay();
+        if (replayed > 0) {
+            LOG.info("Replayed {} events journalled by a previous run from {}", replayed, directory);
+        }
+        LOGGING_BACKEND.setJournal(journal);
+    }
+
+    /**
+     * Gives access to the watchdog that diverts output from this context away from SLF4J, to the journal or the
+     * original console, while the logging system is stalled or failing. It can be used to read the watchdog's state
+     * and to tune its thresholds, and is a valid MXBean should the caller wish to register it.
+     *
+     * @return the watchdog guarding delivery to SLF4J in this context
+     */
+    public static BackendWatchdogMXBean getBackendWatchdog() {
+        return LOGGING_BACKEND.getWatchdog();
+    }
+
+    /**
+     * Gives access to the index of exceptions whose stack traces have been printed to System.out and System.err in
+     * this context, counted by exception class and by the class that printed them. It is a valid MXBean should the
+     * caller wish to register it.
+     *
+     * @return the exception statistics of this context
+     */
+    public static ExceptionStatisticsMXBean getExceptionStatistics() {
+        return LOGGING_BACKEND.getExceptionStatistics();
+    }
+
+    /**
+     * Registers the backend watchdog and the exception statistics of this context with the platform MBeanServer,
+     * in the domain uk.org.lidalia.sysoutslf4j with types BackendWatchdog and ExceptionStatistics and a context key
+     * identifying this context, and the counts of the contexts registered for each output, which are shared by every
+     * context, in the domain uk.org.lidalia.sysoutslf4j.system with type RegisteredContexts.<br>
+     * A registered MBean of a context prevents its classloader being garbage collected, so this context's are unregistered by
+     * {@link #stopSendingSystemOutAndErrToSLF4J()}, or can be by {@link #unregisterMBeans()}.<br>
+     * Can be called any number of times.
+     *
+     * @throws JMException if the platform MBeanServer refuses the registration
+     */
+    public static void registerMBeans() throws JMException {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        registerMBean(mBeanServer, LOGGING_BACKEND.getWatchdog(), objectName("BackendWatchdog"));
+        registerMBean(mBeanServer, LOGGING_BACKEND.getExceptionStatistics(), objectName("ExceptionStatistics"));
+        PerContextSystemOutput.registerMBeans(mBeanServer);
+    }
+
+    /**
+     * Unregisters the MBeans registered by {@link #registerMBeans()}, if they are registered.<br>
+     * Can be called any number of times.
+     *
+     * @throws JMException if the platform MBeanServer refuses to unregister them
+     */
+    public static void unregisterMBeans() throws JMException {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        unregisterMBean(mBeanServer, objectName("BackendWatchdog"));
+        unregisterMBean(mBeanServer, objectName("ExceptionStatistics"));
+    }
+
+    private static ObjectName objectName(final String type) throws JMException {
+        return new ObjectName(MBEAN_DOMAIN + ":type=" + type
+                + ",context=" + Integer.toHexString(System.identityHashCode(SysOutOverSLF4J.class.getClassLoader())));
+    }
+
+    private static void registerMBean(final MBeanServer mBeanServer, final Object mBean, final ObjectName name)
+            throws JMException {
+        try {
+            mBeanServer.registerMBean(mBean, name);
+        } catch (InstanceAlreadyExistsException alreadyRegistered) {
+            // nothing to do
+        }
+    }
+
+    private static void unregisterMBean(final MBeanServer mBeanServer, final ObjectName name) throws JMException {
+        try {
+            mBeanServer.unregisterMBean(name);
+        } catch (InstanceNotFoundException notRegistered) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Delivers output that every context using sysout-over-slf4j is still holding on to: partial lines that have not
+     * yet been terminated by a newline and events waiting in a journal. Waits at most five seconds.<br>
+     * The same happens automatically when the JVM shuts down.
+     *
+     * @return true if all output was delivered within the timeout
+     */
+    public static boolean flushAll() throws SysOutOverSLF4JSystemJarNotPresentException {
+        return flushAll(DEFAULT_FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers output that every context using sysout-over-slf4j is still holding on to: partial lines that have not
+     * yet been terminated by a newline and events waiting in a journal.
+     *
+     * @param timeout The maximum time to wait for output to be delivered
+     * @param unit The unit of the timeout
+     * @return true if all output was delivered within the timeout
+     */
+    public static boolean flushAll(final long timeout, final TimeUnit unit) throws SysOutOverSLF4JSystemJarNotPresentException {
+        return doWithSystemClasses(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return PerContextDrains.drainAll(timeout, unit);
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum time the JVM's shutdown is held up delivering output that contexts are still holding on to.
+     * Defaults to five seconds. Applies to all contexts.
+     *
+     * @param timeout The maximum time to wait for output to be delivered on shutdown
+     * @param unit The unit of the timeout
+     */
+    public static void setShutdownFlushTimeout(final long timeout, final TimeUnit unit) throws SysOutOverSLF4JSystemJarNotPresentException {
+        doWithSystemClasses(new Task() {
+            @Override
+            public void perform() {
+                PerContextDrains.setShutdownTimeout(timeout, unit);
+            }
+        });
+    }
+
+    /**
+     * Sets how long a partial line not yet terminated by a newline, or a stack trace that the exception handling
+     * strategy may be buffering, is held back once nothing more is printed before it is logged anyway.
+     * Defaults to one second; zero or less disables flushing on idle. Applies to the current context.
+     *
+     * @param interval The idle interval after which pending output is logged
+     * @param unit The unit of the interval
+     */
+    public static void setIdleFlushInterval(final long interval, final TimeUnit unit) {
+        LoggingOutputStream.setIdleFlushInterval(interval, unit);
+    }
+
+    /**
+     * Sets how many bytes of a line not yet terminated by a newline are buffered before the line is handled as the
+     * policy says rather than buffered further. Defaults to 64 KiB and {@link LineOverflowPolicy#SPLIT}. Applies to
+     * the current context.
+     *
+     * @param maximumLineLength The most bytes of a line that are buffered; at least 4, so that it holds a character
+     * @param policy What is done with a line once it is longer
+     */
+    public static void setMaximumLineLength(final int maximumLineLength, final LineOverflowPolicy policy) {
+        LoggingOutputStream.setMaximumLineLength(maximumLineLength, policy);
+    }
+
+    private static void drainThisContext() {
+        for (LoggingOutputStream loggingOutputStream : LOGGING_OUTPUT_STREAMS.values()) {
+            loggingOutputStream.drain();
+        }
+        LOGGING_BACKEND.flushJournal();
     }
 
     /**
      * Stops using SLF4J for calls to System.out and System.err in the current context.
      * Has no effect on any other contexts that may be using sysout-over-slf4j.<br>
-     * Can be called any number of times, and is synchronized on System.class.
+     * Any partial line not yet terminated by a newline is logged, and any MBeans registered by
+     * {@link #registerMBeans()} are unregistered.<br>
+     * Once no context is using sysout-over-slf4j the original System.out and System.err are put back, so that output
+     * no longer pays for it; they are wrapped again the next time a context sends them to SLF4J.<br>
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.
      */
     public static void stopSendingSystemOutAndErrToSLF4J() throws SysOutOverSLF4JSystemJarNotPresentException {
-        synchronized (System.class) {
+        synchronized (SysOutOverSLF4J.class) {
             doWithSystemClasses(new Task() {
                 @Override
                 public void perform() {
                     for (PerContextSystemOutput systemOutput : PerContextSystemOutput.values()) {
                         systemOutput.deregisterPrintStreamForThisContext();
+                        ReferenceHolder.release(systemOutput);
+                        captureContext().setPrintStream(systemOutput, null);
                     }
+                    PerContextDrains.deregister(DRAIN);
                 }
             });
         }
+        drainDeregisteredStreams();
+        closeJournal();
+        quietlyUnregisterMBeans();
+    }
+
+    private static void quietlyUnregisterMBeans() {
+        try {
+            unregisterMBeans();
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister MBeans", e);
+        }
+    }
+
+    private static void drainDeregisteredStreams() {
+        for (PerContextSystemOutput systemOutput : LOGGING_OUTPUT_STREAMS.keySet()) {
+            final LoggingOutputStream deregistered = LOGGING_OUTPUT_STREAMS.remove(systemOutput);
+            if (deregistered != null) {
+                deregistered.drain();
+            }
+        }
+    }
+
+    private static void closeJournal() {
+        try {
+            LOGGING_BACKEND.setJournal(null);
+        } catch (IOException e) {
+            LOG.warn("Unable to close journal", e);
+        }
     }
 
     /**
@@ -164,10 +433,10 @@ public final class SysOutOverSLF4J {
      * allowing direct access to the console again.<br>
      * This will stop all contexts in the JVM from using sysout-over-slf4j. It is not necessary to call
      * {@link SysOutOverSLF4J#stopSendingSystemOutAndErrToSLF4J} as well as this method.
-     * Can be called any number of times, and is synchronized on System.class.
+     * Can be called any number of times, and is synchronized on SysOutOverSLF4J.class.
      */
     public static void restoreOriginalSystemOutputs() throws SysOutOverSLF4JSystemJarNotPresentException {
-        synchronized (System.class) {
+        synchronized (SysOutOverSLF4J.class) {
             doWithSystemClasses(new Task() {
                 @Override
                 public void perform() {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintStream;
+
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jext.Logger;
+
+/**
+ * Implementation of {@link ExceptionHandlingStrategyFactory} which returns an {@link ExceptionHandlingStrategy} that
+ * buffers the lines of a stack trace and logs the whole trace as a single event, carrying a {@link PrintedThrowable}
+ * reconstructed from the printed text, so that the logging system renders it as it would any other exception.<br>
+ *
+ * A trace is logged when the thread printing it next calls System.out/err with something that is not part of it,
+ * when a different thread or class starts printing a stack trace, when the header of another stack trace is printed,
+ * or once nothing has been printed for the idle flush interval set by
+ * {@link uk.org.lidalia.sysoutslf4j.context.SysOutOverSLF4J#setIdleFlushInterval}. The event has the
+ * header of the trace as its message and the "stacktrace" marker.
+ */
+public final class AggregatingExceptionHandlingStrategyFactory implements ExceptionHandlingStrategyFactory {
+
+    private static final ExceptionHandlingStrategyFactory INSTANCE = new AggregatingExceptionHandlingStrategyFactory();
+    public static ExceptionHandlingStrategyFactory getInstance() {
+        return INSTANCE;
+    }
+
+    private AggregatingExceptionHandlingStrategyFactory() {
+        super();
+    }
+
+    public ExceptionHandlingStrategy makeExceptionHandlingStrategy(
+            final Level logLevel, final PrintStream originalPrintStream) {
+        return new AggregatingExceptionHandlingStrategy(logLevel);
+    }
+
+    private static final class AggregatingExceptionHandlingStrategy implements ExceptionHandlingStrategy {
+
+        private static final Marker MARKER = MarkerFactory.getMarker("stacktrace");
+
+        private final Level logLevel;
+        private PrintedThrowableBuilder pendingTrace;
+        private org.slf4j.Logger pendingLog;
+        private Thread pendingThread;
+
+        AggregatingExceptionHandlingStrategy(final Level logLevel) {
+            super();
+            this.logLevel = logLevel;
+        }
+
+        public void notifyNotStackTrace() {
+            log(takePendingTrace());
+        }
+
+        public void handleExceptionLine(final String line, final org.slf4j.Logger log) {
+            log(appendToPendingTrace(line, log));
+        }
+
+        /**
+         * @return the previously pending trace, if the line starts a new one
+         */
+        private synchronized PendingTrace appendToPendingTrace(final String line, final org.slf4j.Logger log) {
+            PendingTrace completedTrace = null;
+            if (pendingTrace != null && (pendingThread != Thread.currentThread()
+                    || !pendingLog.getName().equals(log.getName()) || pendingTrace.isHeaderOfNextThrowable(line))) {
+                completedTrace = takePendingTrace();
+            }
+            if (pendingTrace == null) {
+                pendingTrace = new PrintedThrowableBuilder(line);
+                pendingLog = log;
+                pendingThread = Thread.currentThread();
+            } else {
+                pendingTrace.append(line);
+            }
+            return completedTrace;
+        }
+
+        private synchronized PendingTrace takePendingTrace() {
+            final PendingTrace result = pendingTrace == null ? null : new PendingTrace(pendingTrace, pendingLog);
+            pendingTrace = null;
+            pendingLog = null;
+            pendingThread = null;
+            return result;
+        }
+
+        private void log(final PendingTrace trace) {
+            if (trace != null) {
+                final PrintedThrowable throwable = trace.builder.build();
+                new Logger(trace.log).log(logLevel, MARKER, throwable.getHeader(), throwable);
+            }
+        }
+    }
+
+    private static final class PendingTrace {
+
+        private final PrintedThrowableBuilder builder;
+        private final org.slf4j.Logger log;
+
+        PendingTrace(final PrintedThrowableBuilder builder, final org.slf4j.Logger log) {
+            this.builder = builder;
+            this.log = log;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import com.google.common.base.Ticker;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jext.Logger;
+
+import static uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.PrintedThrowableBuilder.CAUSED_BY;
+import static uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.PrintedThrowableBuilder.leadingTabs;
+
+/**
+ * Implementation of {@link ExceptionHandlingStrategyFactory} which suppresses stack traces that repeat, such as those
+ * printed by code that calls printStackTrace() in a retry loop.<br>
+ *
+ * Each stack trace is fingerprinted, incrementally as its lines arrive, from its exception class names and frames;
+ * messages are left out so that traces differing only in, say, an id in the message count as repeats. The first time
+ * a trace is seen it is passed to the strategy of the delegate factory. Repeats within the window that follows are
+ * counted rather than logged; once the window has passed, a single line saying how many times the trace was repeated
+ * is logged, either with the next occurrence, which is then logged again and starts a new window, or when the
+ * strategy is next told that output is not part of a stack trace, whichever comes first. A summary is also logged if
+ * the fingerprint is evicted to make room for others; at most a fixed number of fingerprints are remembered, least
+ * recently seen first out.<br>
+ *
+ * A trace is held back until it is complete, which is judged as for {@link AggregatingExceptionHandlingStrategyFactory}.
+ */
+public final class DeduplicatingExceptionHandlingStrategyFactory implements ExceptionHandlingStrategyFactory {
+
+    private static final long DEFAULT_WINDOW_SECONDS = 60;
+    private static final int DEFAULT_MAXIMUM_FINGERPRINTS = 1000;
+
+    private final ExceptionHandlingStrategyFactory delegate;
+    private final long window;
+    private final int maximumFingerprints;
+    private final Ticker ticker;
+
+    /**
+     * Suppresses repeats within a minute of a trace being logged, remembering up to 1000 traces.
+     *
+     * @param delegate The factory whose strategies log the traces that are not suppressed
+     */
+    public DeduplicatingExceptionHandlingStrategyFactory(final ExceptionHandlingStrategyFactory delegate) {
+        this(delegate, DEFAULT_WINDOW_SECONDS, TimeUnit.SECONDS, DEFAULT_MAXIMUM_FINGERPRINTS);
+    }
+
+    /**
+     * @param delegate The factory whose strategies log the traces that are not suppressed
+     * @param window How long after a trace is logged repeats of it are suppressed
+     * @param unit The unit of the window
+     * @param maximumFingerprints How many distinct traces to remember for each of System.out and System.err
+     */
+    public DeduplicatingExceptionHandlingStrategyFactory(final ExceptionHandlingStrategyFactory delegate,
+            final long window, final TimeUnit unit, final int maximumFingerprints) {
+        this(delegate, window, unit, maximumFingerprints, Ticker.systemTicker());
+    }
+
+    DeduplicatingExceptionHandlingStrategyFactory(final ExceptionHandlingStrategyFactory delegate,
+            final long window, final TimeUnit unit, final int maximumFingerprints, final Ticker ticker) {
+        if (maximumFingerprints < 1) {
+            throw new IllegalArgumentException("maximumFingerprints must be at least 1; was " + maximumFingerprints);
+        }
+        this.delegate = delegate;
+        this.window = unit.toNanos(window);
+        this.maximumFingerprints = maximumFingerprints;
+        this.ticker = ticker;
+    }
+
+    public ExceptionHandlingStrategy makeExceptionHandlingStrategy(
+            final Level logLevel, final PrintStream originalPrintStream) {
+        return new DeduplicatingExceptionHandlingStrategy(
+                delegate.makeExceptionHandlingStrategy(logLevel, originalPrintStream), logLevel);
+    }
+
+    private final class DeduplicatingExceptionHandlingStrategy implements ExceptionHandlingStrategy {
+
+        private final Marker marker = MarkerFactory.getMarker("stacktrace");
+
+        private final ExceptionHandlingStrategy delegateStrategy;
+        private final Level logLevel;
+        private final Map<Long, Occurrences> seen = new LinkedHashMap<Long, Occurrences>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Occurrences> eldest) {
+                final boolean evict = size() > maximumFingerprints;
+                if (evict && eldest.getValue().suppressed > 0) {
+                    evictedWithRepeats.add(eldest.getValue());
+                }
+                return evict;
+            }
+        };
+        private final List<Occurrences> evictedWithRepeats = new ArrayList<Occurrences>();
+        private PendingTrace pendingTrace;
+        private boolean summariesPending = false;
+        private long nextSummaryDue;
+
+        DeduplicatingExceptionHandlingStrategy(final ExceptionHandlingStrategy delegateStrategy, final Level logLevel) {
+            this.delegateStrategy = delegateStrategy;
+            this.logLevel = logLevel;
+        }
+
+        public void handleExceptionLine(final String line, final org.slf4j.Logger log) {
+            final PendingTrace completedTrace;
+            synchronized (this) {
+                if (pendingTrace != null && pendingTrace.isComplete(line, log)) {
+                    completedTrace = pendingTrace;
+                    pendingTrace = null;
+                } else {
+                    completedTrace = null;
+                }
+                if (pendingTrace == null) {
+                    pendingTrace = new PendingTrace(log);
+                }
+                pendingTrace.append(line);
+            }
+            handle(completedTrace);
+        }
+
+        public void notifyNotStackTrace() {
+            final PendingTrace completedTrace;
+            synchronized (this) {
+                completedTrace = pendingTrace;
+                pendingTrace = null;
+            }
+            handle(completedTrace);
+            delegateStrategy.notifyNotStackTrace();
+        }
+
+        private void handle(final PendingTrace trace) {
+            final Occurrences summary;
+            final boolean logTrace;
+            final List<Occurrences> summaries;
+            synchronized (this) {
+                final long now = ticker.read();
+                if (trace == null) {
+                    if (!isSummaryDue(now)) {
+                        return;
+                    }
+                    summary = null;
+                    logTrace = false;
+                } else {
+                    final Occurrences occurrences = seen.get(trace.fingerprint);
+                    if (occurrences == null || now - occurrences.windowStart >= window) {
+                        summary = occurrences != null && occurrences.suppressed > 0 ? occurrences : null;
+                        seen.put(trace.fingerprint, new Occurrences(trace.header, trace.log, now));
+                        logTrace = true;
+                    } else {
+                        occurrences.suppressed++;
+                        noteSummaryDue(occurrences.windowStart + window);
+                        summary = null;
+                        logTrace = false;
+                    }
+                }
+                summaries = new ArrayList<Occurrences>(evictedWithRepeats);
+                evictedWithRepeats.clear();
+                takeDueSummaries(now, summaries);
+            }
+            for (Occurrences dueSummary : summaries) {
+                logSummary(dueSummary);
+            }
+            if (summary != null) {
+                logSummary(summary);
+            }
+            if (logTrace) {
+                for (String line : trace.lines) {
+                    delegateStrategy.handleExceptionLine(line, trace.log);
+                }
+                delegateStrategy.notifyNotStackTrace();
+            }
+        }
+
+        private void noteSummaryDue(final long due) {
+            if (!summariesPending || due - nextSummaryDue < 0) {
+                summariesPending = true;
+                nextSummaryDue = due;
+            }
+        }
+
+        private boolean isSummaryDue(final long now) {
+            return summariesPending && now - nextSummaryDue >= 0;
+        }
+
+        /**
+         * Forgets the fingerprints whose window has passed with repeats suppressed, adding them to the summaries to
+         * log. The fingerprints are only looked through once the earliest of those windows is known to have passed.
+         */
+        private void takeDueSummaries(final long now, final List<Occurrences> summaries) {
+            if (!isSummaryDue(now)) {
+                return;
+            }
+            summariesPending = false;
+            final Iterator<Occurrences> allOccurrences = seen.values().iterator();
+            while (allOccurrences.hasNext()) {
+                final Occurrences occurrences = allOccurrences.next();
+                if (occurrences.suppressed > 0) {
+                    if (now - occurrences.windowStart >= window) {
+                        summaries.add(occurrences);
+                        allOccurrences.remove();
+                    } else {
+                        noteSummaryDue(occurrences.windowStart + window);
+                    }
+                }
+            }
+        }
+
+        private void logSummary(final Occurrences occurrences) {
+            new Logger(occurrences.log).log(logLevel, marker, "{} repeated {} more times",
+                    occurrences.header, occurrences.suppressed);
+        }
+    }
+
+    /**
+     * The lines of a stack trace as they arrive, and a 64 bit FNV-1a hash of them computed as they do. Only the
+     * exception class names are hashed from header and "Caused by:" lines, and lines continuing a multi-line message
+     * are not hashed at all.
+     */
+    private static final class PendingTrace {
+
+        private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private final org.slf4j.Logger log;
+        private final Thread thread = Thread.currentThread();
+        private final List<String> lines = new ArrayList<String>();
+        private String header;
+        private boolean seenFrames = false;
+        private long fingerprint = FNV_OFFSET_BASIS;
+
+        PendingTrace(final org.slf4j.Logger log) {
+            this.log = log;
+        }
+
+        boolean isComplete(final String nextLine, final org.slf4j.Logger nextLog) {
+            return thread != Thread.currentThread() || !log.getName().equals(nextLog.getName())
+                    || (seenFrames && leadingTabs(nextLine) == 0 && !nextLine.startsWith(CAUSED_BY));
+        }
+
+        void append(final String line) {
+            if (leadingTabs(line) > 0) {
+                seenFrames = true;
+                hash(line, 0, line.length());
+            } else if (header == null || line.startsWith(CAUSED_BY)) {
+                hash(line, 0, exceptionClassEnd(line));
+            }
+            if (header == null) {
+                header = line;
+            }
+            lines.add(line);
+        }
+
+        /**
+         * @return the end of the exception class name in a header or "Caused by:" line, leaving out the message
+         */
+        private static int exceptionClassEnd(final String line) {
+            final int start = line.startsWith(CAUSED_BY) ? CAUSED_BY.length() : 0;
+            final int colon = line.indexOf(": ", start);
+            return colon == -1 ? line.length() : colon;
+        }
+
+        private void hash(final String line, final int start, final int end) {
+            long hash = fingerprint;
+            for (int i = start; i < end; i++) {
+                hash ^= line.charAt(i);
+                hash *= FNV_PRIME;
+            }
+            hash ^= '\n';
+            hash *= FNV_PRIME;
+            fingerprint = hash;
+        }
+    }
+
+    private static final class Occurrences {
+
+        private final String header;
+        private final org.slf4j.Logger log;
+        private final long windowStart;
+        private int suppressed = 0;
+
+        Occurrences(final String header, final org.slf4j.Logger log, final long windowStart) {
+            this.header = header;
+            this.log = log;
+            this.windowStart = windowStart;
+        }
+    }
+}
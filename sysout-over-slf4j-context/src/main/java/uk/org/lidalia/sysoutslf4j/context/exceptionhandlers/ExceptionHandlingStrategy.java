@@ -48,7 +48,8 @@ public interface ExceptionHandlingStrategy {
 
     /**
      * Called whenever any other calls are intercepted by sysout-over-slf4j
-     * - may be a useful trigger for flushing a buffer.
+     * - may be a useful trigger for flushing a buffer. Not called for calls made by other threads while a stack trace
+     * is being printed.
      */
     void notifyNotStackTrace();
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import uk.org.lidalia.slf4jext.Level;
+
+import static uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.PrintedThrowableBuilder.CAUSED_BY;
+import static uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.PrintedThrowableBuilder.leadingTabs;
+
+/**
+ * Implementation of {@link ExceptionHandlingStrategyFactory} which compacts stack traces before passing them to the
+ * strategy of a delegate factory, so that the application frames in a trace are not lost among framework ones.<br>
+ *
+ * Consecutive frames in the same folded package, such as those of a servlet container or of reflection, are replaced
+ * by a single line such as "... 37 frames in org.apache.catalina". A trace is cut off after a maximum number of
+ * lines, with a line saying so; "Caused by:" lines are still passed on after that, so that the root cause stays
+ * visible.<br>
+ *
+ * Lines are passed on as they arrive; only a run of folded frames is held back, until the first frame after it.
+ */
+public final class FoldingExceptionHandlingStrategyFactory implements ExceptionHandlingStrategyFactory {
+
+    /**
+     * Reflection, dynamic proxy and servlet container packages.
+     */
+    public static final List<String> DEFAULT_FOLDED_PACKAGES = Collections.unmodifiableList(Arrays.asList(
+            "sun.reflect", "jdk.internal.reflect", "java.lang.reflect", "com.sun.proxy", "jdk.proxy",
+            "org.apache.catalina", "org.apache.coyote", "org.apache.tomcat", "org.eclipse.jetty"));
+
+    private static final int DEFAULT_MAXIMUM_LINES = 200;
+    private static final String FRAME = "at ";
+
+    private final ExceptionHandlingStrategyFactory delegate;
+    private final int maximumLines;
+    private final List<String> foldedPackages;
+
+    /**
+     * Folds the {@link #DEFAULT_FOLDED_PACKAGES} and cuts traces off after 200 lines.
+     *
+     * @param delegate The factory whose strategies are passed the compacted traces
+     */
+    public FoldingExceptionHandlingStrategyFactory(final ExceptionHandlingStrategyFactory delegate) {
+        this(delegate, DEFAULT_MAXIMUM_LINES, DEFAULT_FOLDED_PACKAGES);
+    }
+
+    /**
+     * @param delegate The factory whose strategies are passed the compacted traces
+     * @param maximumLines The number of lines after which a trace is cut off
+     * @param foldedPackages The packages, including their subpackages, whose frames are folded
+     */
+    public FoldingExceptionHandlingStrategyFactory(final ExceptionHandlingStrategyFactory delegate,
+            final int maximumLines, final List<String> foldedPackages) {
+        if (maximumLines < 1) {
+            throw new IllegalArgumentException("maximumLines must be at least 1; was " + maximumLines);
+        }
+        this.delegate = delegate;
+        this.maximumLines = maximumLines;
+        this.foldedPackages = new ArrayList<String>(foldedPackages);
+    }
+
+    public ExceptionHandlingStrategy makeExceptionHandlingStrategy(
+            final Level logLevel, final PrintStream originalPrintStream) {
+        return new FoldingExceptionHandlingStrategy(delegate.makeExceptionHandlingStrategy(logLevel, originalPrintStream));
+    }
+
+    private String foldedPackageOf(final String frame) {
+        final String className = PrintedThrowableBuilder.parseFrame(frame).getClassName();
+        for (String foldedPackage : foldedPackages) {
+            if (className.startsWith(foldedPackage) && (className.length() == foldedPackage.length()
+                    || className.charAt(foldedPackage.length()) == '.')) {
+                return foldedPackage;
+            }
+        }
+        return null;
+    }
+
+    private final class FoldingExceptionHandlingStrategy implements ExceptionHandlingStrategy {
+
+        private final ExceptionHandlingStrategy delegateStrategy;
+        // not the monitor, as lines are passed on to the logging system while it is held
+        private final Lock lock = new ReentrantLock();
+        private org.slf4j.Logger log;
+        private int linesPassedOn = 0;
+        private boolean seenFrames = false;
+        private boolean cutOff = false;
+        private String foldedRunPackage;
+        private String foldedRunFirstLine;
+        private int foldedRunLength = 0;
+
+        FoldingExceptionHandlingStrategy(final ExceptionHandlingStrategy delegateStrategy) {
+            this.delegateStrategy = delegateStrategy;
+        }
+
+        public void handleExceptionLine(final String line, final org.slf4j.Logger newLog) {
+            lock.lock();
+            try {
+                final int indent = leadingTabs(line);
+                if (log != null && (!log.getName().equals(newLog.getName())
+                        || (seenFrames && indent == 0 && !line.startsWith(CAUSED_BY)))) {
+                    endTrace();
+                }
+                log = newLog;
+                final String content = line.substring(indent);
+                if (indent > 0 && content.startsWith(FRAME)) {
+                    seenFrames = true;
+                    handleFrame(line, foldedPackageOf(content.substring(FRAME.length())));
+                } else {
+                    endFoldedRun();
+                    if (indent == 0 && line.startsWith(CAUSED_BY)) {
+                        passOnEvenIfCutOff(line);
+                    } else {
+                        passOn(line);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void notifyNotStackTrace() {
+            lock.lock();
+            try {
+                endTrace();
+            } finally {
+                lock.unlock();
+            }
+            delegateStrategy.notifyNotStackTrace();
+        }
+
+        private void handleFrame(final String line, final String foldedPackage) {
+            if (foldedPackage == null || !foldedPackage.equals(foldedRunPackage)) {
+                endFoldedRun();
+            }
+            if (foldedPackage == null) {
+                passOn(line);
+            } else {
+                if (foldedRunLength == 0) {
+                    foldedRunPackage = foldedPackage;
+                    foldedRunFirstLine = line;
+                }
+                foldedRunLength++;
+            }
+        }
+
+        private void endFoldedRun() {
+            if (foldedRunLength == 1) {
+                passOn(foldedRunFirstLine);
+            } else if (foldedRunLength > 1) {
+                final String indent = foldedRunFirstLine.substring(0, leadingTabs(foldedRunFirstLine));
+                passOn(indent + "... " + foldedRunLength + " frames in " + foldedRunPackage);
+            }
+            foldedRunPackage = null;
+            foldedRunFirstLine = null;
+            foldedRunLength = 0;
+        }
+
+        private void passOn(final String line) {
+            if (cutOff) {
+                return;
+            }
+            if (linesPassedOn == maximumLines) {
+                cutOff = true;
+                delegateStrategy.handleExceptionLine(
+                        "\t... stack trace cut off after " + maximumLines + " lines", log);
+            } else {
+                linesPassedOn++;
+                delegateStrategy.handleExceptionLine(line, log);
+            }
+        }
+
+        private void passOnEvenIfCutOff(final String line) {
+            if (cutOff) {
+                delegateStrategy.handleExceptionLine(line, log);
+            } else {
+                passOn(line);
+            }
+        }
+
+        private void endTrace() {
+            endFoldedRun();
+            log = null;
+            linesPassedOn = 0;
+            seenFrames = false;
+            cutOff = false;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Throwable reconstructed from the text printed by Throwable.printStackTrace(), so that a whole stack trace can be
+ * passed to SLF4J as a single event and rendered by the logging system as it renders any other exception.<br>
+ *
+ * Its toString() is the header line printed for the original Throwable, such as
+ * "java.lang.IllegalStateException: message", and its stack trace and causes are parsed from the printed frames.
+ * Printing it with printStackTrace() reproduces the original text exactly, including anything, such as suppressed
+ * exceptions, that could not be reconstructed.
+ */
+public final class PrintedThrowable extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String header;
+    private final ArrayList<String> printedLines;
+
+    PrintedThrowable(final String header, final StackTraceElement[] stackTrace, final PrintedThrowable cause,
+            final List<String> printedLines) {
+        super(header, cause);
+        this.header = header;
+        this.printedLines = printedLines == null ? null : new ArrayList<String>(printedLines);
+        setStackTrace(stackTrace);
+    }
+
+    /**
+     * @return the header line(s) printed for the original Throwable, such as
+     *             "java.lang.IllegalStateException: message"
+     */
+    public String getHeader() {
+        return header;
+    }
+
+    @Override
+    public String toString() {
+        return header;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    @Override
+    public void printStackTrace(final PrintStream printStream) {
+        if (printedLines == null) {
+            super.printStackTrace(printStream);
+        } else {
+            synchronized (printStream) {
+                for (String line : printedLines) {
+                    printStream.println(line);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void printStackTrace(final PrintWriter printWriter) {
+        if (printedLines == null) {
+            super.printStackTrace(printWriter);
+        } else {
+            synchronized (printWriter) {
+                for (String line : printedLines) {
+                    printWriter.println(line);
+                }
+            }
+        }
+    }
+}
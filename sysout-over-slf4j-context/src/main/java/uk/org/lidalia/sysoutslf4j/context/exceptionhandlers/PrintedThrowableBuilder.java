@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a {@link PrintedThrowable} from the lines of a stack trace as they are printed, one line at a time.<br>
+ *
+ * Recognises the format written by Throwable.printStackTrace(): a header, which may run over several lines if the
+ * message contains line breaks, then tab indented "at" frames and "... n more" lines, then the same again for each
+ * "Caused by:". Suppressed exceptions, which are printed further indented, are kept in the printed text but not
+ * reconstructed.
+ */
+final class PrintedThrowableBuilder {
+
+    static final String CAUSED_BY = "Caused by: ";
+    private static final String SUPPRESSED = "Suppressed: ";
+    private static final String FRAME = "at ";
+    private static final Pattern FRAMES_IN_COMMON = Pattern.compile("\\.\\.\\. (\\d+) more");
+    private static final String NATIVE_METHOD = "Native Method";
+    private static final int NATIVE_METHOD_LINE_NUMBER = -2;
+
+    private final List<String> printedLines = new ArrayList<String>();
+    private final List<PrintedText> chain = new ArrayList<PrintedText>();
+    private boolean inSuppressed = false;
+
+    PrintedThrowableBuilder(final String header) {
+        printedLines.add(header);
+        chain.add(new PrintedText(header));
+    }
+
+    /**
+     * @return true if the line cannot be part of the stack trace being built, but is the header of the next one
+     */
+    boolean isHeaderOfNextThrowable(final String line) {
+        return leadingTabs(line) == 0 && !line.startsWith(CAUSED_BY) && current().hasFrames();
+    }
+
+    void append(final String line) {
+        printedLines.add(line);
+        final int indent = leadingTabs(line);
+        final String content = line.substring(indent);
+        if (inSuppressed && indent > 0) {
+            return;
+        }
+        inSuppressed = false;
+        final Matcher framesInCommon = FRAMES_IN_COMMON.matcher(content);
+        if (indent == 0 && content.startsWith(CAUSED_BY)) {
+            chain.add(new PrintedText(content.substring(CAUSED_BY.length())));
+        } else if (indent > 0 && content.startsWith(SUPPRESSED)) {
+            inSuppressed = true;
+        } else if (indent > 0 && content.startsWith(FRAME)) {
+            current().frames.add(parseFrame(content.substring(FRAME.length())));
+        } else if (indent > 0 && framesInCommon.matches()) {
+            current().framesInCommon = Integer.parseInt(framesInCommon.group(1));
+        } else if (!current().hasFrames()) {
+            current().header.append('\n').append(line);
+        }
+    }
+
+    PrintedThrowable build() {
+        final List<StackTraceElement[]> stackTraces = new ArrayList<StackTraceElement[]>(chain.size());
+        StackTraceElement[] enclosingStackTrace = new StackTraceElement[0];
+        for (PrintedText printedText : chain) {
+            enclosingStackTrace = printedText.stackTrace(enclosingStackTrace);
+            stackTraces.add(enclosingStackTrace);
+        }
+        PrintedThrowable cause = null;
+        for (int i = chain.size() - 1; i > 0; i--) {
+            cause = new PrintedThrowable(chain.get(i).header.toString(), stackTraces.get(i), cause, null);
+        }
+        return new PrintedThrowable(chain.get(0).header.toString(), stackTraces.get(0), cause, printedLines);
+    }
+
+    private PrintedText current() {
+        return chain.get(chain.size() - 1);
+    }
+
+    static int leadingTabs(final String line) {
+        int tabs = 0;
+        while (tabs < line.length() && line.charAt(tabs) == '\t') {
+            tabs++;
+        }
+        return tabs;
+    }
+
+    static StackTraceElement parseFrame(final String frame) {
+        final int openBracket = frame.lastIndexOf('(');
+        final int closeBracket = frame.lastIndexOf(')');
+        final String qualifiedMethodName = withoutModule(openBracket == -1 ? frame : frame.substring(0, openBracket));
+        final int lastDot = qualifiedMethodName.lastIndexOf('.');
+        final String className = lastDot == -1 ? "" : qualifiedMethodName.substring(0, lastDot);
+        final String methodName = qualifiedMethodName.substring(lastDot + 1);
+        String fileName = null;
+        int lineNumber = -1;
+        if (openBracket != -1 && closeBracket > openBracket) {
+            final String location = frame.substring(openBracket + 1, closeBracket);
+            final int colon = location.lastIndexOf(':');
+            if (NATIVE_METHOD.equals(location)) {
+                lineNumber = NATIVE_METHOD_LINE_NUMBER;
+            } else if (colon != -1 && isDigits(location.substring(colon + 1))) {
+                fileName = location.substring(0, colon);
+                lineNumber = Integer.parseInt(location.substring(colon + 1));
+            } else if (!"Unknown Source".equals(location)) {
+                fileName = location;
+            }
+        }
+        return new StackTraceElement(className, methodName, fileName, lineNumber);
+    }
+
+    /**
+     * Strips the class loader and module names that Java 9 and later print ahead of the class name, as in
+     * "java.base/java.lang.Thread.run" and "app//com.example.Main.main", while leaving the "/0x..." suffix of
+     * hidden class names alone.
+     */
+    private static String withoutModule(final String qualifiedMethodName) {
+        int start = 0;
+        for (int slash = qualifiedMethodName.indexOf('/'); slash != -1; slash = qualifiedMethodName.indexOf('/', slash + 1)) {
+            if (!qualifiedMethodName.startsWith("0x", slash + 1)) {
+                start = slash + 1;
+            }
+        }
+        return qualifiedMethodName.substring(start);
+    }
+
+    private static boolean isDigits(final String string) {
+        if (string.length() == 0 || string.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (!Character.isDigit(string.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class PrintedText {
+
+        private final StringBuilder header;
+        private final List<StackTraceElement> frames = new ArrayList<StackTraceElement>();
+        private int framesInCommon = 0;
+
+        PrintedText(final String header) {
+            this.header = new StringBuilder(header);
+        }
+
+        boolean hasFrames() {
+            return !frames.isEmpty() || framesInCommon > 0;
+        }
+
+        StackTraceElement[] stackTrace(final StackTraceElement[] enclosingStackTrace) {
+            final int inCommon = Math.min(framesInCommon, enclosingStackTrace.length);
+            final StackTraceElement[] stackTrace = frames.toArray(new StackTraceElement[frames.size() + inCommon]);
+            System.arraycopy(enclosingStackTrace, enclosingStackTrace.length - inCommon,
+                    stackTrace, frames.size(), inCommon);
+            return stackTrace;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jext.LoggerFactory;
+
+/**
+ * A local journal of logging events that could not be delivered to SLF4J when they were captured.<br>
+ *
+ * Events are appended to fixed size, memory mapped segment files in a directory, rolling on to a new segment when
+ * the current one is full, and are replayed into SLF4J in the order in which they were appended. Since the
+ * segments are memory mapped an appended event survives the JVM crashing, and opening a journal on the same
+ * directory after a restart makes it available for replay again.<br>
+ *
+ * A directory can only be used by one journal at a time.
+ */
+public final class Journal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAXIMUM_SEGMENTS = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("sysout-over-slf4j-(\\d+)\\.journal");
+    private static final String LOCK_FILE_NAME = "sysout-over-slf4j.lock";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    // not the monitor, as replaying calls the logging system while it is held
+    private final Lock accessLock = new ReentrantLock();
+    private final List<JournalSegment> segments = new LinkedList<JournalSegment>();
+    private JournalSegment writeSegment;
+    private long nextSegmentNumber;
+    private volatile boolean pendingEvents;
+    private boolean closed;
+
+    /**
+     * Opens a journal in the given directory using the default segment size and maximum number of segments,
+     * recovering any events journalled there previously that have not yet been replayed.
+     *
+     * @param directory the directory to keep the journal in; created if it does not exist
+     * @return the journal
+     * @throws IOException if the directory cannot be created, is already in use by another journal, or its
+     *             existing segments cannot be read
+     */
+    public static Journal open(final File directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAXIMUM_SEGMENTS);
+    }
+
+    /**
+     * Opens a journal in the given directory, recovering any events journalled there previously that have not yet
+     * been replayed.
+     *
+     * @param directory the directory to keep the journal in; created if it does not exist
+     * @param segmentSize the size in bytes of each segment file, and hence the largest event that can be journalled
+     * @param maximumSegments the number of segments after which the journal is full and refuses further events
+     * @return the journal
+     * @throws IOException if the directory cannot be created, is already in use by another journal, or its
+     *             existing segments cannot be read
+     */
+    public static Journal open(final File directory, final int segmentSize, final int maximumSegments) throws IOException {
+        if (segmentSize <= JournalSegment.HEADER_SIZE + JournalSegment.RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize [" + segmentSize + "] is too small");
+        }
+        if (maximumSegments < 1) {
+            throw new IllegalArgumentException("maximumSegments must be at least 1, was [" + maximumSegments + "]");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+        final RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+        final FileLock lock = tryLock(lockFile);
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Journal directory " + directory + " is already in use");
+        }
+        final Journal journal = new Journal(directory, segmentSize, maximumSegments, lockFile, lock);
+        try {
+            journal.recoverSegments();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    private static FileLock tryLock(final RandomAccessFile lockFile) throws IOException {
+        try {
+            return lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private Journal(final File directory, final int segmentSize, final int maximumSegments,
+            final RandomAccessFile lockFile, final FileLock lock) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = maximumSegments;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    private void recoverSegments() throws IOException {
+        final File[] segmentFiles = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return SEGMENT_FILE_NAME.matcher(file.getName()).matches();
+            }
+        });
+        if (segmentFiles == null) {
+            throw new IOException("Unable to list journal directory " + directory);
+        }
+        // segment numbers are zero padded, so name order is segment order
+        Arrays.sort(segmentFiles);
+        for (File segmentFile : segmentFiles) {
+            final JournalSegment segment = JournalSegment.recover(segmentFile);
+            if (segment.hasUnreadRecords()) {
+                segment.release();
+                segments.add(segment);
+                pendingEvents = true;
+            } else {
+                segment.delete();
+            }
+            nextSegmentNumber = segmentNumber(segmentFile) + 1;
+        }
+    }
+
+    private static long segmentNumber(final File segmentFile) {
+        final Matcher matcher = SEGMENT_FILE_NAME.matcher(segmentFile.getName());
+        matcher.matches();
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Appends an event to the journal.
+     *
+     * @param level the level the event should be logged at when replayed
+     * @param loggerName the name of the logger the event should be logged to when replayed
+     * @param message the message of the event
+     * @return true if the event was journalled, false if it could not be because the journal is full or closed
+     */
+    public boolean append(final Level level, final String loggerName, final String message) {
+        accessLock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            final byte[] payload = encode(level, loggerName, message);
+            if (payload.length > segmentSize - JournalSegment.HEADER_SIZE - JournalSegment.RECORD_HEADER_SIZE) {
+                return false;
+            }
+            if (writeSegment != null && writeSegment.append(payload)) {
+                pendingEvents = true;
+                return true;
+            }
+            final JournalSegment newSegment = rollSegment();
+            if (newSegment != null && newSegment.append(payload)) {
+                pendingEvents = true;
+                return true;
+            }
+            return false;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    private JournalSegment rollSegment() {
+        if (segments.size() >= maximumSegments) {
+            return null;
+        }
+        final File segmentFile = new File(directory, String.format("sysout-over-slf4j-%019d.journal", nextSegmentNumber));
+        final JournalSegment newSegment;
+        try {
+            newSegment = JournalSegment.create(segmentFile, segmentSize);
+        } catch (IOException e) {
+            return null;
+        }
+        if (writeSegment != null) {
+            // full, so only read from again when it is replayed
+            writeSegment.release();
+        }
+        writeSegment = newSegment;
+        nextSegmentNumber++;
+        segments.add(writeSegment);
+        return writeSegment;
+    }
+
+    /**
+     * @return true if there are events in the journal that have not yet been replayed
+     */
+    public boolean hasPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * Replays journalled events into SLF4J, oldest first, removing them from the journal as they are accepted.<br>
+     * Stops at the first event SLF4J fails to accept by throwing an exception, or at a segment that can no longer be
+     * mapped, leaving it and any later events in the journal to be replayed on a later call.
+     *
+     * @return the number of events replayed
+     */
+    public int replay() {
+        accessLock.lock();
+        try {
+            int replayed = 0;
+            final Iterator<JournalSegment> segmentIterator = segments.iterator();
+            try {
+                while (segmentIterator.hasNext()) {
+                    final JournalSegment segment = segmentIterator.next();
+                    for (byte[] payload = segment.peek(); payload != null; payload = segment.peek()) {
+                        try {
+                            log(payload);
+                        } catch (RuntimeException e) {
+                            return replayed;
+                        }
+                        segment.markOldestRecordRead();
+                        replayed++;
+                    }
+                    if (segment == writeSegment) {
+                        segment.reset();
+                    } else {
+                        segmentIterator.remove();
+                        segment.delete();
+                    }
+                }
+            } catch (IOException e) {
+                return replayed;
+            }
+            pendingEvents = false;
+            return replayed;
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    /**
+     * Forces any changes to the journal's segments to disk and releases the directory. Events that have not been
+     * replayed remain in the directory and will be recovered the next time a journal is opened on it.
+     */
+    @Override
+    public void close() throws IOException {
+        accessLock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                for (JournalSegment segment : segments) {
+                    segment.release();
+                }
+                segments.clear();
+                writeSegment = null;
+                try {
+                    lock.release();
+                } finally {
+                    lockFile.close();
+                }
+            }
+        } finally {
+            accessLock.unlock();
+        }
+    }
+
+    private static byte[] encode(final Level level, final String loggerName, final String message) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(bytes);
+            output.writeUTF(level.name());
+            output.writeUTF(loggerName);
+            output.write(message.getBytes(UTF_8));
+            output.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to a ByteArrayOutputStream cannot throw an IOException", e);
+        }
+    }
+
+    private static void log(final byte[] payload) {
+        try {
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload));
+            final Level level = Level.valueOf(input.readUTF());
+            final String loggerName = input.readUTF();
+            final byte[] message = new byte[input.available()];
+            input.readFully(message);
+            LoggerFactory.getLogger(loggerName).log(level, new String(message, UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading from a ByteArrayInputStream cannot throw an IOException", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Journal{directory=" + directory + '}';
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A single fixed size, memory mapped file of journal records.<br>
+ *
+ * The file starts with a magic number and the position of the first record that has not yet been replayed. Each
+ * record is its payload length, a CRC32 of the payload and then the payload itself. The length is written last, so
+ * a record that was only partially written when the JVM died reads as the end of the segment rather than as
+ * garbage.<br>
+ *
+ * A mapping holds on to its file and to address space until it is garbage collected, so a segment that is no longer
+ * being written to is unmapped as soon as it is released, and mapped again only if its records are read.
+ */
+final class JournalSegment {
+
+    private static final int MAGIC = 0x534f4a31;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int CHECKSUM_OFFSET = 4;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final File file;
+    private final int size;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+
+    private JournalSegment(final File file, final int size) throws IOException {
+        this.file = file;
+        this.size = size;
+        this.buffer = map(file, size);
+    }
+
+    static JournalSegment create(final File file, final int size) throws IOException {
+        final JournalSegment segment = new JournalSegment(file, size);
+        segment.buffer.putInt(0, MAGIC);
+        segment.reset();
+        return segment;
+    }
+
+    static JournalSegment recover(final File file) throws IOException {
+        final long length = file.length();
+        if (length < HEADER_SIZE + RECORD_HEADER_SIZE || length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is not a journal segment");
+        }
+        final JournalSegment segment = new JournalSegment(file, (int) length);
+        if (segment.buffer.getInt(0) != MAGIC) {
+            segment.release();
+            throw new IOException(file + " is not a journal segment");
+        }
+        segment.writePosition = segment.readPosition();
+        for (byte[] record = segment.recordAt(segment.writePosition); record != null;
+                record = segment.recordAt(segment.writePosition)) {
+            segment.writePosition += RECORD_HEADER_SIZE + record.length;
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private MappedByteBuffer buffer() throws IOException {
+        if (buffer == null) {
+            buffer = map(file, size);
+        }
+        return buffer;
+    }
+
+    boolean append(final byte[] payload) {
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        final int nextPosition = writePosition + recordSize;
+        if (nextPosition > buffer.capacity()) {
+            return false;
+        }
+        if (nextPosition + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            buffer.putInt(nextPosition, 0);
+        }
+        final ByteBuffer target = buffer.duplicate();
+        target.position(writePosition + RECORD_HEADER_SIZE);
+        target.put(payload);
+        buffer.putInt(writePosition + CHECKSUM_OFFSET, checksum(payload));
+        buffer.putInt(writePosition, payload.length);
+        writePosition = nextPosition;
+        return true;
+    }
+
+    boolean hasUnreadRecords() throws IOException {
+        return readPosition() < writePosition;
+    }
+
+    /**
+     * @return the payload of the oldest record that has not been marked as read, or null if there is none
+     */
+    byte[] peek() throws IOException {
+        final int readPosition = readPosition();
+        final byte[] result;
+        if (readPosition < writePosition) {
+            result = recordAt(readPosition);
+        } else {
+            result = null;
+        }
+        return result;
+    }
+
+    void markOldestRecordRead() throws IOException {
+        final int readPosition = readPosition();
+        buffer().putInt(READ_POSITION_OFFSET, readPosition + RECORD_HEADER_SIZE + buffer().getInt(readPosition));
+    }
+
+    /**
+     * Discards all records, read or not, so that the segment can be written to again from the start.
+     */
+    void reset() throws IOException {
+        buffer().putInt(HEADER_SIZE, 0);
+        buffer.putInt(READ_POSITION_OFFSET, HEADER_SIZE);
+        writePosition = HEADER_SIZE;
+    }
+
+    /**
+     * Forces any changes to disk and unmaps the segment. It is mapped again if it is read from later, but must not be
+     * appended to.
+     */
+    void release() {
+        if (buffer != null) {
+            buffer.force();
+            UNMAPPER.unmap(buffer);
+            buffer = null;
+        }
+    }
+
+    boolean delete() {
+        release();
+        return file.delete();
+    }
+
+    private int readPosition() throws IOException {
+        return buffer().getInt(READ_POSITION_OFFSET);
+    }
+
+    /**
+     * @return the payload of a complete, uncorrupted record starting at position, or null if there is none
+     */
+    private byte[] recordAt(final int position) throws IOException {
+        final MappedByteBuffer buffer = buffer();
+        if (position + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        final int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final byte[] payload = new byte[length];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(position + RECORD_HEADER_SIZE);
+        source.get(payload);
+        if (checksum(payload) != buffer.getInt(position + CHECKSUM_OFFSET)) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static int checksum(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        return "JournalSegment{file=" + file + ", writePosition=" + writePosition + '}';
+    }
+
+    /**
+     * Unmaps a buffer straight away, rather than when it is garbage collected. There is no public API for this, so
+     * it is done through sun.misc.Unsafe.invokeCleaner on Java 9 and later, and through the buffer's cleaner before
+     * that. Where neither is available the mapping is left to the garbage collector.
+     */
+    private abstract static class Unmapper {
+
+        abstract void unmap(MappedByteBuffer buffer);
+
+        static Unmapper find() {
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return new InvokeCleanerUnmapper(theUnsafe.get(null), invokeCleaner);
+            } catch (Exception beforeJava9) {
+                return new CleanerUnmapper();
+            }
+        }
+    }
+
+    private static final class InvokeCleanerUnmapper extends Unmapper {
+
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        InvokeCleanerUnmapper(final Object unsafe, final Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        @Override
+        void unmap(final MappedByteBuffer buffer) {
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+            } catch (Exception notUnmapped) {
+                // left to the garbage collector
+            }
+        }
+    }
+
+    private static final class CleanerUnmapper extends Unmapper {
+
+        @Override
+        void unmap(final MappedByteBuffer buffer) {
+            try {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception notUnmapped) {
+                // left to the garbage collector
+            }
+        }
+    }
+}
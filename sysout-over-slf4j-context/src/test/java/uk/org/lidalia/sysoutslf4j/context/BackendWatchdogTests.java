@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackendWatchdogTests {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final BackendWatchdog watchdog = new BackendWatchdog(ticker);
+
+    @Before
+    public void configureWatchdog() {
+        watchdog.setLatencyThresholdMillis(100);
+        watchdog.setFailureThreshold(3);
+        watchdog.setRetryIntervalMillis(1000);
+    }
+
+    @Test
+    public void startsClosed() {
+        assertTrue(watchdog.allowDelivery());
+        assertEquals("CLOSED", watchdog.getState());
+    }
+
+    @Test
+    public void tripsWhenADeliveryIsStuckForLongerThanTheLatencyThreshold() {
+        watchdog.deliveryStarted();
+        ticker.advanceMillis(101);
+
+        assertFalse(watchdog.allowDelivery());
+        assertEquals("OPEN", watchdog.getState());
+        assertEquals(1, watchdog.getTripCount());
+        assertEquals(1, watchdog.getDeliveriesInProgress());
+    }
+
+    @Test
+    public void doesNotTripWhileDeliveriesAreProgressing() {
+        watchdog.deliveryStarted();
+        ticker.advanceMillis(60);
+        watchdog.deliverySucceeded(watchdog.deliveryStarted());
+        ticker.advanceMillis(60);
+
+        assertTrue(watchdog.allowDelivery());
+    }
+
+    @Test
+    public void tripsWhenADeliveryCompletesSlowly() {
+        long startedAt = watchdog.deliveryStarted();
+        ticker.advanceMillis(101);
+        watchdog.deliverySucceeded(startedAt);
+
+        assertEquals("OPEN", watchdog.getState());
+    }
+
+    @Test
+    public void isHoldingBackTripsWhenADeliveryIsStuck() {
+        watchdog.deliveryStarted();
+        assertFalse(watchdog.isHoldingBack());
+
+        ticker.advanceMillis(101);
+
+        assertTrue(watchdog.isHoldingBack());
+        assertEquals("OPEN", watchdog.getState());
+    }
+
+    @Test
+    public void isHoldingBackDoesNotLetAProbeThrough() {
+        fail(3);
+        ticker.advanceMillis(1000);
+
+        assertTrue(watchdog.isHoldingBack());
+        assertEquals("OPEN", watchdog.getState());
+        assertTrue(watchdog.allowDelivery());
+    }
+
+    @Test
+    public void tripsAfterFailureThresholdConsecutiveFailures() {
+        fail(2);
+        assertEquals("CLOSED", watchdog.getState());
+
+        fail(1);
+        assertEquals("OPEN", watchdog.getState());
+        assertEquals(3, watchdog.getFailedDeliveryCount());
+    }
+
+    @Test
+    public void successResetsConsecutiveFailures() {
+        fail(2);
+        watchdog.deliverySucceeded(watchdog.deliveryStarted());
+        fail(2);
+
+        assertEquals("CLOSED", watchdog.getState());
+    }
+
+    @Test
+    public void letsASingleProbeThroughAfterRetryInterval() {
+        fail(3);
+        ticker.advanceMillis(999);
+        assertFalse(watchdog.allowDelivery());
+
+        ticker.advanceMillis(1);
+        assertTrue(watchdog.allowDelivery());
+        assertEquals("HALF_OPEN", watchdog.getState());
+        assertFalse(watchdog.allowDelivery());
+    }
+
+    @Test
+    public void closesWhenProbeSucceeds() {
+        fail(3);
+        ticker.advanceMillis(1000);
+        watchdog.allowDelivery();
+
+        watchdog.deliverySucceeded(watchdog.deliveryStarted());
+
+        assertEquals("CLOSED", watchdog.getState());
+        assertTrue(watchdog.allowDelivery());
+    }
+
+    @Test
+    public void reopensWhenProbeFails() {
+        fail(3);
+        ticker.advanceMillis(1000);
+        watchdog.allowDelivery();
+
+        fail(1);
+
+        assertEquals("OPEN", watchdog.getState());
+        assertEquals(2, watchdog.getTripCount());
+        assertFalse(watchdog.allowDelivery());
+    }
+
+    @Test
+    public void countsDivertedEvents() {
+        watchdog.eventDiverted();
+        watchdog.eventDiverted();
+
+        assertEquals(2, watchdog.getDivertedEventCount());
+    }
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            watchdog.deliveryStarted();
+            watchdog.deliveryFailed();
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
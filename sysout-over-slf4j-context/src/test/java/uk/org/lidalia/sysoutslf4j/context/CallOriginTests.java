@@ -29,7 +29,9 @@ import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import uk.org.lidalia.sysoutslf4j.system.CallingClass;
 import uk.org.lidalia.sysoutslf4j.system.PerContextPrintStream;
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -40,7 +42,7 @@ import static org.powermock.api.mockito.PowerMockito.when;
 import static uk.org.lidalia.test.ShouldThrow.shouldThrow;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({CallOrigin.class, LoggingSystemRegister.class})
+@PrepareForTest({CallOrigin.class, LoggingSystemRegister.class, CallingClass.class, ThrowableBeingPrinted.class})
 public class CallOriginTests {
 
     private final LoggingSystemRegister loggingSystemRegister = mock(LoggingSystemRegister.class);
@@ -138,6 +140,42 @@ public class CallOriginTests {
         assertTrue(callOrigin.toString(), callOrigin.isInLoggingSystem());
     }
 
+    @Test
+    public void getCallOriginUsesClassTaggedByAgentWithoutWalkingStack() {
+        expectCallToBeTaggedWith("org.a.ClassName$InnerClass");
+        mockStatic(Thread.class);
+
+        CallOrigin callOrigin = CallOrigin.getCallOrigin(loggingSystemRegister);
+        assertEquals("org.a.ClassName", callOrigin.getClassName());
+        assertFalse(callOrigin.toString(), callOrigin.isPrintingStackTrace());
+        assertFalse(callOrigin.toString(), callOrigin.isInLoggingSystem());
+    }
+
+    @Test
+    public void getCallOriginIsStackTraceIfTaggedAndAgentReportsThrowableBeingPrinted() {
+        expectCallToBeTaggedWith("org.a.ClassName");
+        when(ThrowableBeingPrinted.get()).thenReturn(new Exception());
+
+        CallOrigin callOrigin = CallOrigin.getCallOrigin(loggingSystemRegister);
+        assertTrue(callOrigin.toString(), callOrigin.isPrintingStackTrace());
+        assertEquals("org.a.ClassName", callOrigin.getClassName());
+    }
+
+    @Test
+    public void getCallOriginIsInLoggingSystemIfTaggedClassIsInLoggingSystem() {
+        expectCallToBeTaggedWith("class.in.logging.system");
+        when(loggingSystemRegister.isInLoggingSystem("class.in.logging.system")).thenReturn(true);
+
+        CallOrigin callOrigin = CallOrigin.getCallOrigin(loggingSystemRegister);
+        assertTrue(callOrigin.toString(), callOrigin.isInLoggingSystem());
+    }
+
+    private void expectCallToBeTaggedWith(String className) {
+        mockStatic(CallingClass.class);
+        when(CallingClass.get()).thenReturn(className);
+        mockStatic(ThrowableBeingPrinted.class);
+    }
+
     private void expectGetStackTraceToReturn(StackTraceElement... stackTraceElements) {
         Thread mockThread = mock(Thread.class);
         when(mockThread.getStackTrace()).thenReturn(stackTraceElements);
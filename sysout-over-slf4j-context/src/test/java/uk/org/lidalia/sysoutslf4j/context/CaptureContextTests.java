@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+import uk.org.lidalia.sysoutslf4j.system.ContextBinding;
+import uk.org.lidalia.sysoutslf4j.system.PerContextSystemOutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CaptureContextTests extends SysOutOverSLF4JTestCase {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    private final CaptureContext captureContext = new CaptureContext();
+    private final ByteArrayOutputStream boundOutput = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream unboundOutput = new ByteArrayOutputStream();
+    private final PrintStream boundPrintStream = new PrintStream(boundOutput, true);
+    private final PrintStream unboundPrintStream = new PrintStream(unboundOutput, true);
+    private final Runnable printer = new Runnable() {
+        @Override
+        public void run() {
+            System.out.println("printed");
+        }
+    };
+    private ExecutorService executorService;
+
+    @Before
+    public void registerPrintStreams() {
+        captureContext.setPrintStream(PerContextSystemOutput.OUT, boundPrintStream);
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(unboundPrintStream);
+        executorService = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void deregisterPrintStreams() throws Exception {
+        executorService.shutdown();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+    }
+
+    @Test
+    public void bindToCurrentThreadRoutesOutputToContextUntilClosed() {
+        CaptureContext.Binding binding = captureContext.bindToCurrentThread();
+        System.out.println("bound");
+        binding.close();
+        System.out.println("unbound");
+
+        assertEquals("bound" + NEWLINE, boundOutput.toString());
+        assertEquals("unbound" + NEWLINE, unboundOutput.toString());
+    }
+
+    @Test
+    public void closingBindingRestoresPreviousBinding() {
+        CaptureContext other = new CaptureContext();
+        CaptureContext.Binding outer = other.bindToCurrentThread();
+        ContextBinding otherBinding = ContextBinding.current();
+
+        captureContext.bindToCurrentThread().close();
+
+        assertSame(otherBinding, ContextBinding.current());
+        outer.close();
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void runInScopeRoutesOutputToContext() {
+        captureContext.runInScope(printer);
+        System.out.println("unbound");
+
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+        assertEquals("unbound" + NEWLINE, unboundOutput.toString());
+    }
+
+    @Test
+    public void callInScopeReturnsResultOfTask() throws Exception {
+        String result = captureContext.callInScope(new Callable<String>() {
+            @Override
+            public String call() {
+                printer.run();
+                return "result";
+            }
+        });
+
+        assertEquals("result", result);
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+    }
+
+    @Test
+    public void callInScopeThrowsExceptionOfTask() throws Exception {
+        final Exception failure = new Exception();
+        try {
+            captureContext.callInScope(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw failure;
+                }
+            });
+            fail("Exception expected");
+        } catch (Exception e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void wrappedRunnableRunsBoundToContext() {
+        captureContext.wrap(printer).run();
+
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void wrappedCallableIsCalledBoundToContext() throws Exception {
+        String result = captureContext.wrap(new Callable<String>() {
+            @Override
+            public String call() {
+                printer.run();
+                return "result";
+            }
+        }).call();
+
+        assertEquals("result", result);
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void wrappedExecutorRunsTasksBoundToContext() throws Exception {
+        captureContext.wrap((Executor) executorService).execute(printer);
+        executorService.submit(printer).get();
+
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+        assertEquals("printed" + NEWLINE, unboundOutput.toString());
+    }
+
+    @Test
+    public void wrappedExecutorServiceRunsTasksBoundToContext() throws Exception {
+        ExecutorService wrapped = captureContext.wrap(executorService);
+        wrapped.submit(printer).get();
+        wrapped.invokeAll(Arrays.asList(Executors.callable(printer)));
+
+        assertEquals("printed" + NEWLINE + "printed" + NEWLINE, boundOutput.toString());
+        assertEquals("", unboundOutput.toString());
+    }
+
+    @Test
+    public void shuttingDownWrappedExecutorServiceShutsDownExecutorService() throws Exception {
+        captureContext.wrap(executorService).shutdown();
+
+        assertTrue(executorService.isShutdown());
+    }
+
+    @Test
+    public void wrappedThreadFactoryMakesThreadsBoundToContext() throws Exception {
+        Thread thread = captureContext.wrap(Executors.defaultThreadFactory()).newThread(printer);
+        thread.start();
+        thread.join();
+
+        assertEquals("printed" + NEWLINE, boundOutput.toString());
+    }
+}
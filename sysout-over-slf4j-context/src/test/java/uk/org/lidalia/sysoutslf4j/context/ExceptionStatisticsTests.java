@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExceptionStatisticsTests {
+
+    private final ExceptionStatistics exceptionStatistics = new ExceptionStatistics(2);
+
+    @Test
+    public void countsByExceptionClassAndLoggerMostFrequentFirst() {
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.SomeClass");
+        exceptionStatistics.record("java.lang.IllegalArgumentException", "org.something.SomeClass");
+        exceptionStatistics.record("java.lang.IllegalArgumentException", "org.something.SomeClass");
+
+        List<ExceptionCount> exceptions = exceptionStatistics.getExceptions();
+        assertEquals(2, exceptions.size());
+        assertEquals("java.lang.IllegalArgumentException", exceptions.get(0).getExceptionClass());
+        assertEquals("org.something.SomeClass", exceptions.get(0).getLoggerName());
+        assertEquals(2, exceptions.get(0).getCount());
+        assertEquals("java.lang.IllegalStateException", exceptions.get(1).getExceptionClass());
+        assertEquals(1, exceptions.get(1).getCount());
+        assertEquals(3, exceptionStatistics.getTotalCount());
+    }
+
+    @Test
+    public void recordsWhenLastSeen() {
+        long before = System.currentTimeMillis();
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.SomeClass");
+
+        long lastSeen = exceptionStatistics.getExceptions().get(0).getLastSeen().getTime();
+        assertTrue(lastSeen >= before && lastSeen <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void newEntriesBeyondMaximumAreCountedAsUntracked() {
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.SomeClass");
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.OtherClass");
+        exceptionStatistics.record("java.lang.IllegalArgumentException", "org.something.SomeClass");
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.SomeClass");
+
+        assertEquals(2, exceptionStatistics.getExceptions().size());
+        assertEquals(1, exceptionStatistics.getUntrackedCount());
+        assertEquals(4, exceptionStatistics.getTotalCount());
+    }
+
+    @Test
+    public void resetClearsIndex() {
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.SomeClass");
+        exceptionStatistics.record("java.lang.IllegalStateException", "org.something.OtherClass");
+        exceptionStatistics.record("java.lang.IllegalArgumentException", "org.something.SomeClass");
+
+        exceptionStatistics.reset();
+        exceptionStatistics.record("java.lang.IllegalArgumentException", "org.something.SomeClass");
+
+        assertEquals(1, exceptionStatistics.getExceptions().size());
+        assertEquals(0, exceptionStatistics.getUntrackedCount());
+        assertEquals(1, exceptionStatistics.getTotalCount());
+    }
+
+    @Test
+    public void resetWhileRecordingLeavesCountsConsistent() throws InterruptedException {
+        final ExceptionStatistics statistics = new ExceptionStatistics(4);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        List<Thread> recorders = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final String loggerName = "org.something.Class" + i;
+            Thread recorder = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; !stop.get(); j++) {
+                        statistics.record("java.lang.Exception" + (j % 8), loggerName);
+                    }
+                }
+            };
+            recorder.start();
+            recorders.add(recorder);
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            statistics.reset();
+        }
+        stop.set(true);
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        long tracked = 0;
+        for (ExceptionCount exception : statistics.getExceptions()) {
+            tracked += exception.getCount();
+        }
+        assertTrue(statistics.getExceptions().size() <= 4);
+        assertEquals(statistics.getTotalCount(), tracked + statistics.getUntrackedCount());
+    }
+
+    @Test
+    public void exceptionClassOfReadsStackTraceHeader() {
+        assertEquals("java.lang.IllegalStateException",
+                ExceptionStatistics.exceptionClassOf("java.lang.IllegalStateException: some: message"));
+        assertEquals("java.lang.IllegalStateException",
+                ExceptionStatistics.exceptionClassOf("java.lang.IllegalStateException"));
+        assertEquals("java.lang.IllegalStateException",
+                ExceptionStatistics.exceptionClassOf("Exception in thread \"main thread\" java.lang.IllegalStateException: message"));
+        assertEquals("java.lang.IllegalStateException",
+                ExceptionStatistics.exceptionClassOf("Exception in thread \"pool-1: worker\" java.lang.IllegalStateException: message"));
+        assertEquals("java.lang.IllegalStateException",
+                ExceptionStatistics.exceptionClassOf("Exception in thread \"pool-1: worker\" java.lang.IllegalStateException"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaximumEntriesIsRejected() {
+        new ExceptionStatistics(-1);
+    }
+}
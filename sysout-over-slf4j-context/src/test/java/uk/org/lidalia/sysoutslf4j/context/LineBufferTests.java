@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class LineBufferTests extends SysOutOverSLF4JTestCase {
+
+    private final ConcurrentMap<Thread, LineBuffer> buffersInUse = new ConcurrentHashMap<Thread, LineBuffer>();
+    private final LineBuffer lineBuffer = new LineBuffer(Charset.forName("UTF-8"), buffersInUse);
+
+    @Test
+    public void endOfLastLineIsZeroWithoutLineBreak() {
+        write("partial");
+        assertEquals(0, lineBuffer.endOfLastLine());
+    }
+
+    @Test
+    public void endOfLastLineIsJustPastLastLineBreak() {
+        write("one\ntwo\nthree");
+        assertEquals(8, lineBuffer.endOfLastLine());
+    }
+
+    @Test
+    public void isInUseOnlyWhileItHoldsAPartialLine() {
+        lineBuffer.lock();
+        try {
+            write("partial");
+        } finally {
+            lineBuffer.unlock();
+        }
+        assertSame(lineBuffer, buffersInUse.get(Thread.currentThread()));
+
+        lineBuffer.lock();
+        try {
+            lineBuffer.takeAll();
+        } finally {
+            lineBuffer.unlock();
+        }
+        assertTrue(buffersInUse.isEmpty());
+    }
+
+    @Test
+    public void isInUseWhileSkippingRestOfLongLine() {
+        lineBuffer.lock();
+        try {
+            lineBuffer.setLongLinePolicy(LineOverflowPolicy.TRUNCATE);
+        } finally {
+            lineBuffer.unlock();
+        }
+        assertSame(lineBuffer, buffersInUse.get(Thread.currentThread()));
+
+        lineBuffer.lock();
+        try {
+            lineBuffer.setLongLinePolicy(null);
+        } finally {
+            lineBuffer.unlock();
+        }
+        assertTrue(buffersInUse.isEmpty());
+    }
+
+    @Test
+    public void endOfFirstAndLastLineAreFoundWithinRange() {
+        byte[] bytes = "\none\ntwo\nthree\n".getBytes();
+        assertEquals(5, LineBuffer.endOfFirstLine(bytes, 1, 14));
+        assertEquals(9, LineBuffer.endOfLastLine(bytes, 1, 14));
+    }
+
+    @Test
+    public void endOfFirstAndLastLineAreStartWithoutLineBreakInRange() {
+        byte[] bytes = "one\ntwo\n".getBytes();
+        assertEquals(4, LineBuffer.endOfFirstLine(bytes, 4, 7));
+        assertEquals(4, LineBuffer.endOfLastLine(bytes, 4, 7));
+    }
+
+    @Test
+    public void lineBreakIsFoundAtEveryPositionWithinAndAcrossWords() {
+        for (int length = 1; length <= 80; length++) {
+            for (int lineBreakAt = 0; lineBreakAt < length; lineBreakAt++) {
+                byte[] bytes = new byte[length + 2];
+                Arrays.fill(bytes, (byte) 'x');
+                bytes[lineBreakAt + 1] = '\n';
+
+                assertEquals(lineBreakAt + 2, LineBuffer.endOfFirstLine(bytes, 1, length + 1));
+                assertEquals(lineBreakAt + 2, LineBuffer.endOfLastLine(bytes, 1, length + 1));
+            }
+        }
+    }
+
+    @Test
+    public void firstAndLastOfSeveralLineBreaksInAWordAreFound() {
+        byte[] bytes = "0123456789012345678901234567890123\n56\n8\n01234567890123456789".getBytes();
+
+        assertEquals(35, LineBuffer.endOfFirstLine(bytes, 0, bytes.length));
+        assertEquals(40, LineBuffer.endOfLastLine(bytes, 0, bytes.length));
+        assertEquals(35, LineBuffer.endOfFirstLine(lineBuffer.wordsOf(bytes), 0, bytes.length));
+        assertEquals(40, LineBuffer.endOfLastLine(lineBuffer.wordsOf(bytes), 0, bytes.length));
+    }
+
+    @Test
+    public void bytesCloseToLineBreakAreNotLineBreaks() {
+        byte[] bytes = new byte[64];
+        byte[] nearMisses = {(byte) 0x8A, 0x0B, 0x09, 0x00, (byte) 0xFF, 0x0A ^ 0x40, 0x1A};
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = nearMisses[i % nearMisses.length];
+        }
+
+        assertEquals(0, LineBuffer.endOfFirstLine(bytes, 0, bytes.length));
+        assertEquals(0, LineBuffer.endOfLastLine(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void takeLinesLeavesWhatFollows() {
+        write("one\ntwo\nthree");
+
+        byte[] lines = lineBuffer.takeLines(lineBuffer.endOfLastLine());
+
+        assertEquals("one\ntwo\n", new String(lines, 0, 8));
+        assertEquals(5, lineBuffer.size());
+        assertEquals("three", lineBuffer.takeAll());
+        assertEquals(0, lineBuffer.size());
+    }
+
+    @Test
+    public void takeLinesReusesReleasedArray() {
+        write("one\n");
+        byte[] first = lineBuffer.takeLines(4);
+        lineBuffer.release(first);
+        write("two\n");
+        byte[] second = lineBuffer.takeLines(4);
+        lineBuffer.release(second);
+        write("three\n");
+
+        assertSame(first, lineBuffer.takeLines(6));
+    }
+
+    @Test
+    public void takeLinesBeforeReleaseUsesAnotherArray() {
+        write("one\n");
+        byte[] first = lineBuffer.takeLines(4);
+        write("two\n");
+
+        byte[] second = lineBuffer.takeLines(4);
+
+        assertNotSame(first, second);
+        assertEquals("one\n", new String(first, 0, 4));
+        assertEquals("two\n", new String(second, 0, 4));
+    }
+
+    @Test
+    public void endOfTextExcludesTrailingSpacesAndLineBreaks() {
+        byte[] bytes = "  some text \r\n \n".getBytes();
+        assertEquals(11, LineBuffer.endOfText(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void endOfTextIsStartIfThereIsNoText() {
+        byte[] bytes = "text \r\n".getBytes();
+        assertEquals(4, LineBuffer.endOfText(bytes, 4, bytes.length));
+    }
+
+    @Test
+    public void findingTakingAndTrimmingLinesAllocatesNothing() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationCounter = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationCounter.isThreadAllocatedMemorySupported()
+                && allocationCounter.isThreadAllocatedMemoryEnabled());
+        byte[] output = "first line  \r\nsecond line\nthe start of a third".getBytes();
+        long threadId = Thread.currentThread().getId();
+        takeAndTrimLines(output, 10000);
+
+        long allocatedBefore = allocationCounter.getThreadAllocatedBytes(threadId);
+        int textLength = takeAndTrimLines(output, 10000);
+        long allocated = allocationCounter.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        assertEquals(10000 * "the start of a thirdfirst linesecond line".length(), textLength);
+        assertTrue("allocated " + allocated + " bytes taking 20000 lines", allocated < 1024);
+    }
+
+    private int takeAndTrimLines(byte[] output, int times) {
+        int textLength = 0;
+        for (int i = 0; i < times; i++) {
+            lineBuffer.write(output, 0, output.length);
+            int end = lineBuffer.endOfLastLine();
+            byte[] lines = lineBuffer.takeLines(end);
+            int start = 0;
+            for (int j = 0; j < end; j++) {
+                if (lines[j] == '\n') {
+                    textLength += LineBuffer.endOfText(lines, start, j) - start;
+                    start = j + 1;
+                }
+            }
+            lineBuffer.release(lines);
+        }
+        return textLength;
+    }
+
+    @Test
+    public void growsToHoldLongLines() {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append(i);
+            lineBuffer.write(String.valueOf(i).getBytes(), 0, String.valueOf(i).length());
+        }
+        lineBuffer.write('\n');
+
+        assertEquals(longLine.append('\n').toString(), lineBuffer.takeAll());
+    }
+
+    @Test
+    public void decodesInItsCharset() throws Exception {
+        byte[] bytes = "h\u00e9llo".getBytes("ISO-8859-1");
+        LineBuffer latin1LineBuffer = new LineBuffer(Charset.forName("ISO-8859-1"), buffersInUse);
+
+        assertEquals("h\u00e9llo", latin1LineBuffer.decode(bytes, 0, bytes.length));
+        assertEquals("\u00e9ll", lineBuffer.decode("h\u00e9llo".getBytes("UTF-8"), 1, 5));
+    }
+
+    @Test
+    public void takeAllKeepsIncompleteCharacterForNextWrite() throws Exception {
+        byte[] bytes = "caf\u00e9".getBytes("UTF-8");
+        lineBuffer.write(bytes, 0, bytes.length - 1);
+
+        assertEquals("caf", lineBuffer.takeAll());
+        assertEquals(1, lineBuffer.size());
+
+        lineBuffer.write(bytes[bytes.length - 1]);
+        assertEquals("\u00e9", lineBuffer.takeAll());
+        assertEquals(0, lineBuffer.size());
+    }
+
+    @Test
+    public void takeTakesUpToLengthStoppingShortOfIncompleteCharacter() throws Exception {
+        byte[] bytes = "abcd\u00e9f".getBytes("UTF-8");
+        lineBuffer.write(bytes, 0, bytes.length);
+
+        assertEquals("abcd", lineBuffer.take(5));
+        assertEquals("\u00e9f", lineBuffer.take(5));
+        assertEquals(0, lineBuffer.size());
+    }
+
+    @Test
+    public void capacityBeyondRetainedCapacityIsGivenBackOnceTaken() {
+        lineBuffer.write(new byte[100000], 0, 100000);
+        lineBuffer.write('\n');
+
+        lineBuffer.release(lineBuffer.takeLines(100001));
+        lineBuffer.write(new byte[100000], 0, 100000);
+        lineBuffer.takeAll();
+
+        assertEquals(8192, capacity());
+        assertNull(Whitebox.getInternalState(lineBuffer, "spare"));
+    }
+
+    @Test
+    public void capacityBeyondRetainedCapacityIsGivenBackOnceDiscarded() {
+        lineBuffer.write(new byte[100000], 0, 100000);
+
+        lineBuffer.discard();
+
+        assertEquals(8192, capacity());
+    }
+
+    @Test
+    public void capacityUpToRetainedCapacityIsKept() {
+        lineBuffer.write(new byte[5000], 0, 5000);
+
+        lineBuffer.discard();
+
+        assertEquals(5000, capacity());
+    }
+
+    @Test
+    public void hasPartialLineLongerThanCountsOnlyBytesAfterLastLineBreak() {
+        write("0123456789\n0123");
+
+        assertTrue(lineBuffer.hasPartialLineLongerThan(3));
+        assertFalse(lineBuffer.hasPartialLineLongerThan(4));
+    }
+
+    @Test
+    public void writeToWritesBufferAndEmptiesIt() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write("some text");
+
+        lineBuffer.writeTo(new PrintStream(bytes));
+
+        assertEquals("some text", bytes.toString());
+        assertEquals(0, lineBuffer.size());
+    }
+
+    private int capacity() {
+        byte[] buf = Whitebox.getInternalState(lineBuffer, "buf");
+        return buf.length;
+    }
+
+    private void write(String text) {
+        byte[] bytes = text.getBytes();
+        lineBuffer.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.MarkerFactory;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.AggregatingExceptionHandlingStrategyFactory;
+import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
+import uk.org.lidalia.sysoutslf4j.context.journal.Journal;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static uk.org.lidalia.slf4jtest.LoggingEvent.error;
+import static uk.org.lidalia.slf4jtest.LoggingEvent.info;
+
+public class LoggingBackendTests extends SysOutOverSLF4JTestCase {
+
+    private static final String CLASS_NAME = "org.something.SomeClass";
+    private static final String PRINTED_TRACE = String.format("java.lang.Exception: message%n\tat a.b.C.d(C.java:1)");
+
+    private final LoggingBackend loggingBackend = new LoggingBackend();
+    private final TestLogger logger = TestLoggerFactory.getTestLogger(CLASS_NAME);
+    private final ExceptionHandlingStrategy exceptionHandlingStrategyMock = mock(ExceptionHandlingStrategy.class);
+    private final PrintStream console = mock(PrintStream.class);
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        loggingBackend.setJournal(null);
+        if (directory.isDirectory()) {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void logLogsToSLF4J() {
+        loggingBackend.log(Level.INFO, CLASS_NAME, "message");
+
+        assertEquals(asList(info("message")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void logStackTraceLineDelegatesToExceptionHandlingStrategy() {
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.INFO, CLASS_NAME, "exception line", console);
+
+        ArgumentCaptor<Logger> log = ArgumentCaptor.forClass(Logger.class);
+        verify(exceptionHandlingStrategyMock).handleExceptionLine(eq("exception line"), log.capture());
+        assertEquals(CLASS_NAME, log.getValue().getName());
+    }
+
+    @Test
+    public void stackTraceHeldBackByExceptionHandlingStrategyIsLoggedToSLF4J() {
+        ExceptionHandlingStrategy strategy = aggregatingStrategyHoldingBackATrace();
+
+        strategy.notifyNotStackTrace();
+
+        assertEquals(1, logger.getLoggingEvents().size());
+        assertEquals("java.lang.Exception: message", logger.getLoggingEvents().get(0).getMessage());
+    }
+
+    @Test
+    public void stackTraceHeldBackByExceptionHandlingStrategyIsJournalledWhileWatchdogIsOpen() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory));
+        ExceptionHandlingStrategy strategy = aggregatingStrategyHoldingBackATrace();
+        loggingBackend.getWatchdog().setFailureThreshold(1);
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.ERROR, CLASS_NAME, "exception line", console);
+
+        strategy.notifyNotStackTrace();
+
+        assertTrue(logger.getLoggingEvents().isEmpty());
+        loggingBackend.getWatchdog().setRetryIntervalMillis(0);
+        loggingBackend.flushJournal();
+        assertEquals(asList(error("exception line"), error(PRINTED_TRACE)), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void stackTraceHeldBackByExceptionHandlingStrategyIsPrintedToConsoleWhenItCannotBeJournalled() {
+        ExceptionHandlingStrategy strategy = aggregatingStrategyHoldingBackATrace();
+        loggingBackend.getWatchdog().setFailureThreshold(1);
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.ERROR, CLASS_NAME, "exception line", console);
+
+        strategy.notifyNotStackTrace();
+
+        assertTrue(logger.getLoggingEvents().isEmpty());
+        verify(console).println(PRINTED_TRACE);
+    }
+
+    private ExceptionHandlingStrategy aggregatingStrategyHoldingBackATrace() {
+        ExceptionHandlingStrategy strategy = AggregatingExceptionHandlingStrategyFactory.getInstance()
+                .makeExceptionHandlingStrategy(Level.ERROR, console);
+        loggingBackend.logStackTraceLine(strategy, Level.ERROR, CLASS_NAME, "java.lang.Exception: message", console);
+        loggingBackend.logStackTraceLine(strategy, Level.ERROR, CLASS_NAME, "\tat a.b.C.d(C.java:1)", console);
+        return strategy;
+    }
+
+    @Test
+    public void logStackTraceLineRethrowsFailureWhenThereIsNoJournal() {
+        RuntimeException failure = new RuntimeException();
+        doThrow(failure).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+
+        try {
+            loggingBackend.logStackTraceLine(
+                    exceptionHandlingStrategyMock, Level.INFO, CLASS_NAME, "exception line", console);
+            fail("Expected exception");
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void rejectedOutputIsJournalledAndReplayedBeforeNextOutput() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory));
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.ERROR, CLASS_NAME, "exception line", console);
+        loggingBackend.log(Level.INFO, CLASS_NAME, "message");
+
+        assertEquals(asList(error("exception line"), info("message")), logger.getLoggingEvents());
+        assertFalse(loggingBackend.getJournal().hasPendingEvents());
+    }
+
+    @Test
+    public void logStackTraceLineRethrowsFailureWhenJournalIsFull() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory, 64, 1));
+        RuntimeException failure = new RuntimeException();
+        doThrow(failure).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.logStackTraceLine(exceptionHandlingStrategyMock, Level.INFO, CLASS_NAME, "line 1", console);
+
+        try {
+            loggingBackend.logStackTraceLine(exceptionHandlingStrategyMock, Level.INFO, CLASS_NAME, "line 2", console);
+            fail("Expected exception");
+        } catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void openWatchdogDivertsOutputToJournalUntilSLF4JRecovers() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory));
+        loggingBackend.getWatchdog().setFailureThreshold(1);
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.ERROR, CLASS_NAME, "exception line", console);
+
+        assertTrue(loggingBackend.log(Level.INFO, CLASS_NAME, "message 1"));
+        assertEquals("OPEN", loggingBackend.getWatchdog().getState());
+        assertTrue(logger.getLoggingEvents().isEmpty());
+
+        loggingBackend.getWatchdog().setRetryIntervalMillis(0);
+        loggingBackend.log(Level.INFO, CLASS_NAME, "message 2");
+
+        assertEquals(asList(error("exception line"), info("message 1"), info("message 2")), logger.getLoggingEvents());
+        assertEquals("CLOSED", loggingBackend.getWatchdog().getState());
+    }
+
+    @Test
+    public void openWatchdogWithoutJournalHandsOutputBackToCaller() {
+        loggingBackend.getWatchdog().setFailureThreshold(1);
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+
+        assertFalse(loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.INFO, CLASS_NAME, "line", console));
+        assertFalse(loggingBackend.log(Level.INFO, CLASS_NAME, "message"));
+
+        assertTrue(logger.getLoggingEvents().isEmpty());
+        assertEquals(2, loggingBackend.getWatchdog().getDivertedEventCount());
+    }
+
+    @Test
+    public void logThrowableLogsThrowableAsOneEvent() {
+        Exception exception = new Exception("message");
+
+        assertTrue(loggingBackend.logThrowable(Level.ERROR, CLASS_NAME, exception));
+
+        assertEquals(asList(error(exception, MarkerFactory.getMarker("stacktrace"), "java.lang.Exception: message")),
+                logger.getLoggingEvents());
+    }
+
+    @Test
+    public void divertedThrowableIsJournalledAsItsPrintedStackTrace() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory));
+        loggingBackend.getWatchdog().setFailureThreshold(1);
+        doThrow(new RuntimeException()).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.logStackTraceLine(
+                exceptionHandlingStrategyMock, Level.ERROR, CLASS_NAME, "exception line", console);
+        Exception exception = new Exception("message");
+
+        assertTrue(loggingBackend.logThrowable(Level.ERROR, CLASS_NAME, exception));
+        loggingBackend.getWatchdog().setRetryIntervalMillis(0);
+        loggingBackend.flushJournal();
+
+        StringWriter stackTrace = new StringWriter();
+        exception.printStackTrace(new PrintWriter(stackTrace));
+        assertEquals(asList(error("exception line"), error(stackTrace.toString().trim())), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void setJournalClosesPreviousJournal() throws IOException {
+        loggingBackend.setJournal(Journal.open(directory));
+
+        loggingBackend.setJournal(null);
+
+        Journal.open(directory).close();
+    }
+}
@@ -24,29 +24,49 @@
 
 package uk.org.lidalia.sysoutslf4j.context;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 import org.slf4j.Logger;
+import org.slf4j.MarkerFactory;
 
 import uk.org.lidalia.slf4jtest.TestLogger;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 import uk.org.lidalia.slf4jext.Level;
 import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -54,9 +74,10 @@ import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 import static uk.org.lidalia.slf4jtest.LoggingEvent.info;
 import static uk.org.lidalia.slf4jtest.LoggingEvent.warn;
+import static uk.org.lidalia.test.ShouldThrow.shouldThrow;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({CallOrigin.class, LoggingSystemRegister.class})
+@PrepareForTest({CallOrigin.class, LoggingSystemRegister.class, ThrowableBeingPrinted.class})
 public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
 
     private static final String CLASS_IN_LOGGING_SYSTEM = "org.logging.LoggerClass";
@@ -67,7 +88,9 @@ public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
     private ExceptionHandlingStrategy exceptionHandlingStrategyMock = mock(ExceptionHandlingStrategy.class);
     private PrintStream origPrintStreamMock = mock(PrintStream.class);
     private LoggingSystemRegister loggingSystemRegisterMock = mock(LoggingSystemRegister.class);
-    private LoggingOutputStream outputStream = new LoggingOutputStream(level, exceptionHandlingStrategyMock, origPrintStreamMock, loggingSystemRegisterMock);
+    private LoggingBackend loggingBackend = new LoggingBackend();
+    private LoggingOutputStream outputStream = new LoggingOutputStream(level, exceptionHandlingStrategyMock, origPrintStreamMock,
+            Charset.forName("UTF-8"), loggingSystemRegisterMock, loggingBackend);
     private TestLogger logger = TestLoggerFactory.getTestLogger(CLASS_NAME);
 
     @Before
@@ -89,6 +112,46 @@ public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
         assertEquals(asList(info("the message")), logger.getLoggingEvents());
     }
 
+    @Test
+    public void flushLogsEachCompleteLineTrimmedWhenPartialLineFollows() throws Exception {
+        outputStream.write("one  \r\n\ntwo\nthree".getBytes("UTF-8"));
+        outputStream.flush();
+        assertEquals(asList(info("one"), info("two")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void flushLogsEachOfSeveralLongLinesWhenPartialLineFollows() throws Exception {
+        outputStream.write("the first line, of more than one word \n".getBytes("UTF-8"));
+        outputStream.write("the second line, of more than one word\nthree".getBytes("UTF-8"));
+        outputStream.flush();
+        assertEquals(asList(info("the first line, of more than one word"),
+                info("the second line, of more than one word")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void flushLogsMultiLineMessageAsOneWhenItEndsWithLineBreak() throws Exception {
+        outputStream.write("one\ntwo \n".getBytes("UTF-8"));
+        outputStream.flush();
+        assertEquals(asList(info("one\ntwo")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void flushLogsCharacterSplitAcrossWritesWhole() throws Exception {
+        byte[] bytes = "caf\u00e9\n".getBytes("UTF-8");
+        outputStream.write(bytes, 0, 4);
+        outputStream.flush();
+        outputStream.write(bytes, 4, 2);
+        outputStream.flush();
+        assertEquals(asList(info("caf\u00e9")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void charsetIsKeptOnlyIfLineBreakIsEncodedAsASingleByte() {
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        assertSame(latin1, LoggingOutputStream.charsetFor(latin1));
+        assertEquals(Charset.forName("UTF-8"), LoggingOutputStream.charsetFor(Charset.forName("UTF-16")));
+    }
+
     @Test
     public void flushWritesToOriginalPrintStreamIfInLoggingSystem() throws Exception {
         mockGettingCallOrigin(false, true, CLASS_IN_LOGGING_SYSTEM);
@@ -103,6 +166,124 @@ public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
         verify(exceptionHandlingStrategyMock, never()).handleExceptionLine(anyString(), any(Logger.class));
     }
 
+    @Test
+    public void flushDoesNotHoldLockWhileWritingToOriginalPrintStream() throws Exception {
+        mockGettingCallOrigin(false, true, CLASS_IN_LOGGING_SYSTEM);
+        final ReentrantLock lock = (ReentrantLock) Whitebox.getInternalState(outputStream, "lock");
+        final AtomicBoolean lockHeld = new AtomicBoolean(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                lockHeld.set(lock.isHeldByCurrentThread());
+                return null;
+            }
+        }).when(origPrintStreamMock).write(any(byte[].class), anyInt(), anyInt());
+
+        outputStream.write("twelve chars".getBytes("UTF-8"));
+        outputStream.flush();
+
+        assertFalse(lockHeld.get());
+    }
+
+    @Test(timeout = 10000)
+    public void printingThreadIsNotHeldUpByAThreadStuckInTheLoggingSystem() throws Exception {
+        mockGettingCallOrigin(true, false, CLASS_NAME);
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                stuck.countDown();
+                release.await();
+                return null;
+            }
+        }).when(exceptionHandlingStrategyMock).handleExceptionLine(anyString(), any(Logger.class));
+        loggingBackend.getWatchdog().setLatencyThresholdMillis(50);
+        Thread stuckThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    outputStream.write("java.lang.Exception: stuck\n".getBytes("UTF-8"));
+                    outputStream.flush();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        stuckThread.start();
+        stuck.await();
+        try {
+            outputStream.write("\tat some.Class.method(Class.java:1)\n".getBytes("UTF-8"));
+            outputStream.flush();
+            outputStream.write("\tat some.Class.caller(Class.java:2)\n".getBytes("UTF-8"));
+            outputStream.flush();
+
+            verify(origPrintStreamMock).println("\tat some.Class.method(Class.java:1)");
+            verify(origPrintStreamMock).println("\tat some.Class.caller(Class.java:2)");
+            assertEquals("OPEN", loggingBackend.getWatchdog().getState());
+        } finally {
+            release.countDown();
+            stuckThread.join();
+        }
+    }
+
+    @Test
+    public void writeAndFlushLogsCompleteLines() throws Exception {
+        byte[] bytes = "the message\npartial".getBytes("UTF-8");
+        outputStream.write(bytes, 0, bytes.length, true);
+        assertEquals(asList(info("the message")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void writeAndFlushLogsLinesOfBlockAndKeepsPartialLineAtItsEnd() throws Exception {
+        byte[] block = "one\ntwo\nthr".getBytes("UTF-8");
+        outputStream.write(block, 0, block.length, true);
+        byte[] rest = "ee\n".getBytes("UTF-8");
+        outputStream.write(rest, 0, rest.length, true);
+
+        assertEquals(asList(info("one"), info("two"), info("three")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void writeAndFlushCompletesPartialLineLeftBeforeBlock() throws Exception {
+        outputStream.write("the start ".getBytes("UTF-8"));
+        byte[] block = "of a line\nanother line\npartial".getBytes("UTF-8");
+        outputStream.write(block, 0, block.length, true);
+
+        assertEquals(asList(info("the start of a line"), info("another line")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void writeAndFlushLogsSliceOfCallersArray() throws Exception {
+        byte[] block = "xxone\ntwo\nxx".getBytes("UTF-8");
+        outputStream.write(block, 2, block.length - 4, true);
+
+        assertEquals(asList(info("one\ntwo")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void writeAndFlushDoesNotCopyCompleteLinesIntoBuffer() throws Exception {
+        StringBuilder manyLines = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            manyLines.append("line ").append(i).append('\n');
+        }
+        byte[] block = manyLines.append("partial").toString().getBytes("UTF-8");
+
+        outputStream.write(block, 0, block.length, true);
+
+        assertEquals(10000, logger.getLoggingEvents().size());
+        ConcurrentMap<Thread, LineBuffer> lineBuffersInUse = Whitebox.getInternalState(outputStream, "lineBuffersInUse");
+        byte[] buffer = Whitebox.getInternalState(lineBuffersInUse.get(Thread.currentThread()), "buf");
+        assertEquals(32, buffer.length);
+    }
+
+    @Test
+    public void writeWithoutFlushDoesNotLog() throws Exception {
+        byte[] bytes = "the message\n".getBytes("UTF-8");
+        outputStream.write(bytes, 0, bytes.length, false);
+        assertEquals(emptyList(), logger.getLoggingEvents());
+    }
+
     @Test
     public void flushWarnsOnceIfInLoggingSystem() throws Exception {
         AtomicBoolean warned = (AtomicBoolean) Whitebox.getField(LoggingOutputStream.class, "warned").get(LoggingOutputStream.class);
@@ -134,7 +315,9 @@ public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
         outputStream.write("exception line\n".getBytes("UTF-8"));
         outputStream.flush();
 
-        verify(exceptionHandlingStrategyMock).handleExceptionLine("exception line", logger);
+        ArgumentCaptor<Logger> log = ArgumentCaptor.forClass(Logger.class);
+        verify(exceptionHandlingStrategyMock).handleExceptionLine(eq("exception line"), log.capture());
+        assertEquals(CLASS_NAME, log.getValue().getName());
         verify(exceptionHandlingStrategyMock, never()).notifyNotStackTrace();
         assertEquals(emptyList(), logger.getLoggingEvents());
     }
@@ -154,6 +337,323 @@ public class LoggingOutputStreamTests extends SysOutOverSLF4JTestCase {
         assertEquals(asList(info("12"), info("34")), logger.getLoggingEvents());
     }
 
+    @Test
+    public void drainLogsPartialLine() throws Exception {
+        outputStream.write("partial line".getBytes("UTF-8"));
+        outputStream.flush();
+
+        outputStream.drain();
+
+        TestLogger sysOutOverSLF4JLogger = TestLoggerFactory.getTestLogger(SysOutOverSLF4J.class);
+        assertEquals(asList(info("partial line")), sysOutOverSLF4JLogger.getLoggingEvents());
+        verify(exceptionHandlingStrategyMock).notifyNotStackTrace();
+    }
+
+    @Test
+    public void drainLogsNothingWhenBufferIsEmpty() throws Exception {
+        outputStream.write("the message\n".getBytes("UTF-8"));
+        outputStream.flush();
+
+        outputStream.drain();
+
+        assertEquals(asList(info("the message")), logger.getLoggingEvents());
+        assertEquals(emptyList(), TestLoggerFactory.getTestLogger(SysOutOverSLF4J.class).getLoggingEvents());
+    }
+
+    @Test
+    public void linesOfDifferentThreadsAreNotSplicedTogether() throws Exception {
+        outputStream.write("main ".getBytes("UTF-8"));
+        outputStream.flush();
+
+        Thread otherThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    outputStream.write("other ".getBytes("UTF-8"));
+                    outputStream.write("line\n".getBytes("UTF-8"));
+                    outputStream.flush();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        otherThread.start();
+        otherThread.join();
+        outputStream.write("line\n".getBytes("UTF-8"));
+        outputStream.flush();
+
+        assertEquals(asList(info("other line"), info("main line")), logger.getAllLoggingEvents());
+    }
+
+    @Test
+    public void drainLogsPartialLinesOfEveryThread() throws Exception {
+        outputStream.write("main partial".getBytes("UTF-8"));
+        Thread otherThread = new Thread() {
+            @Override
+            public void run() {
+                outputStream.write('x');
+            }
+        };
+        otherThread.start();
+        otherThread.join();
+
+        outputStream.drain();
+
+        TestLogger sysOutOverSLF4JLogger = TestLoggerFactory.getTestLogger(SysOutOverSLF4J.class);
+        assertEquals(2, sysOutOverSLF4JLogger.getAllLoggingEvents().size());
+        assertTrue(sysOutOverSLF4JLogger.getAllLoggingEvents().contains(info("main partial")));
+        assertTrue(sysOutOverSLF4JLogger.getAllLoggingEvents().contains(info("x")));
+    }
+
+    @Test
+    public void threadsKeepNoBufferInUseOnceTheirLinesAreLoggedOrDrained() throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    outputStream.write('x');
+                    outputStream.write('\n');
+                    outputStream.write('y');
+                }
+            };
+            threads.add(thread);
+            thread.start();
+            thread.join();
+        }
+        ConcurrentMap<Thread, LineBuffer> lineBuffersInUse = Whitebox.getInternalState(outputStream, "lineBuffersInUse");
+        assertEquals(10, lineBuffersInUse.size());
+
+        outputStream.drain();
+
+        assertTrue(lineBuffersInUse.isEmpty());
+    }
+
+    @Test
+    public void threadsThatLeaveNoPartialLineReuseTheSameIdleBufferAcrossGarbageCollections() throws Exception {
+        final byte[] line = "x\n".getBytes("UTF-8");
+        final List<LineBuffer> used = new ArrayList<LineBuffer>();
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        outputStream.write(line, 0, line.length, true);
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+            System.gc();
+            used.addAll(idleLineBuffers());
+        }
+
+        assertEquals(10, logger.getLoggingEvents().size());
+        ConcurrentMap<Thread, LineBuffer> lineBuffersInUse = Whitebox.getInternalState(outputStream, "lineBuffersInUse");
+        assertTrue(lineBuffersInUse.isEmpty());
+        assertEquals(10, used.size());
+        for (LineBuffer lineBuffer : used) {
+            assertSame(used.get(0), lineBuffer);
+        }
+    }
+
+    private List<LineBuffer> idleLineBuffers() {
+        AtomicReferenceArray<LineBuffer> idleLineBuffers = Whitebox.getInternalState(outputStream, "idleLineBuffers");
+        List<LineBuffer> idle = new ArrayList<LineBuffer>();
+        for (int i = 0; i < idleLineBuffers.length(); i++) {
+            if (idleLineBuffers.get(i) != null) {
+                idle.add(idleLineBuffers.get(i));
+            }
+        }
+        return idle;
+    }
+
+    @Test
+    public void idleLineBuffersAreAPowerOfTwoOfAtLeastFourPerProcessor() {
+        assertEquals(4, LoggingOutputStream.idleLineBuffers(1));
+        assertEquals(8, LoggingOutputStream.idleLineBuffers(2));
+        assertEquals(16, LoggingOutputStream.idleLineBuffers(3));
+        assertEquals(32, LoggingOutputStream.idleLineBuffers(8));
+    }
+
+    @Test
+    public void lineLongerThanMaximumIsLoggedInPiecesAsItIsWritten() throws Exception {
+        LoggingOutputStream.setMaximumLineLength(5, LineOverflowPolicy.SPLIT);
+        try {
+            outputStream.write("abcdefghijkl".getBytes("UTF-8"));
+            assertEquals(asList(info("abcde"), info("fghij")), logger.getLoggingEvents());
+
+            outputStream.write("\n".getBytes("UTF-8"));
+            outputStream.flush();
+            assertEquals(asList(info("abcde"), info("fghij"), info("kl")), logger.getLoggingEvents());
+        } finally {
+            resetMaximumLineLength();
+        }
+    }
+
+    @Test
+    public void lineLongerThanMaximumIsNotSplitWithinACharacter() throws Exception {
+        LoggingOutputStream.setMaximumLineLength(5, LineOverflowPolicy.SPLIT);
+        try {
+            outputStream.write("abcd\u00e9f".getBytes("UTF-8"));
+            outputStream.write('\n');
+            outputStream.flush();
+            assertEquals(asList(info("abcd"), info("\u00e9f")), logger.getLoggingEvents());
+        } finally {
+            resetMaximumLineLength();
+        }
+    }
+
+    @Test
+    public void lineLongerThanMaximumIsTruncatedAndRestOfLineDiscarded() throws Exception {
+        LoggingOutputStream.setMaximumLineLength(5, LineOverflowPolicy.TRUNCATE);
+        try {
+            outputStream.write("abcdefgh".getBytes("UTF-8"));
+            outputStream.write("ijk".getBytes("UTF-8"));
+            outputStream.write("lmn\nnext\n".getBytes("UTF-8"));
+            outputStream.flush();
+            assertEquals(asList(info("abcde [truncated]"), info("next")), logger.getLoggingEvents());
+        } finally {
+            resetMaximumLineLength();
+        }
+    }
+
+    @Test
+    public void lineLongerThanMaximumIsPassedThroughToOriginalPrintStream() throws Exception {
+        LoggingOutputStream.setMaximumLineLength(5, LineOverflowPolicy.PASS_THROUGH);
+        try {
+            outputStream.write("abcdefgh".getBytes("UTF-8"));
+            byte[] restOfLine = "ij\nnext\n".getBytes("UTF-8");
+            outputStream.write(restOfLine, 0, restOfLine.length, true);
+
+            verify(origPrintStreamMock).write(any(byte[].class), eq(0), eq(8));
+            verify(origPrintStreamMock).write(restOfLine, 0, 3);
+            assertEquals(asList(info("next")), logger.getLoggingEvents());
+        } finally {
+            resetMaximumLineLength();
+        }
+    }
+
+    @Test
+    public void maximumLineLengthMustHoldACharacter() {
+        IllegalArgumentException exception = shouldThrow(IllegalArgumentException.class, new Runnable() {
+            public void run() {
+                LoggingOutputStream.setMaximumLineLength(3, LineOverflowPolicy.SPLIT);
+            }
+        });
+        assertEquals("maximumLineLength must be at least 4; was 3", exception.getMessage());
+    }
+
+    private static void resetMaximumLineLength() {
+        LoggingOutputStream.setMaximumLineLength(64 * 1024, LineOverflowPolicy.SPLIT);
+    }
+
+    @Test
+    public void partialLineIsLoggedOnceIdleFlushIntervalHasPassed() throws Exception {
+        LoggingOutputStream.setIdleFlushInterval(1, TimeUnit.MILLISECONDS);
+        try {
+            outputStream.write("Enter a value: ".getBytes("UTF-8"));
+            outputStream.flush();
+
+            TestLogger sysOutOverSLF4JLogger = TestLoggerFactory.getTestLogger(SysOutOverSLF4J.class);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (sysOutOverSLF4JLogger.getAllLoggingEvents().isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(asList(info("Enter a value:")), sysOutOverSLF4JLogger.getAllLoggingEvents());
+        } finally {
+            LoggingOutputStream.setIdleFlushInterval(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void logThrowableLogsThrowableAndDiscardsItsPrintedStackTrace() throws Exception {
+        Exception exception = new Exception("message");
+        mockStatic(ThrowableBeingPrinted.class);
+        when(ThrowableBeingPrinted.get()).thenReturn(exception);
+
+        assertTrue(outputStream.logThrowable(exception));
+        outputStream.write("\tat org.something.SomeClass.method(SomeClass.java:1)\n".getBytes("UTF-8"));
+        outputStream.flush();
+
+        assertEquals(asList(info(exception, MarkerFactory.getMarker("stacktrace"), "java.lang.Exception: message")),
+                logger.getLoggingEvents());
+        verify(exceptionHandlingStrategyMock, never()).handleExceptionLine(anyString(), any(Logger.class));
+    }
+
+    @Test
+    public void outputIsLoggedAgainOnceLoggedThrowableHasBeenPrinted() throws Exception {
+        Exception exception = new Exception("message");
+        mockStatic(ThrowableBeingPrinted.class);
+        when(ThrowableBeingPrinted.get()).thenReturn(exception);
+        outputStream.logThrowable(exception);
+
+        when(ThrowableBeingPrinted.get()).thenReturn(null);
+        outputStream.write("the message\n".getBytes("UTF-8"));
+        outputStream.flush();
+
+        assertEquals(asList(info(exception, MarkerFactory.getMarker("stacktrace"), "java.lang.Exception: message"),
+                info("the message")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void logThrowableLogsPendingPartialLineFirst() throws Exception {
+        Exception exception = new Exception("message");
+        outputStream.write("partial line".getBytes("UTF-8"));
+        outputStream.flush();
+
+        outputStream.logThrowable(exception);
+
+        assertEquals(asList(info("partial line"),
+                info(exception, MarkerFactory.getMarker("stacktrace"), "java.lang.Exception: message")),
+                logger.getLoggingEvents());
+    }
+
+    @Test
+    public void logThrowableDoesNotLogIfInLoggingSystem() throws Exception {
+        mockGettingCallOrigin(true, true, CLASS_IN_LOGGING_SYSTEM);
+
+        assertFalse(outputStream.logThrowable(new Exception("message")));
+
+        assertEquals(emptyList(), TestLoggerFactory.getTestLogger(CLASS_IN_LOGGING_SYSTEM).getLoggingEvents());
+    }
+
+    @Test
+    public void printedStackTracesAreCountedOncePerTrace() throws Exception {
+        mockGettingCallOrigin(true, false, CLASS_NAME);
+
+        for (String line : asList(
+                "Exception in thread \"main\" java.lang.IllegalStateException: first",
+                "second line of message",
+                "\tat org.something.SomeClass.method(SomeClass.java:1)",
+                "Caused by: java.io.IOException: cause",
+                "\t... 1 more",
+                "java.lang.IllegalStateException",
+                "\tat org.something.SomeClass.method(SomeClass.java:1)")) {
+            outputStream.write((line + "\n").getBytes("UTF-8"));
+            outputStream.flush();
+        }
+
+        ExceptionStatistics exceptionStatistics = loggingBackend.getExceptionStatistics();
+        assertEquals(2, exceptionStatistics.getTotalCount());
+        ExceptionCount exceptionCount = exceptionStatistics.getExceptions().get(0);
+        assertEquals("java.lang.IllegalStateException", exceptionCount.getExceptionClass());
+        assertEquals(CLASS_NAME, exceptionCount.getLoggerName());
+        assertEquals(2, exceptionCount.getCount());
+    }
+
+    @Test
+    public void logThrowableCountsThrowable() throws Exception {
+        outputStream.logThrowable(new IllegalArgumentException("message"));
+
+        ExceptionCount exceptionCount = loggingBackend.getExceptionStatistics().getExceptions().get(0);
+        assertEquals("java.lang.IllegalArgumentException", exceptionCount.getExceptionClass());
+        assertEquals(CLASS_NAME, exceptionCount.getLoggerName());
+        assertEquals(1, exceptionCount.getCount());
+    }
+
     private void mockGettingCallOrigin(boolean isStackTrace, boolean inLoggingSystem, String className) {
         CallOrigin callOriginMock = mock(CallOrigin.class);
         when(callOriginMock.isPrintingStackTrace()).thenReturn(isStackTrace);
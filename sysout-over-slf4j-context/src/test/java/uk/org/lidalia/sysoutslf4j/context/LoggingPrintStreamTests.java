@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+import uk.org.lidalia.sysoutslf4j.system.ThrowableBeingPrinted;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ThrowableBeingPrinted.class)
+public class LoggingPrintStreamTests extends SysOutOverSLF4JTestCase {
+
+    private final Exception exception = new Exception("message");
+    private final LoggingOutputStream loggingOutputStreamMock = mock(LoggingOutputStream.class);
+    private final LoggingPrintStream printStream = new LoggingPrintStream(loggingOutputStreamMock, Charset.defaultCharset());
+
+    @Before
+    public void mockThrowableBeingPrinted() {
+        mockStatic(ThrowableBeingPrinted.class);
+    }
+
+    @Test
+    public void printlnOfThrowableBeingPrintedLogsThrowable() {
+        when(ThrowableBeingPrinted.get()).thenReturn(exception);
+        when(loggingOutputStreamMock.logThrowable(exception)).thenReturn(true);
+
+        printStream.println(exception);
+
+        verify(loggingOutputStreamMock).logThrowable(exception);
+        verify(loggingOutputStreamMock, never()).write(any(byte[].class), anyInt(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void printlnOfThrowableBeingPrintedIsWrittenIfNotLogged() {
+        when(ThrowableBeingPrinted.get()).thenReturn(exception);
+        when(loggingOutputStreamMock.logThrowable(exception)).thenReturn(false);
+
+        printStream.println(exception);
+
+        verify(loggingOutputStreamMock, atLeastOnce()).write(any(byte[].class), anyInt(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    public void printlnWritesLineAndFlushes() throws Exception {
+        printStream.println("text");
+
+        byte[] expected = ("text" + System.getProperty("line.separator")).getBytes();
+        verify(loggingOutputStreamMock).write(expected, 0, expected.length, true);
+    }
+
+    @Test
+    public void printWithoutNewlineWritesWithoutFlushing() throws Exception {
+        printStream.print("text");
+
+        verify(loggingOutputStreamMock).write("text".getBytes(), 0, 4, false);
+    }
+
+    @Test
+    public void printfWritesFormattedText() throws Exception {
+        printStream.printf("%s-%d", "text", 1);
+
+        verify(loggingOutputStreamMock).write("text-1".getBytes(), 0, 6, false);
+    }
+
+    @Test
+    public void monitorIsNotHeldWhileWritingToLoggingOutputStream() throws Exception {
+        final AtomicBoolean monitorHeld = new AtomicBoolean(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                monitorHeld.set(Thread.holdsLock(printStream));
+                return null;
+            }
+        }).when(loggingOutputStreamMock).write(any(byte[].class), anyInt(), anyInt(), anyBoolean());
+
+        printStream.println("text");
+
+        assertFalse(monitorHeld.get());
+    }
+
+    @Test
+    public void printlnOfThrowableNotBeingPrintedIsWritten() {
+        when(ThrowableBeingPrinted.get()).thenReturn(null);
+
+        printStream.println(exception);
+
+        verify(loggingOutputStreamMock, never()).logThrowable(exception);
+        verify(loggingOutputStreamMock, atLeastOnce()).write(any(byte[].class), anyInt(), anyInt(), anyBoolean());
+    }
+}
@@ -35,31 +35,52 @@ import static uk.org.lidalia.test.Assert.isNotInstantiable;
 
 public class ReferenceHolderTests {
 
+    private final Object key = new Object();
+
     @Test
-    public void preventGarbageCollectionForLifeOfClassLoaderMaintainsInstance() {
+    public void holdUntilReleasedMaintainsInstance() {
         Object object = new Object();
         WeakReference<Object> ref = new WeakReference<Object>(object);
 
-        ReferenceHolder.preventGarbageCollectionForLifeOfClassLoader(object);
+        ReferenceHolder.holdUntilReleased(key, object);
         object = null;
         System.gc();
 
         assertNotNull(ref.get());
+        ReferenceHolder.release(key);
     }
 
     @Test
-    public void allowGarbageCollectionForLifeOfClassLoaderFreesUpInstance() {
+    public void releaseFreesUpInstance() {
         Object object = new Object();
         WeakReference<Object> ref = new WeakReference<Object>(object);
 
-        ReferenceHolder.preventGarbageCollectionForLifeOfClassLoader(object);
-        ReferenceHolder.allowGarbageCollection(object);
+        ReferenceHolder.holdUntilReleased(key, object);
+        ReferenceHolder.release(key);
         object = null;
         System.gc();
 
         assertNull(ref.get());
     }
 
+    @Test
+    public void holdingAnotherInstanceForSameKeyFreesUpFirstInstance() {
+        Object first = new Object();
+        WeakReference<Object> firstRef = new WeakReference<Object>(first);
+        Object second = new Object();
+        WeakReference<Object> secondRef = new WeakReference<Object>(second);
+
+        ReferenceHolder.holdUntilReleased(key, first);
+        ReferenceHolder.holdUntilReleased(key, second);
+        first = null;
+        second = null;
+        System.gc();
+
+        assertNull(firstRef.get());
+        assertNotNull(secondRef.get());
+        ReferenceHolder.release(key);
+    }
+
     @Test
     public void notInstantiable() throws Throwable {
         assertThat(ReferenceHolder.class, isNotInstantiable());
@@ -25,10 +25,18 @@
 package uk.org.lidalia.sysoutslf4j.context;
 
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -40,22 +48,31 @@ import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategy;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.ExceptionHandlingStrategyFactory;
 import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.LogPerLineExceptionHandlingStrategyFactory;
+import uk.org.lidalia.sysoutslf4j.system.PerContextDrains;
 import uk.org.lidalia.sysoutslf4j.system.PerContextSystemOutput;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.verify;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @RunWith(PowerMockRunner.class)
 @SuppressStaticInitializationFor("uk.org.lidalia.sysoutslf4j.context.SysOutOverSLF4J")
-@PrepareForTest({ LogPerLineExceptionHandlingStrategyFactory.class, LoggingSystemRegister.class, PerContextSystemOutput.class })
+@PowerMockIgnore("javax.management.*")
+@PrepareForTest({ LogPerLineExceptionHandlingStrategyFactory.class, LoggingSystemRegister.class, PerContextSystemOutput.class,
+        PerContextDrains.class, ReferenceHolder.class })
 public class SysOutOverSLF4JTests extends SysOutOverSLF4JTestCase {
 
     private final LoggingSystemRegister loggingSystemRegisterMock = mock(LoggingSystemRegister.class);
+    private final LoggingBackend loggingBackendMock = mock(LoggingBackend.class);
     private final Logger loggerMock = mock(Logger.class);
     private final PerContextSystemOutput outMock = mock(PerContextSystemOutput.class);
     private final PerContextSystemOutput errMock = mock(PerContextSystemOutput.class);
@@ -64,11 +81,17 @@ public class SysOutOverSLF4JTests extends SysOutOverSLF4JTestCase {
 
     private PrintStream outContextPrintStream;
     private PrintStream errContextPrintStream;
+    private final LoggingOutputStream outLoggingOutputStreamMock = mock(LoggingOutputStream.class);
+    private final LoggingOutputStream errLoggingOutputStreamMock = mock(LoggingOutputStream.class);
 
     @Before
     public void mockLoggingSystemRegister() {
         Whitebox.setInternalState(SysOutOverSLF4J.class, loggerMock);
         Whitebox.setInternalState(SysOutOverSLF4J.class, loggingSystemRegisterMock);
+        Whitebox.setInternalState(SysOutOverSLF4J.class, loggingBackendMock);
+        Whitebox.setInternalState(SysOutOverSLF4J.class, "LOGGING_OUTPUT_STREAMS",
+                new ConcurrentHashMap<PerContextSystemOutput, LoggingOutputStream>());
+        mockStatic(PerContextDrains.class);
     }
 
     @Before
@@ -125,23 +148,52 @@ public class SysOutOverSLF4JTests extends SysOutOverSLF4JTestCase {
         verify(errMock).registerPrintStreamForThisContext(errContextPrintStream);
     }
 
+    @Test
+    public void sendSystemOutAndErrToSLF4JRegistersDrainForThisContext() throws Exception {
+        expectLoggerAppendersToBeRegistered(Level.INFO, Level.ERROR, LogPerLineExceptionHandlingStrategyFactory.getInstance());
+
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        verifyStatic();
+        PerContextDrains.register(any(Runnable.class));
+    }
+
+    @Test
+    public void sendSystemOutAndErrToSLF4JDrainsReplacedStreams() throws Exception {
+        expectLoggerAppendersToBeRegistered(Level.INFO, Level.ERROR, LogPerLineExceptionHandlingStrategyFactory.getInstance());
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        verify(outLoggingOutputStreamMock).drain();
+        verify(errLoggingOutputStreamMock).drain();
+    }
+
+    @Test
+    public void flushAllDelegatesToPerContextDrains() {
+        when(PerContextDrains.drainAll(2, TimeUnit.SECONDS)).thenReturn(true);
+
+        assertTrue(SysOutOverSLF4J.flushAll(2, TimeUnit.SECONDS));
+    }
+
     private void expectLoggerAppendersToBeRegistered(Level outLevel, Level errLevel, ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory) throws Exception {
-        outContextPrintStream = expectLoggerAppenderToBeRegistered(outMock, outLevel, exceptionHandlingStrategyFactory);
-        errContextPrintStream = expectLoggerAppenderToBeRegistered(errMock, errLevel, exceptionHandlingStrategyFactory);
+        outContextPrintStream = expectLoggerAppenderToBeRegistered(outMock, outLevel, exceptionHandlingStrategyFactory, outLoggingOutputStreamMock);
+        errContextPrintStream = expectLoggerAppenderToBeRegistered(errMock, errLevel, exceptionHandlingStrategyFactory, errLoggingOutputStreamMock);
     }
 
-    private PrintStream expectLoggerAppenderToBeRegistered(PerContextSystemOutput systemOutputMock, Level logLevel, ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory) throws Exception {
+    private PrintStream expectLoggerAppenderToBeRegistered(PerContextSystemOutput systemOutputMock, Level logLevel, ExceptionHandlingStrategyFactory exceptionHandlingStrategyFactory, LoggingOutputStream slf4jOutputStreamMock) throws Exception {
         PrintStream originalPrintStreamMock = mock(PrintStream.class);
         when(systemOutputMock.getOriginalPrintStream()).thenReturn(originalPrintStreamMock);
 
         ExceptionHandlingStrategy exceptionHandlingStrategy = mock(ExceptionHandlingStrategy.class);
         when(exceptionHandlingStrategyFactory.makeExceptionHandlingStrategy(logLevel, originalPrintStreamMock)).thenReturn(exceptionHandlingStrategy);
 
-        LoggingOutputStream slf4jOutputStreamMock = mock(LoggingOutputStream.class);
-        whenNew(LoggingOutputStream.class).withArguments(logLevel, exceptionHandlingStrategy, originalPrintStreamMock, loggingSystemRegisterMock).thenReturn(slf4jOutputStreamMock);
+        Charset charset = LoggingOutputStream.charsetFor(Charset.defaultCharset());
+        whenNew(LoggingOutputStream.class).withArguments(logLevel, exceptionHandlingStrategy, originalPrintStreamMock,
+                charset, loggingSystemRegisterMock, loggingBackendMock).thenReturn(slf4jOutputStreamMock);
 
-        PrintStream newPrintStream = mock(PrintStream.class);
-        whenNew(PrintStream.class).withArguments(slf4jOutputStreamMock, true).thenReturn(newPrintStream);
+        LoggingPrintStream newPrintStream = mock(LoggingPrintStream.class);
+        whenNew(LoggingPrintStream.class).withArguments(slf4jOutputStreamMock, charset).thenReturn(newPrintStream);
 
         return newPrintStream;
     }
@@ -154,6 +206,96 @@ public class SysOutOverSLF4JTests extends SysOutOverSLF4JTestCase {
         verify(errMock).deregisterPrintStreamForThisContext();
     }
 
+    @Test
+    public void stopSendingSystemOutAndErrToSLF4JDrainsStreamsOfThisContext() throws Exception {
+        expectLoggerAppendersToBeRegistered(Level.INFO, Level.ERROR, LogPerLineExceptionHandlingStrategyFactory.getInstance());
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
+
+        verify(outLoggingOutputStreamMock).drain();
+        verify(errLoggingOutputStreamMock).drain();
+        verifyStatic();
+        PerContextDrains.deregister(any(Runnable.class));
+    }
+
+    @Test
+    public void printStreamsOfThisContextAreHeldUntilStopSendingSystemOutAndErrToSLF4J() throws Exception {
+        mockStatic(ReferenceHolder.class);
+        expectLoggerAppendersToBeRegistered(Level.INFO, Level.ERROR, LogPerLineExceptionHandlingStrategyFactory.getInstance());
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        verifyStatic();
+        ReferenceHolder.holdUntilReleased(outMock, outContextPrintStream);
+        verifyStatic();
+        ReferenceHolder.holdUntilReleased(errMock, errContextPrintStream);
+
+        SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
+
+        verifyStatic();
+        ReferenceHolder.release(outMock);
+        verifyStatic();
+        ReferenceHolder.release(errMock);
+    }
+
+    @Test
+    public void stopSendingSystemOutAndErrToSLF4JClosesJournal() throws Exception {
+        SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
+
+        verify(loggingBackendMock).setJournal(null);
+    }
+
+    @Test
+    public void getBackendWatchdogReturnsWatchdogOfLoggingBackend() {
+        BackendWatchdog watchdog = new BackendWatchdog();
+        when(loggingBackendMock.getWatchdog()).thenReturn(watchdog);
+
+        assertSame(watchdog, SysOutOverSLF4J.getBackendWatchdog());
+    }
+
+    @Test
+    public void getCaptureContextReturnsSameCaptureContextEachTime() {
+        CaptureContext captureContext = SysOutOverSLF4J.getCaptureContext();
+
+        assertNotNull(captureContext);
+        assertSame(captureContext, SysOutOverSLF4J.getCaptureContext());
+    }
+
+    @Test
+    public void getExceptionStatisticsReturnsExceptionStatisticsOfLoggingBackend() {
+        ExceptionStatistics exceptionStatistics = new ExceptionStatistics();
+        when(loggingBackendMock.getExceptionStatistics()).thenReturn(exceptionStatistics);
+
+        assertSame(exceptionStatistics, SysOutOverSLF4J.getExceptionStatistics());
+    }
+
+    @Test
+    public void registerMBeansRegistersWatchdogAndExceptionStatisticsUntilStopped() throws Exception {
+        when(loggingBackendMock.getWatchdog()).thenReturn(new BackendWatchdog());
+        when(loggingBackendMock.getExceptionStatistics()).thenReturn(new ExceptionStatistics());
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName sysOutOverSLF4JMBeans = new ObjectName("uk.org.lidalia.sysoutslf4j:*");
+
+        SysOutOverSLF4J.registerMBeans();
+        SysOutOverSLF4J.registerMBeans();
+        assertEquals(2, mBeanServer.queryNames(sysOutOverSLF4JMBeans, null).size());
+
+        SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
+        assertEquals(0, mBeanServer.queryNames(sysOutOverSLF4JMBeans, null).size());
+    }
+
+    @Test
+    public void registerMBeansRegistersRegisteredContextsOfEachOutput() throws Exception {
+        when(loggingBackendMock.getWatchdog()).thenReturn(new BackendWatchdog());
+        when(loggingBackendMock.getExceptionStatistics()).thenReturn(new ExceptionStatistics());
+
+        SysOutOverSLF4J.registerMBeans();
+        SysOutOverSLF4J.unregisterMBeans();
+
+        verifyStatic();
+        PerContextSystemOutput.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
     @Test
     public void restoreOriginalSystemOutputsDelegatesToSLF4JPrintStreamManager() {
         SysOutOverSLF4J.restoreOriginalSystemOutputs();
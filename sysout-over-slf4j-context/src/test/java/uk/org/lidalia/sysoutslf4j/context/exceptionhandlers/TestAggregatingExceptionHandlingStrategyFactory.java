@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jtest.LoggingEvent;
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+
+public class TestAggregatingExceptionHandlingStrategyFactory extends SysOutOverSLF4JTestCase {
+
+    private static final ExceptionHandlingStrategyFactory STRATEGY_FACTORY =
+        AggregatingExceptionHandlingStrategyFactory.getInstance();
+    private static final Marker STACKTRACE = MarkerFactory.getMarker("stacktrace");
+
+    private final ExceptionHandlingStrategy strategy = STRATEGY_FACTORY.makeExceptionHandlingStrategy(Level.ERROR, null);
+    private final TestLogger log = TestLoggerFactory.getTestLogger(TestAggregatingExceptionHandlingStrategyFactory.class);
+    private final TestLogger otherLog = TestLoggerFactory.getTestLogger("org.other.OtherClass");
+
+    @Test
+    public void logsNothingUntilTraceIsComplete() {
+        print(new Exception("message"), log);
+
+        assertEquals(emptyList(), log.getLoggingEvents());
+    }
+
+    @Test
+    public void logsWholeTraceAsOneEventOnNotifyNotStackTrace() {
+        Exception exception = new IllegalStateException("message", new Exception("cause"));
+        print(exception, log);
+
+        strategy.notifyNotStackTrace();
+
+        List<LoggingEvent> events = log.getLoggingEvents();
+        assertEquals(1, events.size());
+        LoggingEvent event = events.get(0);
+        assertEquals(Level.ERROR, event.getLevel());
+        assertEquals(STACKTRACE, event.getMarker().get());
+        assertEquals("java.lang.IllegalStateException: message", event.getMessage());
+        Throwable logged = event.getThrowable().get();
+        TestPrintedThrowableBuilder.assertSameFrames(exception.getStackTrace(), logged.getStackTrace());
+        assertEquals("java.lang.Exception: cause", logged.getCause().toString());
+    }
+
+    @Test
+    public void logsPreviousTraceWhenNextTraceStarts() {
+        print(new Exception("first"), log);
+        print(new Exception("second"), log);
+        strategy.notifyNotStackTrace();
+
+        assertEquals(asList("java.lang.Exception: first", "java.lang.Exception: second"), messages(log));
+    }
+
+    @Test
+    public void logsPreviousTraceWhenLoggerChanges() {
+        print(new Exception("first"), log);
+        print(new Exception("second"), otherLog);
+        strategy.notifyNotStackTrace();
+
+        assertEquals(asList("java.lang.Exception: first"), messages(log));
+        assertEquals(asList("java.lang.Exception: second"), messages(otherLog));
+    }
+
+    @Test
+    public void logsPreviousTraceWhenThreadChanges() throws Exception {
+        print(new Exception("first"), log);
+        final AtomicReference<List<String>> messagesSeenByOtherThread = new AtomicReference<List<String>>();
+        Thread otherThread = new Thread() {
+            @Override
+            public void run() {
+                strategy.handleExceptionLine("java.lang.Exception: second", log);
+                messagesSeenByOtherThread.set(messages(log));
+            }
+        };
+        otherThread.start();
+        otherThread.join();
+
+        assertEquals(asList("java.lang.Exception: first"), messagesSeenByOtherThread.get());
+    }
+
+    @Test
+    public void notifyNotStackTraceWithNothingPendingLogsNothing() {
+        strategy.notifyNotStackTrace();
+
+        assertEquals(emptyList(), log.getLoggingEvents());
+    }
+
+    private void print(Throwable throwable, org.slf4j.Logger logger) {
+        StringWriter printed = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(printed));
+        for (String line : printed.toString().split(System.getProperty("line.separator"))) {
+            strategy.handleExceptionLine(line, logger);
+        }
+    }
+
+    private static List<String> messages(TestLogger logger) {
+        List<String> messages = new ArrayList<String>();
+        for (LoggingEvent event : logger.getAllLoggingEvents()) {
+            messages.add(event.getMessage());
+        }
+        return messages;
+    }
+}
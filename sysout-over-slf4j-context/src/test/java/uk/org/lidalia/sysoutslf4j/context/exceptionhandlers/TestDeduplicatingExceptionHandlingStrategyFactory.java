@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.helpers.MessageFormatter;
+
+import com.google.common.base.Ticker;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jtest.LoggingEvent;
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class TestDeduplicatingExceptionHandlingStrategyFactory extends SysOutOverSLF4JTestCase {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final ExceptionHandlingStrategy strategy = new DeduplicatingExceptionHandlingStrategyFactory(
+            AggregatingExceptionHandlingStrategyFactory.getInstance(), 10, TimeUnit.SECONDS, 2, ticker)
+            .makeExceptionHandlingStrategy(Level.ERROR, null);
+    private final TestLogger log = TestLoggerFactory.getTestLogger(TestDeduplicatingExceptionHandlingStrategyFactory.class);
+
+    @Test
+    public void logsFirstOccurrenceOfTrace() {
+        printRepeatedly("message", 1);
+
+        assertEquals(asList("java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void suppressesRepeatsWithinWindow() {
+        printRepeatedly("message", 3);
+
+        assertEquals(asList("java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void treatsTracesDifferingOnlyInMessageAsRepeats() {
+        for (int attempt = 1; attempt <= 2; attempt++) {
+            print(new Exception("attempt " + attempt));
+        }
+
+        assertEquals(asList("java.lang.Exception: attempt 1"), messages());
+    }
+
+    @Test
+    public void logsTracesWithDifferentFramesSeparately() {
+        printRepeatedly("message", 1);
+        print(new Exception("message"));
+
+        assertEquals(asList("java.lang.Exception: message", "java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void logsSummaryAndTraceAgainOnceWindowHasPassed() {
+        for (int i = 0; i < 4; i++) {
+            if (i == 3) {
+                ticker.advance(10, TimeUnit.SECONDS);
+            }
+            print(new Exception("message"));
+        }
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "java.lang.Exception: message repeated 2 more times",
+                "java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void logsSummaryWhenToldOfOtherOutputOnceWindowHasPassed() {
+        printRepeatedly("message", 3);
+        ticker.advance(10, TimeUnit.SECONDS);
+
+        strategy.notifyNotStackTrace();
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "java.lang.Exception: message repeated 2 more times"), messages());
+    }
+
+    @Test
+    public void doesNotLogSummaryBeforeWindowHasPassed() {
+        printRepeatedly("message", 3);
+        ticker.advance(9, TimeUnit.SECONDS);
+
+        strategy.notifyNotStackTrace();
+
+        assertEquals(asList("java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void logsTraceWithoutSummaryAfterSummaryHasBeenLogged() {
+        printRepeatedly("message", 2);
+        ticker.advance(10, TimeUnit.SECONDS);
+        strategy.notifyNotStackTrace();
+
+        print(new Exception("message"));
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "java.lang.Exception: message repeated 1 more times",
+                "java.lang.Exception: message"), messages());
+    }
+
+    @Test
+    public void logsSummaryWhenFingerprintIsEvicted() {
+        printRepeatedly("first", 2);
+        print(new IllegalStateException("second"));
+        print(new IllegalArgumentException("third"));
+
+        assertEquals(asList(
+                "java.lang.Exception: first",
+                "java.lang.IllegalStateException: second",
+                "java.lang.Exception: first repeated 1 more times",
+                "java.lang.IllegalArgumentException: third"), messages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaximumFingerprintsLessThanOne() {
+        new DeduplicatingExceptionHandlingStrategyFactory(
+                LogPerLineExceptionHandlingStrategyFactory.getInstance(), 1, TimeUnit.SECONDS, 0);
+    }
+
+    private void printRepeatedly(String message, int times) {
+        for (int i = 0; i < times; i++) {
+            print(new Exception(message));
+        }
+    }
+
+    private void print(Throwable throwable) {
+        StringWriter printed = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(printed));
+        for (String line : printed.toString().split(System.getProperty("line.separator"))) {
+            strategy.handleExceptionLine(line, log);
+        }
+        strategy.notifyNotStackTrace();
+    }
+
+    private List<String> messages() {
+        List<String> messages = new ArrayList<String>();
+        for (LoggingEvent event : log.getLoggingEvents()) {
+            messages.add(MessageFormatter.arrayFormat(event.getMessage(), event.getArguments().toArray()).getMessage());
+        }
+        return messages;
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos = 0;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class TestFoldingExceptionHandlingStrategyFactory extends SysOutOverSLF4JTestCase {
+
+    private final List<String> lines = new ArrayList<String>();
+    private final Logger log = LoggerFactory.getLogger(TestFoldingExceptionHandlingStrategyFactory.class);
+
+    @Test
+    public void foldsConsecutiveFramesInFoldedPackage() {
+        handle(strategy(10, "org.apache.catalina"),
+                "java.lang.Exception: message",
+                "\tat com.example.Servlet.doGet(Servlet.java:10)",
+                "\tat org.apache.catalina.core.StandardWrapperValve.invoke(StandardWrapperValve.java:1)",
+                "\tat org.apache.catalina.core.StandardContextValve.invoke(StandardContextValve.java:2)",
+                "\tat org.apache.catalina.connector.CoyoteAdapter.service(CoyoteAdapter.java:3)",
+                "\tat java.lang.Thread.run(Thread.java:4)");
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "\tat com.example.Servlet.doGet(Servlet.java:10)",
+                "\t... 3 frames in org.apache.catalina",
+                "\tat java.lang.Thread.run(Thread.java:4)"), lines);
+    }
+
+    @Test
+    public void passesOnSingleFrameInFoldedPackageUnchanged() {
+        handle(strategy(10, "org.apache.catalina"),
+                "java.lang.Exception: message",
+                "\tat org.apache.catalina.core.StandardWrapperValve.invoke(StandardWrapperValve.java:1)",
+                "\tat java.lang.Thread.run(Thread.java:4)");
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "\tat org.apache.catalina.core.StandardWrapperValve.invoke(StandardWrapperValve.java:1)",
+                "\tat java.lang.Thread.run(Thread.java:4)"), lines);
+    }
+
+    @Test
+    public void doesNotFoldPackageThatOnlySharesPrefix() {
+        handle(strategy(10, "org.apache.cat"),
+                "java.lang.Exception: message",
+                "\tat org.apache.catalina.core.A.a(A.java:1)",
+                "\tat org.apache.catalina.core.B.b(B.java:2)");
+
+        assertEquals(3, lines.size());
+    }
+
+    @Test
+    public void foldsFramesOfCauseAtTheirIndentation() {
+        handle(strategy(10, "sun.reflect"),
+                "java.lang.Exception: message",
+                "\tat com.example.A.a(A.java:1)",
+                "\tSuppressed: java.lang.Exception: suppressed",
+                "\t\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)",
+                "\t\tat sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:62)",
+                "\t\t... 1 more",
+                "Caused by: java.lang.Exception: cause",
+                "\tat sun.reflect.NativeMethodAccessorImpl.invoke0(Native Method)",
+                "\tat sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:62)");
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "\tat com.example.A.a(A.java:1)",
+                "\tSuppressed: java.lang.Exception: suppressed",
+                "\t\t... 2 frames in sun.reflect",
+                "\t\t... 1 more",
+                "Caused by: java.lang.Exception: cause"), lines.subList(0, 6));
+    }
+
+    @Test
+    public void foldedRunAtEndOfTraceIsPassedOnWhenTraceEnds() {
+        final ExceptionHandlingStrategy strategy = strategy(10, "sun.reflect");
+        handle(strategy,
+                "java.lang.Exception: message",
+                "\tat sun.reflect.A.a(A.java:1)",
+                "\tat sun.reflect.B.b(B.java:2)");
+        strategy.notifyNotStackTrace();
+
+        assertEquals(asList("java.lang.Exception: message", "\t... 2 frames in sun.reflect"), lines);
+    }
+
+    @Test
+    public void cutsTraceOffAfterMaximumLinesButKeepsCauses() {
+        handle(strategy(2),
+                "java.lang.Exception: message",
+                "\tat com.example.A.a(A.java:1)",
+                "\tat com.example.B.b(B.java:2)",
+                "\tat com.example.C.c(C.java:3)",
+                "Caused by: java.lang.Exception: cause",
+                "\tat com.example.D.d(D.java:4)");
+
+        assertEquals(asList(
+                "java.lang.Exception: message",
+                "\tat com.example.A.a(A.java:1)",
+                "\t... stack trace cut off after 2 lines",
+                "Caused by: java.lang.Exception: cause"), lines);
+    }
+
+    @Test
+    public void startsCountingAgainForNextTrace() {
+        final ExceptionHandlingStrategy strategy = strategy(2);
+        handle(strategy,
+                "java.lang.Exception: first",
+                "\tat com.example.A.a(A.java:1)",
+                "\tat com.example.B.b(B.java:2)",
+                "java.lang.Exception: second",
+                "\tat com.example.A.a(A.java:1)");
+
+        assertEquals(asList(
+                "java.lang.Exception: first",
+                "\tat com.example.A.a(A.java:1)",
+                "\t... stack trace cut off after 2 lines",
+                "java.lang.Exception: second",
+                "\tat com.example.A.a(A.java:1)"), lines);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMaximumLinesBelowOne() {
+        strategy(0);
+    }
+
+    private ExceptionHandlingStrategy strategy(final int maximumLines, final String... foldedPackages) {
+        return new FoldingExceptionHandlingStrategyFactory(new RecordingFactory(), maximumLines, asList(foldedPackages))
+                .makeExceptionHandlingStrategy(Level.ERROR, null);
+    }
+
+    private void handle(final ExceptionHandlingStrategy strategy, final String... traceLines) {
+        for (String line : traceLines) {
+            strategy.handleExceptionLine(line, log);
+        }
+    }
+
+    private final class RecordingFactory implements ExceptionHandlingStrategyFactory {
+        public ExceptionHandlingStrategy makeExceptionHandlingStrategy(
+                final Level logLevel, final PrintStream originalPrintStream) {
+            return new ExceptionHandlingStrategy() {
+                public void handleExceptionLine(final String line, final Logger ignored) {
+                    lines.add(line);
+                }
+
+                public void notifyNotStackTrace() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.exceptionhandlers;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPrintedThrowableBuilder {
+
+    @Test
+    public void reconstructsHeaderAndFrames() {
+        Exception exception = new IllegalStateException("message");
+
+        PrintedThrowable printed = build(exception);
+
+        assertEquals("java.lang.IllegalStateException: message", printed.toString());
+        assertSameFrames(exception.getStackTrace(), printed.getStackTrace());
+        assertNull(printed.getCause());
+    }
+
+    @Test
+    public void reconstructsCausesIncludingFramesInCommon() {
+        Exception cause = new IllegalArgumentException("cause");
+        Exception exception = new RuntimeException("wrapper", cause);
+
+        PrintedThrowable printed = build(exception);
+
+        assertEquals("java.lang.RuntimeException: wrapper", printed.toString());
+        assertEquals("java.lang.IllegalArgumentException: cause", printed.getCause().toString());
+        assertSameFrames(cause.getStackTrace(), printed.getCause().getStackTrace());
+    }
+
+    @Test
+    public void keepsMultiLineMessagesInHeader() {
+        PrintedThrowable printed = build(new Exception("line one\nline two"));
+
+        assertEquals("java.lang.Exception: line one\nline two", printed.getHeader());
+    }
+
+    @Test
+    public void printStackTraceReproducesOriginalText() {
+        Exception exception = new RuntimeException("wrapper", new IllegalArgumentException("cause"));
+
+        PrintedThrowable printed = build(exception);
+
+        assertEquals(linesOf(exception), linesOf(printed));
+    }
+
+    @Test
+    public void recognisesHeaderOfNextThrowableOnlyAfterFrames() {
+        PrintedThrowableBuilder builder = new PrintedThrowableBuilder("java.lang.Exception: message");
+
+        assertFalse(builder.isHeaderOfNextThrowable("continued message"));
+        builder.append("\tat com.example.Foo.bar(Foo.java:10)");
+        assertFalse(builder.isHeaderOfNextThrowable("Caused by: java.lang.Exception"));
+        assertTrue(builder.isHeaderOfNextThrowable("java.lang.Exception: another"));
+    }
+
+    @Test
+    public void ignoresSuppressedExceptionsWhenReconstructing() {
+        PrintedThrowableBuilder builder = new PrintedThrowableBuilder("java.lang.Exception: message");
+        builder.append("\tat com.example.Foo.bar(Foo.java:10)");
+        builder.append("\tSuppressed: java.lang.Exception: suppressed");
+        builder.append("\t\tat com.example.Foo.close(Foo.java:20)");
+        builder.append("\t\t... 1 more");
+        builder.append("Caused by: java.lang.Exception: cause");
+        builder.append("\tat com.example.Foo.baz(Foo.java:30)");
+
+        PrintedThrowable printed = builder.build();
+
+        assertArrayEquals(new StackTraceElement[] { new StackTraceElement("com.example.Foo", "bar", "Foo.java", 10) },
+                printed.getStackTrace());
+        assertEquals("java.lang.Exception: cause", printed.getCause().toString());
+    }
+
+    @Test
+    public void parsesFrameFormats() {
+        assertEquals(new StackTraceElement("com.example.Foo", "bar", "Foo.java", 10),
+                PrintedThrowableBuilder.parseFrame("com.example.Foo.bar(Foo.java:10)"));
+        assertEquals(new StackTraceElement("com.example.Foo", "bar", "Foo.java", -1),
+                PrintedThrowableBuilder.parseFrame("com.example.Foo.bar(Foo.java)"));
+        assertEquals(new StackTraceElement("com.example.Foo", "bar", null, -1),
+                PrintedThrowableBuilder.parseFrame("com.example.Foo.bar(Unknown Source)"));
+        assertEquals(new StackTraceElement("java.lang.Object", "wait", null, -2),
+                PrintedThrowableBuilder.parseFrame("java.base/java.lang.Object.wait(Native Method)"));
+        assertEquals(new StackTraceElement("com.example.Main", "main", "Main.java", 3),
+                PrintedThrowableBuilder.parseFrame("app//com.example.Main.main(Main.java:3)"));
+        assertEquals(new StackTraceElement("com.example.Foo$$Lambda$14/0x0000000800c03000", "run", null, -1),
+                PrintedThrowableBuilder.parseFrame("com.example.Foo$$Lambda$14/0x0000000800c03000.run(Unknown Source)"));
+    }
+
+    private static PrintedThrowable build(Throwable throwable) {
+        List<String> lines = linesOf(throwable);
+        PrintedThrowableBuilder builder = new PrintedThrowableBuilder(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            builder.append(line);
+        }
+        return builder.build();
+    }
+
+    private static List<String> linesOf(Throwable throwable) {
+        StringWriter printed = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(printed));
+        return asList(printed.toString().split(System.getProperty("line.separator")));
+    }
+
+    /**
+     * Compares only what is printed; the module of a frame, and the file name of a native method, are not.
+     */
+    static void assertSameFrames(StackTraceElement[] expected, StackTraceElement[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getClassName(), actual[i].getClassName());
+            assertEquals(expected[i].getMethodName(), actual[i].getMethodName());
+            if (!expected[i].isNativeMethod()) {
+                assertEquals(expected[i].getFileName(), actual[i].getFileName());
+            }
+            assertEquals(expected[i].getLineNumber(), actual[i].getLineNumber());
+        }
+    }
+}
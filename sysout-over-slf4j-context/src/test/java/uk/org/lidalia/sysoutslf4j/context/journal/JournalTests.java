@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.context.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.lidalia.slf4jext.Level;
+import uk.org.lidalia.slf4jtest.TestLogger;
+import uk.org.lidalia.slf4jtest.TestLoggerFactory;
+import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.org.lidalia.slf4jtest.LoggingEvent.error;
+import static uk.org.lidalia.slf4jtest.LoggingEvent.info;
+
+public class JournalTests extends SysOutOverSLF4JTestCase {
+
+    private static final String LOGGER_NAME = "org.something.SomeClass";
+
+    private final TestLogger logger = TestLoggerFactory.getTestLogger(LOGGER_NAME);
+    private File directory;
+    private Journal journal;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replayLogsAppendedEventsInOrder() throws IOException {
+        journal = Journal.open(directory);
+        journal.append(Level.INFO, LOGGER_NAME, "message 1");
+        journal.append(Level.ERROR, LOGGER_NAME, "message 2");
+
+        assertEquals(2, journal.replay());
+
+        assertEquals(asList(info("message 1"), error("message 2")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void replayRemovesEventsFromJournal() throws IOException {
+        journal = Journal.open(directory);
+        journal.append(Level.INFO, LOGGER_NAME, "message");
+        assertTrue(journal.hasPendingEvents());
+
+        journal.replay();
+
+        assertFalse(journal.hasPendingEvents());
+        assertEquals(0, journal.replay());
+        assertEquals(asList(info("message")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void eventsNotReplayedAreRecoveredWhenJournalIsReopened() throws IOException {
+        journal = Journal.open(directory);
+        journal.append(Level.INFO, LOGGER_NAME, "message 1");
+        journal.replay();
+        journal.append(Level.INFO, LOGGER_NAME, "message 2");
+        journal.close();
+
+        journal = Journal.open(directory);
+
+        assertTrue(journal.hasPendingEvents());
+        assertEquals(1, journal.replay());
+        assertEquals(asList(info("message 1"), info("message 2")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void partiallyWrittenEventIsIgnoredWhenJournalIsReopened() throws IOException {
+        journal = Journal.open(directory);
+        journal.append(Level.INFO, LOGGER_NAME, "message 1");
+        journal.append(Level.INFO, LOGGER_NAME, "message 2");
+        journal.close();
+        corruptLastByteOfSecondRecord(onlySegmentFile());
+
+        journal = Journal.open(directory);
+        journal.replay();
+
+        assertEquals(asList(info("message 1")), logger.getLoggingEvents());
+    }
+
+    private File onlySegmentFile() {
+        File[] segmentFiles = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".journal");
+            }
+        });
+        assertEquals(1, segmentFiles.length);
+        return segmentFiles[0];
+    }
+
+    private void corruptLastByteOfSecondRecord(File segmentFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "rw");
+        try {
+            file.seek(8);
+            int firstRecordEnd = 8 + 8 + file.readInt();
+            file.seek(firstRecordEnd);
+            int secondRecordEnd = firstRecordEnd + 8 + file.readInt();
+            file.seek(secondRecordEnd - 1);
+            int lastByte = file.read();
+            file.seek(secondRecordEnd - 1);
+            file.write(~lastByte);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void journalRollsOnToNewSegmentsWhenCurrentSegmentIsFull() throws IOException {
+        journal = Journal.open(directory, 64, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(journal.append(Level.INFO, LOGGER_NAME, "message " + i));
+        }
+
+        journal.replay();
+
+        assertEquals(asList(info("message 0"), info("message 1"), info("message 2")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void replayDeletesRolledSegmentsOnceReplayed() throws IOException {
+        journal = Journal.open(directory, 64, 3);
+        for (int i = 0; i < 3; i++) {
+            journal.append(Level.INFO, LOGGER_NAME, "message " + i);
+        }
+
+        journal.replay();
+
+        onlySegmentFile();
+    }
+
+    @Test
+    public void appendReturnsFalseWhenJournalIsFull() throws IOException {
+        journal = Journal.open(directory, 64, 1);
+        assertTrue(journal.append(Level.INFO, LOGGER_NAME, "message 1"));
+
+        assertFalse(journal.append(Level.INFO, LOGGER_NAME, "message 2"));
+
+        journal.replay();
+        assertEquals(asList(info("message 1")), logger.getLoggingEvents());
+    }
+
+    @Test
+    public void appendReturnsFalseWhenEventIsLargerThanASegment() throws IOException {
+        journal = Journal.open(directory, 64, 2);
+
+        assertFalse(journal.append(Level.INFO, LOGGER_NAME, "a message far too long to fit in a sixty four byte segment"));
+        assertFalse(journal.hasPendingEvents());
+    }
+
+    @Test
+    public void appendReturnsFalseWhenJournalIsClosed() throws IOException {
+        journal = Journal.open(directory);
+        journal.close();
+
+        assertFalse(journal.append(Level.INFO, LOGGER_NAME, "message"));
+        assertEquals(emptyList(), logger.getLoggingEvents());
+    }
+
+    @Test(expected = IOException.class)
+    public void openThrowsIOExceptionWhenDirectoryIsAlreadyInUse() throws IOException {
+        journal = Journal.open(directory);
+
+        Journal.open(directory);
+    }
+}
@@ -25,6 +25,7 @@
 package uk.org.lidalia.sysoutslf4j.integration;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.List;
@@ -63,6 +64,40 @@ public class TestSysOutOverSLF4JInClassLoader extends SysOutOverSLF4JTestCase {
         assertEquals("Logged", loggingEventClass.getDeclaredMethod("getMessage").invoke(list1.get(0)));
     }
 
+    @Test
+    public void threadBoundToCaptureContextPrintsToItWhateverItsContextClassLoader() throws Exception {
+        callSendSystemOutAndErrToSLF4JInClassLoader(app1ClassLoader);
+
+        ISysOutUser sysOutUser1 = newInstanceInClassLoader(ISysOutUser.class, app1ClassLoader, SysOutUser.class, new Class[]{});
+
+        Closeable binding = bindCaptureContextOfClassLoaderToCurrentThread(app1ClassLoader);
+        try {
+            sysOutUser1.useSysOut();
+        } finally {
+            binding.close();
+        }
+
+        List<?> list1 = getLoggingEvents(app1ClassLoader);
+        assertEquals(1, list1.size());
+    }
+
+    @Test
+    public void threadNoLongerPrintsToCaptureContextOnceBindingClosed() throws Exception {
+        OutputStream sysOutMock = setUpMockSystemOutput(SystemOutput.OUT);
+        callSendSystemOutAndErrToSLF4JInClassLoader(app1ClassLoader);
+
+        bindCaptureContextOfClassLoaderToCurrentThread(app1ClassLoader).close();
+        System.out.println("Hello again");
+
+        assertThat(sysOutMock.toString(), containsString("Hello again" + System.getProperty("line.separator")));
+    }
+
+    private Closeable bindCaptureContextOfClassLoaderToCurrentThread(ClassLoader classLoader) throws Exception {
+        Class<?> sysOutOverSLF4JClass = classLoader.loadClass(SysOutOverSLF4J.class.getName());
+        Object captureContext = sysOutOverSLF4JClass.getMethod("getCaptureContext").invoke(sysOutOverSLF4JClass);
+        return (Closeable) captureContext.getClass().getMethod("bindToCurrentThread").invoke(captureContext);
+    }
+
     private <E> E newInstanceInClassLoader(
             Class<E> classToReturn, ClassLoader classLoader, Class<? extends E> classToGetInstanceOf,
             Class<?>[] constructorArgTypes, Object... constructorArgs) throws Exception {
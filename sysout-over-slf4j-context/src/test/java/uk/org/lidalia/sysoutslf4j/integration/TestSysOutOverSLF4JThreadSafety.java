@@ -33,6 +33,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
+import org.slf4j.MarkerFactory;
 
 import uk.org.lidalia.lang.Task;
 import uk.org.lidalia.slf4jtest.LoggingEvent;
@@ -40,8 +41,11 @@ import uk.org.lidalia.slf4jtest.TestLogger;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 import uk.org.lidalia.sysoutslf4j.SysOutOverSLF4JTestCase;
 import uk.org.lidalia.sysoutslf4j.context.SysOutOverSLF4J;
+import uk.org.lidalia.sysoutslf4j.context.exceptionhandlers.AggregatingExceptionHandlingStrategyFactory;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
 public class TestSysOutOverSLF4JThreadSafety extends SysOutOverSLF4JTestCase {
 
@@ -104,4 +108,47 @@ public class TestSysOutOverSLF4JThreadSafety extends SysOutOverSLF4JTestCase {
         assertEquals(expectedMessages, messages);
 
     }
+
+    @Test(timeout = 10000)
+    public void stackTraceIsNotCutInTwoByAnotherThreadPrintingWhileItIsPrinted() throws Exception {
+
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J(AggregatingExceptionHandlingStrategyFactory.getInstance());
+        final CountDownLatch midTrace = new CountDownLatch(1);
+        final CountDownLatch otherThreadPrinted = new CountDownLatch(1);
+        // the cause's header is printed after the frames of the exception it caused
+        final Exception exception = new Exception("outer", new Exception() {
+            @Override
+            public String toString() {
+                midTrace.countDown();
+                try {
+                    otherThreadPrinted.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "java.lang.Exception: cause";
+            }
+        });
+        Thread otherThread = new Thread(new Task() {
+            @Override
+            public void perform() throws Exception {
+                midTrace.await();
+                System.err.println("other thread");
+                otherThreadPrinted.countDown();
+            }
+        });
+        otherThread.start();
+
+        exception.printStackTrace();
+        otherThread.join();
+        System.err.println("after");
+
+        List<String> messages = new ArrayList<String>();
+        for (LoggingEvent loggingEvent : log.getAllLoggingEvents()) {
+            messages.add(loggingEvent.getMessage());
+        }
+        assertEquals(asList("other thread", "java.lang.Exception: outer", "after"), messages);
+        LoggingEvent stackTrace = log.getAllLoggingEvents().get(1);
+        assertEquals(MarkerFactory.getMarker("stacktrace"), stackTrace.getMarker().get());
+        assertNotNull(stackTrace.getThrowable().get().getCause());
+    }
 }
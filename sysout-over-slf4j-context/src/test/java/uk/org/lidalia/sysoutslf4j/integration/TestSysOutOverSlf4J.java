@@ -267,13 +267,26 @@ public class TestSysOutOverSlf4J extends SysOutOverSLF4JTestCase {
     }
 
     @Test
-    public void stopSendingSystemOutAndErrToSLF4JLeavesSLF4JPrintStreams() {
+    public void stopSendingSystemOutAndErrToSLF4JRestoresOriginalPrintStreamsWhenNoContextIsUsingThem() {
+        PrintStream originalOutPrintStream = System.out;
+        PrintStream originalErrPrintStream = System.err;
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
+        SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
+
+        assertSame(originalOutPrintStream, System.out);
+        assertSame(originalErrPrintStream, System.err);
+    }
+
+    @Test
+    public void sendSystemOutAndErrToSLF4JAfterStoppingReinstallsSameSLF4JPrintStreams() {
         SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
         PrintStream newOutPrintStream = System.out;
         PrintStream newErrPrintStream = System.err;
-
         SysOutOverSLF4J.stopSendingSystemOutAndErrToSLF4J();
 
+        SysOutOverSLF4J.sendSystemOutAndErrToSLF4J();
+
         assertSame(newOutPrintStream, System.out);
         assertSame(newErrPrintStream, System.err);
     }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/**
+ * Finds the per thread state that the sysout-over-slf4j agent, if installed, keeps on the bootstrap classpath. It is
+ * looked up by name, so that nothing here links to the agent.
+ */
+final class AgentHooks {
+
+    /**
+     * @return the public static ThreadLocal field of the given agent class, or null if the agent is not installed
+     */
+    static <T> ThreadLocal<T> find(final String className, final String fieldName) {
+        return AccessController.doPrivileged(new PrivilegedAction<ThreadLocal<T>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public ThreadLocal<T> run() {
+                try {
+                    return (ThreadLocal<T>) Class.forName(className, true, null).getField(fieldName).get(null);
+                } catch (ClassNotFoundException agentNotInstalled) {
+                    return null;
+                } catch (NoSuchFieldException e) {
+                    return null;
+                } catch (IllegalAccessException e) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    private AgentHooks() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+/**
+ * Tells which class is making the current thread's call to System.out or System.err, if the sysout-over-slf4j agent
+ * has been installed with -javaagent and has rewritten that class to tag its output. Otherwise {@link #get()} returns
+ * null, and the caller has to be found from the stack.
+ */
+public final class CallingClass {
+
+    private static final ThreadLocal<String> CALLING_CLASS =
+            AgentHooks.find("uk.org.lidalia.sysoutslf4j.agent.CallSites", "CALLING_CLASS");
+
+    /**
+     * @return the name of the class making the current call to System.out or System.err, or null if it is not known
+     */
+    public static String get() {
+        return CALLING_CLASS == null ? null : CALLING_CLASS.get();
+    }
+
+    private CallingClass() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
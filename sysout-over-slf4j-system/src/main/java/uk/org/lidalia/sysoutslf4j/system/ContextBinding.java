@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The PrintStreams of a single context, which a thread can be bound to so that what it prints goes to that context
+ * whatever its context class loader. Threads that run work for several contexts, such as a shared pool or an event
+ * loop, cannot be routed by class loader; binding them explicitly also spares the PerContextPrintStream its class
+ * loader lookup.<br>
+ *
+ * The PrintStreams are only weakly held, so a binding left on a pooled thread does not keep its context alive; once
+ * a context has stopped, or been garbage collected, its bound threads fall back to routing by class loader.
+ */
+public final class ContextBinding {
+
+    private static final ThreadLocal<ContextBinding> BOUND = new ThreadLocal<ContextBinding>();
+    private static final WeakReference<PrintStream> NO_PRINT_STREAM = new WeakReference<PrintStream>(null);
+
+    /*
+     * While no thread is bound, no thread pays more than this read to find that it has no binding. In particular it
+     * does not look up the ThreadLocal, which would give every short lived virtual thread that prints a ThreadLocal
+     * map of its own.
+     */
+    private static final AtomicInteger BOUND_THREADS = new AtomicInteger();
+
+    private final AtomicReferenceArray<WeakReference<PrintStream>> printStreams =
+            new AtomicReferenceArray<WeakReference<PrintStream>>(PerContextSystemOutput.values().length);
+
+    public ContextBinding() {
+        for (int i = 0; i < printStreams.length(); i++) {
+            printStreams.set(i, NO_PRINT_STREAM);
+        }
+    }
+
+    /**
+     * Sets the PrintStream that threads bound to this context print to on the given output, or clears it if null.
+     */
+    public void setPrintStream(final PerContextSystemOutput systemOutput, final PrintStream printStream) {
+        printStreams.set(systemOutput.ordinal(),
+                printStream == null ? NO_PRINT_STREAM : new WeakReference<PrintStream>(printStream));
+    }
+
+    /**
+     * Binds this context to the current thread. The thread must be unbound by {@link #restore(ContextBinding)}
+     * before it dies, or it is counted as bound for good and every thread goes on paying for the ThreadLocal lookup.
+     *
+     * @return the binding it replaced, to be passed to {@link #restore(ContextBinding)} when the thread is done
+     * printing for this context; null if there was none
+     */
+    public ContextBinding bindToCurrentThread() {
+        final ContextBinding previous = BOUND.get();
+        if (previous == null) {
+            BOUND_THREADS.incrementAndGet();
+        }
+        BOUND.set(this);
+        return previous;
+    }
+
+    /**
+     * Runs the task with this context bound for as long as it runs. Where the JVM has java.lang.ScopedValue the
+     * binding is carried in one, and so is also seen by threads forked by the task in a StructuredTaskScope;
+     * otherwise it falls back to binding the current thread, as {@link #bindToCurrentThread()} does.
+     */
+    public void runInScope(final Runnable task) {
+        if (ScopedContextBinding.isAvailable()) {
+            ScopedContextBinding.run(this, task);
+        } else {
+            final ContextBinding previous = bindToCurrentThread();
+            try {
+                task.run();
+            } finally {
+                restore(previous);
+            }
+        }
+    }
+
+    /**
+     * Puts back the binding of the current thread returned by {@link #bindToCurrentThread()}.
+     *
+     * @param previous the binding to put back; null unbinds the thread
+     */
+    public static void restore(final ContextBinding previous) {
+        final boolean bound = BOUND.get() != null;
+        if (previous == null) {
+            BOUND.remove();
+            if (bound) {
+                BOUND_THREADS.decrementAndGet();
+            }
+        } else {
+            BOUND.set(previous);
+            if (!bound) {
+                BOUND_THREADS.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the context bound to the current thread, or null if there is none; the binding of a scope the thread
+     * is running in takes precedence over one made by {@link #bindToCurrentThread()}
+     */
+    public static ContextBinding current() {
+        final ContextBinding scoped = ScopedContextBinding.current();
+        if (scoped != null) {
+            return scoped;
+        }
+        return BOUND_THREADS.get() == 0 ? null : BOUND.get();
+    }
+
+    static PrintStream boundPrintStream(final PerContextSystemOutput systemOutput) {
+        final ContextBinding bound = current();
+        return bound == null ? null : bound.printStreams.get(systemOutput.ordinal()).get();
+    }
+}
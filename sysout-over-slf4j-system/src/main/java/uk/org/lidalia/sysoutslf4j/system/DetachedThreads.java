@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+/**
+ * Makes the threads sysout-over-slf4j does its own work on, such as the shared timer and the drains. They are made
+ * by whichever context first needs them but outlive it, so they take nothing from the thread that makes them that
+ * could pin that context in memory: they have no context class loader, no values of its inheritable thread locals,
+ * and belong to the top thread group rather than to one a container may have made for the context.<br>
+ *
+ * From Java 9 a thread can be made without inheriting thread local values. Before that the values the new thread
+ * has copied are cleared reflectively; where that is not permitted the thread keeps them.
+ */
+final class DetachedThreads {
+
+    private static final Constructor<Thread> NOT_INHERITING_THREAD_LOCALS = notInheritingThreadLocals();
+    private static final Field INHERITABLE_THREAD_LOCALS =
+            NOT_INHERITING_THREAD_LOCALS == null ? inheritableThreadLocals() : null;
+
+    private static Constructor<Thread> notInheritingThreadLocals() {
+        try {
+            return Thread.class.getConstructor(
+                    ThreadGroup.class, Runnable.class, String.class, long.class, boolean.class);
+        } catch (NoSuchMethodException beforeJava9) {
+            return null;
+        }
+    }
+
+    private static Field inheritableThreadLocals() {
+        return AccessController.doPrivileged(new PrivilegedAction<Field>() {
+            @Override
+            public Field run() {
+                try {
+                    final Field field = Thread.class.getDeclaredField("inheritableThreadLocals");
+                    field.setAccessible(true);
+                    return field;
+                } catch (Exception notPermitted) {
+                    return null;
+                }
+            }
+        });
+    }
+
+    static Thread newThread(final String name, final Runnable runnable) {
+        return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+            @Override
+            public Thread run() {
+                final Thread thread = newThread(topThreadGroup(), name, runnable);
+                thread.setContextClassLoader(null);
+                return thread;
+            }
+        });
+    }
+
+    private static Thread newThread(final ThreadGroup group, final String name, final Runnable runnable) {
+        if (NOT_INHERITING_THREAD_LOCALS != null) {
+            try {
+                return NOT_INHERITING_THREAD_LOCALS.newInstance(group, runnable, name, 0L, Boolean.FALSE);
+            } catch (Exception notMade) {
+                // fall through to the thread local values being cleared
+            }
+        }
+        final Thread thread = new Thread(group, runnable, name);
+        if (INHERITABLE_THREAD_LOCALS != null) {
+            try {
+                INHERITABLE_THREAD_LOCALS.set(thread, null);
+            } catch (IllegalAccessException notPermitted) {
+                // the thread keeps the values
+            }
+        }
+        return thread;
+    }
+
+    private static ThreadGroup topThreadGroup() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) {
+            group = group.getParent();
+        }
+        return group;
+    }
+
+    private DetachedThreads() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds, for every context, an action that drains any output that context is still holding on to - partial lines,
+ * journalled events - so that it can be delivered on demand or when the JVM shuts down.<br>
+ *
+ * Drains are held weakly; a context must keep a strong reference to its own drain for as long as it wants it
+ * to run. Drains are run on a short-lived thread with no context class loader or inherited thread local values, so
+ * that neither the shutdown hook nor the drain thread pins a context in memory, and the caller waits for them for no
+ * longer than the timeout.
+ */
+public final class PerContextDrains {
+
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+    private static final Map<Runnable, Boolean> DRAINS = new WeakHashMap<Runnable, Boolean>();
+    private static boolean shutdownHookRegistered = false;
+    private static volatile long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+
+    /**
+     * Registers a drain to run when {@link #drainAll} is called or the JVM shuts down. Registering the same drain
+     * more than once has no further effect.
+     */
+    public static void register(final Runnable drain) {
+        synchronized (DRAINS) {
+            DRAINS.put(drain, Boolean.TRUE);
+            if (!shutdownHookRegistered) {
+                final Runnable drainAll = new Runnable() {
+                    @Override
+                    public void run() {
+                        drainAll(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+                    }
+                };
+                Runtime.getRuntime().addShutdownHook(
+                        DetachedThreads.newThread("sysout-over-slf4j shutdown drain", drainAll));
+                shutdownHookRegistered = true;
+            }
+        }
+    }
+
+    public static void deregister(final Runnable drain) {
+        synchronized (DRAINS) {
+            DRAINS.remove(drain);
+        }
+    }
+
+    /**
+     * Runs the drain of every context, waiting for no longer than the timeout for them to complete.
+     *
+     * @return true if every drain completed within the timeout
+     */
+    public static boolean drainAll(final long timeout, final TimeUnit unit) {
+        final List<Runnable> drains;
+        synchronized (DRAINS) {
+            drains = new ArrayList<Runnable>(DRAINS.keySet());
+        }
+        final Thread drainThread = DetachedThreads.newThread("sysout-over-slf4j drain", new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable drain : drains) {
+                    try {
+                        drain.run();
+                    } catch (RuntimeException e) { // NOPMD
+                        // one context failing to drain must not stop the others draining
+                    }
+                }
+            }
+        });
+        drainThread.setDaemon(true);
+        drainThread.start();
+        try {
+            unit.timedJoin(drainThread, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !drainThread.isAlive();
+    }
+
+    /**
+     * Sets how long the shutdown hook waits for drains to complete before letting the JVM exit.
+     */
+    public static void setShutdownTimeout(final long timeout, final TimeUnit unit) {
+        shutdownTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    private PerContextDrains() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -29,85 +29,103 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Locale;
 
+/**
+ * The PrintStream installed as System.out or System.err, which passes each call on to the PrintStream of the
+ * calling context.<br>
+ *
+ * It takes no lock of its own: it has no state to guard, and each context's PrintStream does whatever locking it
+ * needs. So contexts printing at the same time do not wait on one another, and no monitor is held while a context's
+ * PrintStream waits on its logging system, which would pin a virtual thread to its carrier thread.
+ */
 public final class PerContextPrintStream extends PrintStream { // NOPMD superclass has too many methods
 
     private final PerContextStore<PrintStream> printStreamStore;
+    private final PerContextSystemOutput systemOutput;
 
-    PerContextPrintStream(final PrintStream originalPrintStream) {
+    PerContextPrintStream(final PrintStream originalPrintStream, final PerContextSystemOutput systemOutput) {
         // This ByteArrayOutputStream will be unused - we aren't going to touch
         // the super class.
         super(new ByteArrayOutputStream());
         this.printStreamStore = new PerContextStore<PrintStream>(originalPrintStream);
+        this.systemOutput = systemOutput;
+    }
+
+    /**
+     * A context bound to the current thread takes precedence over the one found from its context class loader.
+     */
+    private PrintStream delegate() {
+        final PrintStream boundPrintStream = ContextBinding.boundPrintStream(systemOutput);
+        return boundPrintStream == null ? printStreamStore.get() : boundPrintStream;
     }
 
     @Override
-    public synchronized void println(final String string) {
-        printStreamStore.get().println(string);
+    public void println(final String string) {
+        delegate().println(string);
     }
 
     @Override
-    public synchronized void println(final Object object) {
-        printStreamStore.get().println(object);
+    public void println(final Object object) {
+        delegate().println(object);
     }
 
     @Override
-    public synchronized void println() {
-        printStreamStore.get().println();
+    public void println() {
+        delegate().println();
     }
 
     @Override
-    public synchronized void println(final boolean bool) {
-        printStreamStore.get().println(bool);
+    public void println(final boolean bool) {
+        delegate().println(bool);
     }
 
     @Override
-    public synchronized void println(final char character) {
-        printStreamStore.get().println(character);
+    public void println(final char character) {
+        delegate().println(character);
     }
 
     @Override
-    public synchronized void println(final char[] charArray) {
-        printStreamStore.get().println(charArray);
+    public void println(final char[] charArray) {
+        delegate().println(charArray);
     }
 
     @Override
-    public synchronized void println(final double doub) {
-        printStreamStore.get().println(doub);
+    public void println(final double doub) {
+        delegate().println(doub);
     }
 
     @Override
-    public synchronized void println(final float floa) {
-        printStreamStore.get().println(floa);
+    public void println(final float floa) {
+        delegate().println(floa);
     }
 
     @Override
-    public synchronized void println(final int integer) {
-        printStreamStore.get().println(integer);
+    public void println(final int integer) {
+        delegate().println(integer);
     }
 
     @Override
-    public synchronized void println(final long lon) {
-        printStreamStore.get().println(lon);
+    public void println(final long lon) {
+        delegate().println(lon);
     }
 
     @Override
-    public synchronized PrintStream append(final char character) {
-        return printStreamStore.get().append(character); //QUERY should we return the delegate or the top level PrintStream?
+    public PrintStream append(final char character) {
+        return delegate().append(character); //QUERY should we return the delegate or the top level PrintStream?
     }
 
     @Override
-    public synchronized PrintStream append(final CharSequence csq, final int start, final int end) {
-        return printStreamStore.get().append(csq, start, end);
+    public PrintStream append(final CharSequence csq, final int start, final int end) {
+        return delegate().append(csq, start, end);
     }
 
     @Override
-    public synchronized PrintStream append(final CharSequence csq) {
-        return printStreamStore.get().append(csq);
+    public PrintStream append(final CharSequence csq) {
+        return delegate().append(csq);
     }
 
     @Override
     public boolean checkError() {
-        return printStreamStore.get().checkError();
+        return delegate().checkError();
     }
 
     @Override
@@ -116,101 +134,127 @@ public final class PerContextPrintStream extends PrintStream { // NOPMD supercla
     }
 
     @Override
-    public synchronized void close() {
-        printStreamStore.get().close();
+    public void close() {
+        delegate().close();
     }
 
     @Override
-    public synchronized void flush() {
-        printStreamStore.get().flush();
+    public void flush() {
+        delegate().flush();
     }
 
     @Override
-    public synchronized PrintStream format(final Locale locale, final String format, final Object... args) {
-        return printStreamStore.get().format(locale, format, args);
+    public PrintStream format(final Locale locale, final String format, final Object... args) {
+        return delegate().format(locale, format, args);
     }
 
     @Override
-    public synchronized PrintStream format(final String format, final Object... args) {
-        return printStreamStore.get().format(format, args);
+    public PrintStream format(final String format, final Object... args) {
+        return delegate().format(format, args);
     }
 
     @Override
-    public synchronized void print(final boolean bool) {
-        printStreamStore.get().print(bool);
+    public void print(final boolean bool) {
+        delegate().print(bool);
     }
 
     @Override
-    public synchronized void print(final char character) {
-        printStreamStore.get().print(character);
+    public void print(final char character) {
+        delegate().print(character);
     }
 
     @Override
-    public synchronized void print(final char[] charArray) {
-        printStreamStore.get().print(charArray);
+    public void print(final char[] charArray) {
+        delegate().print(charArray);
     }
 
     @Override
-    public synchronized void print(final double doubl) {
-        printStreamStore.get().print(doubl);
+    public void print(final double doubl) {
+        delegate().print(doubl);
     }
 
     @Override
-    public synchronized void print(final float floa) {
-        printStreamStore.get().print(floa);
+    public void print(final float floa) {
+        delegate().print(floa);
     }
 
     @Override
-    public synchronized void print(final int integer) {
-        printStreamStore.get().print(integer);
+    public void print(final int integer) {
+        delegate().print(integer);
     }
 
     @Override
-    public synchronized void print(final long lon) {
-        printStreamStore.get().print(lon);
+    public void print(final long lon) {
+        delegate().print(lon);
     }
 
     @Override
-    public synchronized void print(final Object object) {
-        printStreamStore.get().print(object);
+    public void print(final Object object) {
+        delegate().print(object);
     }
 
     @Override
-    public synchronized void print(final String string) {
-        printStreamStore.get().print(string);
+    public void print(final String string) {
+        delegate().print(string);
     }
 
     @Override
-    public synchronized PrintStream printf(final Locale locale, final String format, final Object... args) {
-        return printStreamStore.get().printf(locale, format, args);
+    public PrintStream printf(final Locale locale, final String format, final Object... args) {
+        return delegate().printf(locale, format, args);
     }
 
     @Override
-    public synchronized PrintStream printf(final String format, final Object... args) {
-        return printStreamStore.get().printf(format, args);
+    public PrintStream printf(final String format, final Object... args) {
+        return delegate().printf(format, args);
     }
 
     @Override
-    public synchronized void write(final byte[] buf, final int off, final int len) {
-        printStreamStore.get().write(buf, off, len);
+    public void write(final byte[] buf, final int off, final int len) {
+        delegate().write(buf, off, len);
     }
 
     @Override
-    public synchronized void write(final int integer) {
-        printStreamStore.get().write(integer);
+    public void write(final int integer) {
+        delegate().write(integer);
     }
 
     @Override
-    public synchronized void write(final byte[] bytes) throws IOException {
-        printStreamStore.get().write(bytes);
+    public void write(final byte[] bytes) throws IOException {
+        delegate().write(bytes);
+    }
+
+    /**
+     * @return true if no other context has a PrintStream registered
+     */
+    boolean registerPrintStreamForThisContext(final PrintStream printStreamForThisContext) {
+        return printStreamStore.put(printStreamForThisContext);
+    }
+
+    /**
+     * @return true if no context has a PrintStream registered any more
+     */
+    boolean deregisterPrintStreamForThisContext() {
+        return printStreamStore.remove();
+    }
+
+    boolean hasRegisteredPrintStreams() {
+        return !printStreamStore.isEmpty();
+    }
+
+    /**
+     * @return true if the PrintStreams of any contexts had been garbage collected, or had their context
+     * garbage collected, and were dropped
+     */
+    boolean purgeCollectedPrintStreams() {
+        return printStreamStore.purgeCollected() > 0;
     }
 
-    void registerPrintStreamForThisContext(final PrintStream printStreamForThisContext) {
-        printStreamStore.put(printStreamForThisContext);
+    int getLiveContextCount() {
+        return printStreamStore.liveCount();
     }
 
-    void deregisterPrintStreamForThisContext() {
-        printStreamStore.remove();
+    int getRetainedContextCount() {
+        return printStreamStore.retainedCount();
     }
 
     PrintStream getOriginalPrintStream() {
@@ -24,24 +24,28 @@
 
 package uk.org.lidalia.sysoutslf4j.system;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Holds a value for each context classloader, both held weakly.<br>
+ *
+ * The values are held in an immutable hash table keyed by classloader identity, replaced as a whole by
+ * compare-and-set whenever a value is put or removed. Looking a value up therefore takes no lock and allocates
+ * nothing, and contexts registering concurrently never wait on one another. Entries whose classloader or value has
+ * been garbage collected are dropped whenever the table is replaced, and by {@link #purgeCollected()}, which finds
+ * out from a reference queue whether there are any, so that a context that is discarded without removing its value
+ * does not leave its entry behind until the next context comes or goes.
+ */
 class PerContextStore<T> {
 
-    private final Map<ClassLoader, WeakReference<T>> loggerAppenderMap =
-        new WeakHashMap<ClassLoader, WeakReference<T>>();
+    private final AtomicReference<Table<T>> table = new AtomicReference<Table<T>>(new Table<T>());
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
     private final T defaultValue;
 
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock readLock = lock.readLock();
-    private final Lock writeLock = lock.writeLock();
-
     PerContextStore() {
         this(null);
     }
@@ -51,11 +55,16 @@ class PerContextStore<T> {
     }
 
     T get() {
-        readLock.lock();
-        try {
-            return get(contextClassLoader());
-        } finally {
-            readLock.unlock();
+        final Table<T> current = table.get();
+        ClassLoader classLoader = contextClassLoader();
+        while (true) {
+            final T value = current.get(classLoader);
+            if (value != null) {
+                return value;
+            } else if (classLoader == null) {
+                return defaultValue;
+            }
+            classLoader = classLoader.getParent();
         }
     }
 
@@ -63,41 +72,205 @@ class PerContextStore<T> {
         return defaultValue;
     }
 
-    // TODO write test for when weakreference returns null...
-    private T get(final ClassLoader classLoader) {
-        final WeakReference<T> loggerAppenderReference = loggerAppenderMap.get(classLoader);
-        final T result;
-        if (loggerAppenderReference == null) {
-            if (classLoader == null) {
-                result = defaultValue;
-            } else {
-                result = get(classLoader.getParent());
+    /**
+     * @return true if no other context has a value stored
+     */
+    boolean put(final T value) {
+        final ClassLoader classLoader = contextClassLoader();
+        while (true) {
+            final Table<T> current = table.get();
+            final Table<T> updated = current.with(classLoader, value, collected);
+            if (table.compareAndSet(current, updated)) {
+                return updated.size == 1;
             }
-        } else {
-            result = loggerAppenderReference.get();
         }
-        return result;
     }
 
-    void put(final T loggerAppender) {
-        writeLock.lock();
-        try {
-            loggerAppenderMap.put(contextClassLoader(), new WeakReference<T>(loggerAppender));
-        } finally {
-            writeLock.unlock();
+    /**
+     * @return true if no context has a value stored any more
+     */
+    boolean remove() {
+        final ClassLoader classLoader = contextClassLoader();
+        while (true) {
+            final Table<T> current = table.get();
+            final Table<T> updated = current.without(classLoader);
+            if (table.compareAndSet(current, updated)) {
+                return updated.size == 0;
+            }
         }
     }
 
-    void remove() {
-        writeLock.lock();
-        try {
-            loggerAppenderMap.remove(contextClassLoader());
-        } finally {
-            writeLock.unlock();
+    /**
+     * @return true if no value is stored for a classloader that is still alive, other than ones that have since
+     * been garbage collected
+     */
+    boolean isEmpty() {
+        return table.get().isEmpty();
+    }
+
+    /**
+     * Drops the entries whose classloader or value has been garbage collected, if any has been since the last
+     * purge.
+     *
+     * @return the number of entries dropped
+     */
+    int purgeCollected() {
+        boolean anyCollected = false;
+        while (collected.poll() != null) {
+            anyCollected = true;
+        }
+        if (!anyCollected) {
+            return 0;
+        }
+        while (true) {
+            final Table<T> current = table.get();
+            final Table<T> updated = current.withoutCollectedEntries();
+            if (table.compareAndSet(current, updated)) {
+                return current.size - updated.size;
+            }
         }
     }
 
+    /**
+     * @return the number of values stored whose classloader and value are both still alive
+     */
+    int liveCount() {
+        return table.get().liveCount();
+    }
+
+    /**
+     * @return the number of entries held, including those whose classloader or value has been garbage collected
+     * but which have not yet been dropped
+     */
+    int retainedCount() {
+        return table.get().size;
+    }
+
     private ClassLoader contextClassLoader() {
         return Thread.currentThread().getContextClassLoader();
     }
+
+    private static final class Table<T> {
+
+        private final Entry<T>[] entries;
+        private final WeakReference<T> valueForNullClassLoader;
+        private final int size;
+
+        Table() {
+            this(new ArrayList<Entry<T>>(), null);
+        }
+
+        private Table(final List<Entry<T>> liveEntries, final WeakReference<T> valueForNullClassLoader) {
+            // at most half full, so that every probe sequence ends at an empty slot
+            this.entries = newEntries(Integer.highestOneBit(liveEntries.size() * 2 + 1) * 2);
+            final int mask = entries.length - 1;
+            for (Entry<T> entry : liveEntries) {
+                int index = entry.hash & mask;
+                while (entries[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                entries[index] = entry;
+            }
+            this.valueForNullClassLoader = valueForNullClassLoader;
+            this.size = liveEntries.size() + (valueForNullClassLoader == null ? 0 : 1);
+        }
+
+        private static <T> Entry<T>[] newEntries(final int length) {
+            @SuppressWarnings("unchecked")
+            final Entry<T>[] entries = (Entry<T>[]) new Entry<?>[length];
+            return entries;
+        }
+
+        T get(final ClassLoader classLoader) {
+            if (classLoader == null) {
+                return valueForNullClassLoader == null ? null : valueForNullClassLoader.get();
+            }
+            final int mask = entries.length - 1;
+            for (int index = hash(classLoader) & mask; ; index = (index + 1) & mask) {
+                final Entry<T> entry = entries[index];
+                if (entry == null) {
+                    return null;
+                } else if (entry.get() == classLoader) {
+                    return entry.value.get();
+                }
+            }
+        }
+
+        Table<T> with(final ClassLoader classLoader, final T value, final ReferenceQueue<Object> collected) {
+            final List<Entry<T>> liveEntries = liveEntriesExcept(classLoader);
+            if (classLoader == null) {
+                return new Table<T>(liveEntries, new WeakReference<T>(value, collected));
+            } else {
+                liveEntries.add(new Entry<T>(classLoader, value, collected));
+                return new Table<T>(liveEntries, liveValueForNullClassLoader());
+            }
+        }
+
+        Table<T> without(final ClassLoader classLoader) {
+            return new Table<T>(liveEntriesExcept(classLoader),
+                    classLoader == null ? null : liveValueForNullClassLoader());
+        }
+
+        Table<T> withoutCollectedEntries() {
+            return new Table<T>(liveEntriesExcept(null), liveValueForNullClassLoader());
+        }
+
+        boolean isEmpty() {
+            if (liveValueForNullClassLoader() != null) {
+                return false;
+            }
+            for (Entry<T> entry : entries) {
+                if (entry != null && entry.isLive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int liveCount() {
+            int liveCount = liveValueForNullClassLoader() == null ? 0 : 1;
+            for (Entry<T> entry : entries) {
+                if (entry != null && entry.isLive()) {
+                    liveCount++;
+                }
+            }
+            return liveCount;
+        }
+
+        private List<Entry<T>> liveEntriesExcept(final ClassLoader classLoader) {
+            final List<Entry<T>> liveEntries = new ArrayList<Entry<T>>(size + 1);
+            for (Entry<T> entry : entries) {
+                if (entry != null && entry.isLive() && entry.get() != classLoader) {
+                    liveEntries.add(entry);
+                }
+            }
+            return liveEntries;
+        }
+
+        private WeakReference<T> liveValueForNullClassLoader() {
+            return valueForNullClassLoader == null || valueForNullClassLoader.get() == null
+                    ? null : valueForNullClassLoader;
+        }
+    }
+
+    private static final class Entry<T> extends WeakReference<ClassLoader> {
+
+        private final int hash;
+        private final WeakReference<T> value;
+
+        Entry(final ClassLoader classLoader, final T value, final ReferenceQueue<Object> collected) {
+            super(classLoader, collected);
+            this.hash = hash(classLoader);
+            this.value = new WeakReference<T>(value, collected);
+        }
+
+        boolean isLive() {
+            return get() != null && value.get() != null;
+        }
+    }
+
+    private static int hash(final ClassLoader classLoader) {
+        final int hash = System.identityHashCode(classLoader);
+        return hash ^ (hash >>> 16);
+    }
 }
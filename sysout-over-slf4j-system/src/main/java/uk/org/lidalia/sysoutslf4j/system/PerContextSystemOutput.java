@@ -25,13 +25,33 @@
 package uk.org.lidalia.sysoutslf4j.system;
 
 import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 public enum PerContextSystemOutput {
 
     OUT(SystemOutput.OUT), ERR(SystemOutput.ERR);
 
+    private static final long SWEEP_INTERVAL_SECONDS = 10;
+
     private final SystemOutput systemOutput;
+    private final AtomicReference<PerContextPrintStream> lastPerContextPrintStream =
+            new AtomicReference<PerContextPrintStream>();
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+    private final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            sweepCollectedContexts();
+        }
+    };
+    private final RegisteredContexts registeredContexts = new RegisteredContexts(this);
 
     private PerContextSystemOutput(final SystemOutput systemOutput) {
         this.systemOutput = systemOutput;
@@ -41,6 +61,10 @@ public enum PerContextSystemOutput {
         return systemOutput.get() instanceof PerContextPrintStream;
     }
 
+    /**
+     * Restores the original PrintStream, discarding the PerContextPrintStream along with every registration in it;
+     * the next registration builds a new one rather than reinstalling it.
+     */
     public void restoreOriginalPrintStream() {
         final Lock writeLock = systemOutput.getLock().writeLock();
         writeLock.lock();
@@ -48,6 +72,7 @@ public enum PerContextSystemOutput {
             if (isPerContextPrintStream()) {
                 systemOutput.set(getPerContextPrintStream().getOriginalPrintStream());
             }
+            lastPerContextPrintStream.set(null);
         } finally {
             writeLock.unlock();
         }
@@ -73,38 +98,149 @@ public enum PerContextSystemOutput {
         return (PerContextPrintStream) systemOutput.get();
     }
 
+    /**
+     * Deregisters the PrintStream of the current context and, if no context has a PrintStream registered any more,
+     * restores the original PrintStream so that output no longer pays for the PerContextPrintStream. It is put back
+     * by the next registration.
+     */
     public void deregisterPrintStreamForThisContext() {
-        final Lock readLock = systemOutput.getLock().readLock();
-        readLock.lock();
+        final PerContextPrintStream perContextPrintStream = currentOrLastPerContextPrintStream();
+        if (perContextPrintStream != null && perContextPrintStream.deregisterPrintStreamForThisContext()) {
+            uninstall(perContextPrintStream);
+        }
+    }
+
+    PerContextPrintStream currentOrLastPerContextPrintStream() {
+        final PrintStream current = systemOutput.get();
+        return current instanceof PerContextPrintStream
+                ? (PerContextPrintStream) current : lastPerContextPrintStream.get();
+    }
+
+    /**
+     * @return the counts of the contexts with a PrintStream registered for this output, for monitoring
+     */
+    public RegisteredContextsMXBean getRegisteredContexts() {
+        return registeredContexts;
+    }
+
+    /**
+     * Registers the PrintStream of the current context, wrapping the output in a PerContextPrintStream if it is not
+     * one already.<br>
+     *
+     * Takes no lock unless the output has to be wrapped, so contexts deploying in parallel do not wait on one
+     * another; only the first registration, or one racing the last deregistration, takes the output's write lock
+     * to install the PerContextPrintStream.
+     */
+    public void registerPrintStreamForThisContext(final PrintStream printStreamForThisContext) {
+        final PrintStream current = systemOutput.get();
+        if (current instanceof PerContextPrintStream) {
+            final PerContextPrintStream perContextPrintStream = (PerContextPrintStream) current;
+            if (perContextPrintStream.registerPrintStreamForThisContext(printStreamForThisContext)) {
+                install(perContextPrintStream);
+            }
+        } else {
+            final PerContextPrintStream perContextPrintStream = perContextPrintStreamWrapping(current);
+            perContextPrintStream.registerPrintStreamForThisContext(printStreamForThisContext);
+            install(perContextPrintStream);
+        }
+    }
+
+    /**
+     * Code that kept hold of System.out while a PerContextPrintStream was installed still has it, so if it was
+     * uninstalled and the output has not been replaced since it is reinstalled rather than a new one built.
+     * Registrations racing to wrap the output agree on a single PerContextPrintStream by compare-and-set.
+     */
+    private PerContextPrintStream perContextPrintStreamWrapping(final PrintStream originalPrintStream) {
+        while (true) {
+            final PerContextPrintStream last = lastPerContextPrintStream.get();
+            if (last != null && last.getOriginalPrintStream() == originalPrintStream) {
+                return last;
+            }
+            final PerContextPrintStream built = buildPerContextPrintStream(originalPrintStream);
+            if (lastPerContextPrintStream.compareAndSet(last, built)) {
+                return built;
+            }
+        }
+    }
+
+    private PerContextPrintStream buildPerContextPrintStream(final PrintStream originalPrintStream) {
+        return new PerContextPrintStream(originalPrintStream, this);
+    }
+
+    /*
+     * Installing and uninstalling decide what to do from the state of the PerContextPrintStream's registrations
+     * under the write lock, so whichever of a racing registration and deregistration takes the lock last leaves
+     * the output as its final state requires.
+     */
+
+    private void install(final PerContextPrintStream perContextPrintStream) {
+        final Lock writeLock = systemOutput.getLock().writeLock();
+        writeLock.lock();
         try {
-            if (isPerContextPrintStream()) {
-                getPerContextPrintStream().deregisterPrintStreamForThisContext();
+            if (!isPerContextPrintStream() && perContextPrintStream.hasRegisteredPrintStreams()) {
+                systemOutput.set(perContextPrintStream);
             }
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
         }
+        scheduleSweep();
     }
 
-    public void registerPrintStreamForThisContext(final PrintStream printStreamForThisContext) {
+    private void uninstall(final PerContextPrintStream perContextPrintStream) {
         final Lock writeLock = systemOutput.getLock().writeLock();
         writeLock.lock();
         try {
-            makePerContextPrintStream();
-            getPerContextPrintStream().registerPrintStreamForThisContext(printStreamForThisContext);
+            if (systemOutput.get() == perContextPrintStream && !perContextPrintStream.hasRegisteredPrintStreams()) {
+                systemOutput.set(perContextPrintStream.getOriginalPrintStream());
+                lastPerContextPrintStream.set(perContextPrintStream);
+            }
         } finally {
             writeLock.unlock();
         }
     }
 
-    private void makePerContextPrintStream() {
-        if (!isPerContextPrintStream()) {
-            systemOutput.set(buildPerContextPrintStream());
+    private void scheduleSweep() {
+        if (sweepScheduled.compareAndSet(false, true)) {
+            SharedTimer.schedule(sweep, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
         }
     }
 
-    private PerContextPrintStream buildPerContextPrintStream() {
-        final PrintStream originalPrintStream = systemOutput.get();
-        return new PerContextPrintStream(originalPrintStream);
+    /**
+     * A context that is discarded without being stopped, such as a web application undeployed by a container that
+     * does not tell it, leaves its PrintStream registered until its classloader is garbage collected. Such entries are
+     * purged here, on the timer thread rather than while printing, and if none is left the original PrintStream is
+     * restored. Sweeps carry on for as long as a PerContextPrintStream is installed.
+     */
+    private void sweepCollectedContexts() {
+        sweepScheduled.set(false);
+        final PrintStream current = systemOutput.get();
+        if (current instanceof PerContextPrintStream) {
+            final PerContextPrintStream perContextPrintStream = (PerContextPrintStream) current;
+            if (perContextPrintStream.purgeCollectedPrintStreams()
+                    && !perContextPrintStream.hasRegisteredPrintStreams()) {
+                uninstall(perContextPrintStream);
+            } else {
+                scheduleSweep();
+            }
+        }
+    }
+
+    /**
+     * Registers a {@link RegisteredContextsMXBean} for each output with the given MBeanServer, in the domain
+     * uk.org.lidalia.sysoutslf4j.system with type RegisteredContexts, unless one is already registered. They are
+     * shared by every context and hold on to none of them, so are never unregistered.
+     */
+    public static void registerMBeans(final MBeanServer mBeanServer) throws JMException {
+        for (PerContextSystemOutput systemOutput : values()) {
+            final ObjectName objectName = new ObjectName(
+                    "uk.org.lidalia.sysoutslf4j.system:type=RegisteredContexts,output="
+                            + systemOutput.systemOutput.getName());
+            try {
+                mBeanServer.registerMBean(systemOutput.registeredContexts, objectName);
+            } catch (InstanceAlreadyExistsException alreadyRegistered) {
+                // nothing to do
+            }
+        }
     }
 
     public static PerContextSystemOutput findByName(String name) {
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries a {@link ContextBinding} in a java.lang.ScopedValue, which unlike a ThreadLocal is inherited by the
+ * threads forked in a StructuredTaskScope and costs a thread nothing until it is bound. ScopedValue is final from
+ * Java 25, and a preview API before that; it is looked up by reflection, so that this jar still runs on the older
+ * JVMs it supports, and where it is not available {@link #isAvailable()} is false.
+ */
+final class ScopedContextBinding {
+
+    private static final Object SCOPED_VALUE;
+    private static final Method WHERE;
+    private static final Method RUN;
+    private static final Method OR_ELSE;
+
+    /*
+     * Outside any scope no thread pays more than this read to find that it has no scoped binding. Forked threads
+     * only run while the scope that forked them is open, so they see it counted. Nothing is kept per thread, which
+     * would have to be inheritable for forked threads to see it, and so would also mark every thread started from
+     * inside a scope, pooled ones included, for as long as it lived.
+     */
+    private static final AtomicInteger OPEN_SCOPES = new AtomicInteger();
+
+    static {
+        Object scopedValue = null;
+        Method where = null;
+        Method run = null;
+        Method orElse = null;
+        try {
+            final Class<?> scopedValueClass = Class.forName("java.lang.ScopedValue");
+            final Class<?> carrierClass = Class.forName("java.lang.ScopedValue$Carrier");
+            where = scopedValueClass.getMethod("where", scopedValueClass, Object.class);
+            run = carrierClass.getMethod("run", Runnable.class);
+            orElse = scopedValueClass.getMethod("orElse", Object.class);
+            scopedValue = scopedValueClass.getMethod("newInstance").invoke(null);
+        } catch (Exception notAvailable) {
+            // older JVM, or preview features not enabled
+            scopedValue = null;
+        } catch (LinkageError notAvailable) {
+            scopedValue = null;
+        }
+        SCOPED_VALUE = scopedValue;
+        WHERE = scopedValue == null ? null : where;
+        RUN = scopedValue == null ? null : run;
+        OR_ELSE = scopedValue == null ? null : orElse;
+    }
+
+    static boolean isAvailable() {
+        return SCOPED_VALUE != null;
+    }
+
+    /**
+     * @return the binding of the innermost scope the current thread is running in, or null if there is none
+     */
+    static ContextBinding current() {
+        if (OPEN_SCOPES.get() == 0) {
+            return null;
+        }
+        try {
+            return (ContextBinding) OR_ELSE.invoke(SCOPED_VALUE, (Object) null);
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs the task in a scope with the given binding. Must only be called if {@link #isAvailable()}.
+     */
+    static void run(final ContextBinding contextBinding, final Runnable task) {
+        OPEN_SCOPES.incrementAndGet();
+        try {
+            RUN.invoke(WHERE.invoke(null, SCOPED_VALUE, contextBinding), task);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("ScopedValue is not accessible", e);
+        } catch (InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        } finally {
+            OPEN_SCOPES.decrementAndGet();
+        }
+    }
+
+    private ScopedContextBinding() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
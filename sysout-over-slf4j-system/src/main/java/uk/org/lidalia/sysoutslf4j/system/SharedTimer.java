@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single timer thread shared by every context, for work such as flushing output that has been left pending for
+ * too long, that must happen eventually but not precisely on time.<br>
+ *
+ * Tasks are kept in a hashed wheel: an array of buckets, one per tick, each holding the tasks due on the ticks that
+ * map to it. Scheduling is constant time however many tasks are pending. Rather than ticking, the thread sleeps until
+ * the earliest pending task is due, and then runs the buckets of the ticks that have passed, so a task that is due
+ * only every few seconds wakes it only that often. A task runs up to one tick late.<br>
+ *
+ * Tasks are held weakly so that a pending task never pins a context in memory; a context must keep a strong
+ * reference to any task it wants run. The thread takes nothing from the context that starts it: it has no context
+ * class loader and no inherited thread local values. A task that throws is not retried.
+ */
+public final class SharedTimer {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final long START_NANOS = System.nanoTime();
+
+    private static final Object LOCK = new Object();
+    private static final List<List<ScheduledTask>> WHEEL = newWheel();
+    private static long currentTick = 0;
+    private static long nextDeadline = Long.MAX_VALUE;
+    private static int pendingTasks = 0;
+    private static Thread timerThread = null;
+
+    private static List<List<ScheduledTask>> newWheel() {
+        final List<List<ScheduledTask>> wheel = new ArrayList<List<ScheduledTask>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<ScheduledTask>());
+        }
+        return wheel;
+    }
+
+    /**
+     * Runs the task on the timer thread once the delay has passed, unless it has been garbage collected by then.
+     */
+    public static void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        // the first tick to start no earlier than the delay has passed
+        final long dueTick = (System.nanoTime() - START_NANOS + unit.toNanos(delay) + TICK_NANOS - 1) / TICK_NANOS;
+        synchronized (LOCK) {
+            final long deadline = Math.max(currentTick + 1, dueTick);
+            WHEEL.get((int) (deadline & WHEEL_MASK)).add(new ScheduledTask(task, deadline));
+            pendingTasks++;
+            if (timerThread == null) {
+                timerThread = newTimerThread();
+                timerThread.start();
+            }
+            if (deadline < nextDeadline) {
+                nextDeadline = deadline;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    private static Thread newTimerThread() {
+        final Thread thread = DetachedThreads.newThread("sysout-over-slf4j timer", new Runnable() {
+            @Override
+            public void run() {
+                runTimer();
+            }
+        });
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Runs until interrupted. However the thread ends, it is forgotten, so that the next task scheduled starts another.
+     */
+    private static void runTimer() {
+        try {
+            while (true) {
+                for (Runnable task : awaitDueTasks()) {
+                    runQuietly(task);
+                }
+            }
+        } catch (InterruptedException e) { // NOPMD
+            // the thread is ending, as asked
+        } finally {
+            synchronized (LOCK) {
+                if (timerThread == Thread.currentThread()) {
+                    timerThread = null;
+                }
+            }
+        }
+    }
+
+    private static List<Runnable> awaitDueTasks() throws InterruptedException {
+        synchronized (LOCK) {
+            long now = tickNow();
+            while (now < nextDeadline) {
+                if (nextDeadline == Long.MAX_VALUE) {
+                    LOCK.wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(LOCK, START_NANOS + nextDeadline * TICK_NANOS - System.nanoTime());
+                }
+                now = tickNow();
+            }
+            final List<Runnable> dueTasks = new ArrayList<Runnable>();
+            final long lastTick = Math.min(now, currentTick + WHEEL_SIZE);
+            for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+                final Iterator<ScheduledTask> bucket = WHEEL.get((int) (tick & WHEEL_MASK)).iterator();
+                while (bucket.hasNext()) {
+                    final ScheduledTask scheduledTask = bucket.next();
+                    if (scheduledTask.deadline <= now) {
+                        bucket.remove();
+                        pendingTasks--;
+                        final Runnable task = scheduledTask.task.get();
+                        if (task != null) {
+                            dueTasks.add(task);
+                        }
+                    }
+                }
+            }
+            currentTick = now;
+            nextDeadline = earliestDeadline();
+            return dueTasks;
+        }
+    }
+
+    private static long tickNow() {
+        return (System.nanoTime() - START_NANOS) / TICK_NANOS;
+    }
+
+    /**
+     * Only looked for once due tasks have been taken, so no more often than the thread wakes.
+     */
+    private static long earliestDeadline() {
+        long earliest = Long.MAX_VALUE;
+        if (pendingTasks > 0) {
+            for (List<ScheduledTask> bucket : WHEEL) {
+                for (ScheduledTask scheduledTask : bucket) {
+                    earliest = Math.min(earliest, scheduledTask.deadline);
+                }
+            }
+        }
+        return earliest;
+    }
+
+    private static void runQuietly(final Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) { // NOPMD
+            // one task failing, even with an Error, must not stop the timer or the other tasks
+        }
+    }
+
+    private static final class ScheduledTask {
+
+        private final WeakReference<Runnable> task;
+        private final long deadline;
+
+        ScheduledTask(final Runnable task, final long deadline) {
+            this.task = new WeakReference<Runnable>(task);
+            this.deadline = deadline;
+        }
+    }
+
+    private SharedTimer() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+/**
+ * Tells whether the current thread is in the middle of printing a stack trace, and of which Throwable, if the
+ * sysout-over-slf4j agent has been installed with -javaagent. Without the agent {@link #get()} always returns null.
+ */
+public final class ThrowableBeingPrinted {
+
+    private static final ThreadLocal<Throwable> PRINTING =
+            AgentHooks.find("uk.org.lidalia.sysoutslf4j.agent.StackTracePrinting", "PRINTING");
+
+    /**
+     * @return true if the agent is installed, so that {@link #get()} can be relied on
+     */
+    public static boolean isTracked() {
+        return PRINTING != null;
+    }
+
+    /**
+     * @return the outermost Throwable whose stack trace the current thread is printing to a PrintStream, or null
+     */
+    public static Throwable get() {
+        return PRINTING == null ? null : PRINTING.get();
+    }
+
+    private ThrowableBeingPrinted() {
+        throw new UnsupportedOperationException("Not instantiable");
+    }
+}
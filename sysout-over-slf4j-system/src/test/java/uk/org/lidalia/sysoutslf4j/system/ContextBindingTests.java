@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ContextBindingTests extends SysOutOverSLF4JTestCase {
+
+    private final ContextBinding contextBinding = new ContextBinding();
+    private final PrintStream printStream = new PrintStream(new ByteArrayOutputStream());
+
+    @After
+    public void unbindCurrentThread() {
+        ContextBinding.restore(null);
+    }
+
+    @Test
+    public void bindToCurrentThreadMakesItTheCurrentBinding() {
+        assertNull(contextBinding.bindToCurrentThread());
+        assertSame(contextBinding, ContextBinding.current());
+    }
+
+    @Test
+    public void bindToCurrentThreadReturnsBindingItReplaced() {
+        ContextBinding other = new ContextBinding();
+        other.bindToCurrentThread();
+
+        assertSame(other, contextBinding.bindToCurrentThread());
+    }
+
+    @Test
+    public void restorePutsBackPreviousBinding() {
+        ContextBinding other = new ContextBinding();
+        other.bindToCurrentThread();
+        ContextBinding previous = contextBinding.bindToCurrentThread();
+
+        ContextBinding.restore(previous);
+
+        assertSame(other, ContextBinding.current());
+    }
+
+    @Test
+    public void restoreNullUnbindsCurrentThread() {
+        contextBinding.bindToCurrentThread();
+        ContextBinding.restore(null);
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void bindingIsNotSeenByOtherThreads() throws Exception {
+        contextBinding.bindToCurrentThread();
+        final AtomicReference<ContextBinding> seen = new AtomicReference<ContextBinding>(contextBinding);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                seen.set(ContextBinding.current());
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(seen.get());
+    }
+
+    @Test
+    public void runInScopeBindsContextWhileTaskRuns() {
+        final AtomicReference<ContextBinding> seen = new AtomicReference<ContextBinding>();
+
+        contextBinding.runInScope(new Runnable() {
+            @Override
+            public void run() {
+                seen.set(ContextBinding.current());
+            }
+        });
+
+        assertSame(contextBinding, seen.get());
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void runInScopeIsNotSeenByThreadsAlreadyRunning() throws Exception {
+        final CountDownLatch scopeOpen = new CountDownLatch(1);
+        final CountDownLatch looked = new CountDownLatch(1);
+        final AtomicReference<ContextBinding> seen = new AtomicReference<ContextBinding>(contextBinding);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scopeOpen.await();
+                    seen.set(ContextBinding.current());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    looked.countDown();
+                }
+            }
+        };
+        thread.start();
+
+        contextBinding.runInScope(new Runnable() {
+            @Override
+            public void run() {
+                scopeOpen.countDown();
+                try {
+                    looked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.join();
+
+        assertNull(seen.get());
+    }
+
+    @Test
+    public void runInScopeRestoresOuterBindingAfterwards() {
+        ContextBinding outer = new ContextBinding();
+        outer.bindToCurrentThread();
+
+        contextBinding.runInScope(new Runnable() {
+            @Override
+            public void run() {
+                assertSame(contextBinding, ContextBinding.current());
+            }
+        });
+
+        assertSame(outer, ContextBinding.current());
+    }
+
+    @Test
+    public void runInScopePropagatesExceptionAndRestoresBinding() {
+        final IllegalStateException failure = new IllegalStateException();
+        try {
+            contextBinding.runInScope(new Runnable() {
+                @Override
+                public void run() {
+                    throw failure;
+                }
+            });
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertNull(ContextBinding.current());
+    }
+
+    @Test
+    public void boundPrintStreamReturnsPrintStreamForOutput() {
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, printStream);
+        contextBinding.bindToCurrentThread();
+
+        assertSame(printStream, ContextBinding.boundPrintStream(PerContextSystemOutput.OUT));
+        assertNull(ContextBinding.boundPrintStream(PerContextSystemOutput.ERR));
+    }
+
+    @Test
+    public void boundPrintStreamReturnsNullOnceCleared() {
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, printStream);
+        contextBinding.bindToCurrentThread();
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, null);
+
+        assertNull(ContextBinding.boundPrintStream(PerContextSystemOutput.OUT));
+    }
+
+    @Test
+    public void boundPrintStreamReturnsNullWhenNoContextIsBound() {
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, printStream);
+        assertNull(ContextBinding.boundPrintStream(PerContextSystemOutput.OUT));
+    }
+
+    @Test
+    public void bindingDoesNotKeepPrintStreamAlive() {
+        PrintStream toCollect = new PrintStream(new ByteArrayOutputStream());
+        WeakReference<PrintStream> refToPrintStream = new WeakReference<PrintStream>(toCollect);
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, toCollect);
+        contextBinding.bindToCurrentThread();
+
+        toCollect = null;
+        System.gc();
+
+        assertNull("PrintStream has not been garbage collected", refToPrintStream.get());
+        assertNull(ContextBinding.boundPrintStream(PerContextSystemOutput.OUT));
+    }
+}
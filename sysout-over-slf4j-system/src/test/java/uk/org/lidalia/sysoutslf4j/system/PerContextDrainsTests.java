@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PerContextDrainsTests extends SysOutOverSLF4JTestCase {
+
+    private final AtomicInteger drainCount = new AtomicInteger();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainCount.incrementAndGet();
+        }
+    };
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Runnable blockingDrain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    };
+
+    @After
+    public void deregisterDrains() {
+        release.countDown();
+        PerContextDrains.deregister(drain);
+        PerContextDrains.deregister(blockingDrain);
+    }
+
+    @Test
+    public void drainAllRunsRegisteredDrains() {
+        PerContextDrains.register(drain);
+
+        assertTrue(PerContextDrains.drainAll(1, TimeUnit.SECONDS));
+        assertEquals(1, drainCount.get());
+    }
+
+    @Test
+    public void drainAllDoesNotRunDeregisteredDrains() {
+        PerContextDrains.register(drain);
+        PerContextDrains.deregister(drain);
+
+        assertTrue(PerContextDrains.drainAll(1, TimeUnit.SECONDS));
+        assertEquals(0, drainCount.get());
+    }
+
+    @Test
+    public void registeringTheSameDrainTwiceRunsItOnce() {
+        PerContextDrains.register(drain);
+        PerContextDrains.register(drain);
+
+        PerContextDrains.drainAll(1, TimeUnit.SECONDS);
+
+        assertEquals(1, drainCount.get());
+    }
+
+    @Test
+    public void drainAllGivesUpAfterTimeout() {
+        PerContextDrains.register(blockingDrain);
+
+        assertFalse(PerContextDrains.drainAll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failingDrainDoesNotStopOtherDrains() {
+        PerContextDrains.register(new FailingDrain());
+        PerContextDrains.register(drain);
+
+        assertTrue(PerContextDrains.drainAll(1, TimeUnit.SECONDS));
+        assertEquals(1, drainCount.get());
+    }
+
+    @Test
+    public void drainsRunWithoutThreadLocalValuesOfTheCallingThread() {
+        final InheritableThreadLocal<Object> inheritable = new InheritableThreadLocal<Object>();
+        inheritable.set(new Object());
+        final AtomicReference<Object> inherited = new AtomicReference<Object>(new Object());
+        Runnable recordingDrain = new Runnable() {
+            @Override
+            public void run() {
+                inherited.set(inheritable.get());
+            }
+        };
+        PerContextDrains.register(recordingDrain);
+
+        PerContextDrains.drainAll(1, TimeUnit.SECONDS);
+
+        assertNull(inherited.get());
+    }
+
+    @Test
+    public void drainsRunWithNoContextClassLoader() {
+        final AtomicReference<ClassLoader> contextClassLoader = new AtomicReference<ClassLoader>(new ClassLoader() { });
+        Runnable recordingDrain = new Runnable() {
+            @Override
+            public void run() {
+                contextClassLoader.set(Thread.currentThread().getContextClassLoader());
+            }
+        };
+        PerContextDrains.register(recordingDrain);
+
+        PerContextDrains.drainAll(1, TimeUnit.SECONDS);
+
+        assertNull(contextClassLoader.get());
+        PerContextDrains.deregister(recordingDrain);
+    }
+
+    @Test
+    public void drainsAreHeldWeakly() {
+        Runnable weaklyHeldDrain = new FailingDrain();
+        WeakReference<Runnable> reference = new WeakReference<Runnable>(weaklyHeldDrain);
+        PerContextDrains.register(weaklyHeldDrain);
+
+        weaklyHeldDrain = null;
+        System.gc();
+
+        assertNull("drain has not been garbage collected", reference.get());
+    }
+
+    private static class FailingDrain implements Runnable {
+        @Override
+        public void run() {
+            throw new IllegalStateException();
+        }
+    }
+}
@@ -31,18 +31,25 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import uk.org.lidalia.lang.Classes;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 import static uk.org.lidalia.test.ShouldThrow.shouldThrow;
@@ -63,7 +70,7 @@ public class PerContextPrintStreamTests {
         contextPrintStreamMock = mock(PrintStream.class);
         when(perContextStoreMock.get()).thenReturn(contextPrintStreamMock);
         whenNew(PerContextStore.class).withArguments(originalPrintStreamMock).thenReturn(perContextStoreMock);
-        perContextPrintStream = new PerContextPrintStream(originalPrintStreamMock);
+        perContextPrintStream = new PerContextPrintStream(originalPrintStreamMock, PerContextSystemOutput.OUT);
     }
 
     @Test
@@ -97,6 +104,23 @@ public class PerContextPrintStreamTests {
         method.invoke(verify(contextPrintStreamMock), args);
     }
 
+    @Test
+    public void monitorIsNotHeldWhileDelegating() throws Exception {
+        setUpMocks();
+        final AtomicBoolean monitorHeld = new AtomicBoolean(true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                monitorHeld.set(Thread.holdsLock(perContextPrintStream));
+                return null;
+            }
+        }).when(contextPrintStreamMock).println("text");
+
+        perContextPrintStream.println("text");
+
+        assertFalse(monitorHeld.get());
+    }
+
     @Test
     public void setErrorThrowsUnsupportedOperationException() throws Exception {
         setUpMocks();
@@ -123,9 +147,57 @@ public class PerContextPrintStreamTests {
         verify(perContextStoreMock).remove();
     }
 
+    @Test
+    public void hasRegisteredPrintStreamsIfStoreIsNotEmpty() throws Exception {
+        setUpMocks();
+        when(perContextStoreMock.isEmpty()).thenReturn(false);
+        assertTrue(perContextPrintStream.hasRegisteredPrintStreams());
+
+        when(perContextStoreMock.isEmpty()).thenReturn(true);
+        assertFalse(perContextPrintStream.hasRegisteredPrintStreams());
+    }
+
+    @Test
+    public void printsToPrintStreamOfContextBoundToCurrentThread() throws Exception {
+        setUpMocks();
+        PrintStream boundPrintStreamMock = mock(PrintStream.class);
+        ContextBinding contextBinding = new ContextBinding();
+        contextBinding.setPrintStream(PerContextSystemOutput.OUT, boundPrintStreamMock);
+
+        ContextBinding previous = contextBinding.bindToCurrentThread();
+        try {
+            perContextPrintStream.println("bound");
+        } finally {
+            ContextBinding.restore(previous);
+        }
+        perContextPrintStream.println("unbound");
+
+        verify(boundPrintStreamMock).println("bound");
+        verify(contextPrintStreamMock).println("unbound");
+        verifyNoMoreInteractions(boundPrintStreamMock, contextPrintStreamMock);
+    }
+
+    @Test
+    public void printsToStoreIfContextBoundToCurrentThreadHasNoPrintStreamForOutput() throws Exception {
+        setUpMocks();
+        PrintStream boundPrintStreamMock = mock(PrintStream.class);
+        ContextBinding contextBinding = new ContextBinding();
+        contextBinding.setPrintStream(PerContextSystemOutput.ERR, boundPrintStreamMock);
+
+        ContextBinding previous = contextBinding.bindToCurrentThread();
+        try {
+            perContextPrintStream.println("text");
+        } finally {
+            ContextBinding.restore(previous);
+        }
+
+        verify(contextPrintStreamMock).println("text");
+        verifyNoMoreInteractions(boundPrintStreamMock);
+    }
+
     @Test
     public void getOriginalPrintStreamReturnsOriginalPrintStream() {
-        perContextPrintStream = new PerContextPrintStream(System.err);
+        perContextPrintStream = new PerContextPrintStream(System.err, PerContextSystemOutput.ERR);
         assertSame(System.err, perContextPrintStream.getOriginalPrintStream());
     }
 
@@ -29,6 +29,7 @@ import java.lang.ref.WeakReference;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 public class PerContextStoreMemoryManagementTests extends SysOutOverSLF4JTestCase {
@@ -48,6 +49,16 @@ public class PerContextStoreMemoryManagementTests extends SysOutOverSLF4JTestCas
         assertClassLoaderHasBeenGarbageCollected();
     }
 
+    @Test
+    public void loggerAppenderStoreRetainsNoEntryForAGarbageCollectedClassLoaderOncePurged() throws Exception {
+        storeLoggerAppenderAgainstClassLoader();
+        removeLocalReferenceToClassLoader();
+        removeLocalReferenceToLoggerAppenderAndGarbageCollect();
+
+        assertEquals(1, PerContextStoreTests.purgeOnceCollected(storeUnderTest, 1));
+        assertEquals(0, storeUnderTest.retainedCount());
+    }
+
     private void storeLoggerAppenderAgainstClassLoader() {
         Thread.currentThread().setContextClassLoader(classLoader);
         storeUnderTest.put(valueToStore);
@@ -63,7 +74,6 @@ public class PerContextStoreMemoryManagementTests extends SysOutOverSLF4JTestCas
         System.gc();
     }
 
-
     private void assertClassLoaderHasBeenGarbageCollected() {
         assertNull("classloader has not been garbage collected", refToClassLoader.get());
     }
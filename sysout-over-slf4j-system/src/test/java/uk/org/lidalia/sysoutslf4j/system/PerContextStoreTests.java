@@ -28,8 +28,10 @@ import org.junit.Test;
 
 import static java.lang.Thread.currentThread;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class PerContextStoreTests extends SysOutOverSLF4JTestCase {
 
@@ -106,4 +108,135 @@ public class PerContextStoreTests extends SysOutOverSLF4JTestCase {
         PerContextStore<String> storeUnderTest = new PerContextStore<String>("default");
         assertEquals("default", storeUnderTest.getDefaultValue());
     }
+
+    @Test
+    public void putReturnsTrueOnlyForFirstContext() {
+        currentThread().setContextClassLoader(classLoaders[0]);
+        assertTrue(storeUnderTest.put(objectsToStore[0]));
+        assertTrue(storeUnderTest.put(objectsToStore[0]));
+
+        currentThread().setContextClassLoader(classLoaders[1]);
+        assertFalse(storeUnderTest.put(objectsToStore[1]));
+    }
+
+    @Test
+    public void removeReturnsTrueOnceLastContextRemoved() {
+        storeValuesAgainstDifferentContextClassLoaders();
+
+        currentThread().setContextClassLoader(classLoaders[0]);
+        assertFalse(storeUnderTest.remove());
+        currentThread().setContextClassLoader(classLoaders[1]);
+        assertTrue(storeUnderTest.remove());
+    }
+
+    @Test
+    public void perContextStoreReturnsValueStoredAgainstParentIfValueForContextClassLoaderGarbageCollected() {
+        PerContextStore<Object> store = new PerContextStore<Object>("default");
+        ClassLoader parent = new ClassLoader() { };
+        Object value = new Object();
+        currentThread().setContextClassLoader(parent);
+        store.put(value);
+        ClassLoader child = new ClassLoader(parent) { };
+        currentThread().setContextClassLoader(child);
+        store.put(new Object());
+
+        System.gc();
+
+        assertSame(value, store.get());
+    }
+
+    @Test
+    public void manyContextsEachGetTheirOwnValue() {
+        ClassLoader[] manyClassLoaders = new ClassLoader[100];
+        for (int i = 0; i < manyClassLoaders.length; i++) {
+            manyClassLoaders[i] = new ClassLoader() { };
+            currentThread().setContextClassLoader(manyClassLoaders[i]);
+            storeUnderTest.put(String.valueOf(i));
+        }
+        for (int i = 0; i < manyClassLoaders.length; i++) {
+            currentThread().setContextClassLoader(manyClassLoaders[i]);
+            assertEquals(String.valueOf(i), storeUnderTest.get());
+        }
+    }
+
+    @Test
+    public void isEmptyUntilValueStored() {
+        assertTrue(storeUnderTest.isEmpty());
+
+        storeValuesAgainstDifferentContextClassLoaders();
+
+        assertFalse(storeUnderTest.isEmpty());
+    }
+
+    @Test
+    public void isEmptyOnceAllValuesRemoved() {
+        storeValuesAgainstDifferentContextClassLoaders();
+        for (ClassLoader classLoader : classLoaders) {
+            currentThread().setContextClassLoader(classLoader);
+            storeUnderTest.remove();
+        }
+
+        assertTrue(storeUnderTest.isEmpty());
+    }
+
+    @Test
+    public void isEmptyOnceAllValuesGarbageCollected() {
+        PerContextStore<Object> store = new PerContextStore<Object>();
+        store.put(new Object());
+
+        System.gc();
+
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void purgeCollectedDropsEntriesOfGarbageCollectedContexts() throws Exception {
+        currentThread().setContextClassLoader(classLoaders[0]);
+        storeUnderTest.put(objectsToStore[0]);
+        for (int i = 0; i < 10; i++) {
+            currentThread().setContextClassLoader(new ClassLoader() { });
+            storeUnderTest.put(new String(objectsToStore[1]));
+        }
+        currentThread().setContextClassLoader(originalContextClassLoader);
+        assertEquals(11, storeUnderTest.retainedCount());
+
+        assertEquals(10, purgeOnceCollected(storeUnderTest, 10));
+
+        assertEquals(1, storeUnderTest.liveCount());
+        assertEquals(1, storeUnderTest.retainedCount());
+        currentThread().setContextClassLoader(classLoaders[0]);
+        assertEquals(objectsToStore[0], storeUnderTest.get());
+    }
+
+    @Test
+    public void purgeCollectedDropsNothingWhileNothingHasBeenCollected() {
+        storeValuesAgainstDifferentContextClassLoaders();
+
+        System.gc();
+
+        assertEquals(0, storeUnderTest.purgeCollected());
+        assertEquals(2, storeUnderTest.liveCount());
+        assertEquals(2, storeUnderTest.retainedCount());
+    }
+
+    @Test
+    public void liveCountAndRetainedCountFallAsValuesAreRemoved() {
+        storeValuesAgainstDifferentContextClassLoaders();
+        currentThread().setContextClassLoader(classLoaders[0]);
+
+        storeUnderTest.remove();
+
+        assertEquals(1, storeUnderTest.liveCount());
+        assertEquals(1, storeUnderTest.retainedCount());
+    }
+
+    static int purgeOnceCollected(PerContextStore<?> store, int expected) throws InterruptedException {
+        int purged = 0;
+        for (int attempt = 0; attempt < 100 && purged < expected; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            purged += store.purgeCollected();
+        }
+        return purged;
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PerContextSystemOutputConcurrencyTests extends SysOutOverSLF4JTestCase {
+
+    private static final int CONTEXTS = 64;
+    private static final int ROUNDS = 20;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CONTEXTS);
+    private final PrintStream original = new PrintStream(new ByteArrayOutputStream());
+    private final ClassLoader[] contexts = new ClassLoader[CONTEXTS];
+
+    @Before
+    public void setUpContexts() {
+        SystemOutput.OUT.set(original);
+        for (int i = 0; i < CONTEXTS; i++) {
+            contexts[i] = new ClassLoader() { };
+        }
+    }
+
+    @After
+    public void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void contextsRegisteringAndDeregisteringInParallelAllTakeEffect() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[CONTEXTS];
+            final PrintStream[] printStreams = new PrintStream[CONTEXTS];
+            for (int i = 0; i < CONTEXTS; i++) {
+                outputs[i] = new ByteArrayOutputStream();
+                printStreams[i] = new PrintStream(outputs[i], true);
+            }
+
+            inParallelInEachContext(new ContextTask() {
+                @Override
+                public void perform(final int context) {
+                    PerContextSystemOutput.OUT.registerPrintStreamForThisContext(printStreams[context]);
+                }
+            });
+            assertTrue(SystemOutput.OUT.get() instanceof PerContextPrintStream);
+
+            inParallelInEachContext(new ContextTask() {
+                @Override
+                public void perform(final int context) {
+                    System.out.print(context);
+                }
+            });
+            for (int i = 0; i < CONTEXTS; i++) {
+                assertEquals(String.valueOf(i), outputs[i].toString());
+            }
+
+            inParallelInEachContext(new ContextTask() {
+                @Override
+                public void perform(final int context) {
+                    PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+                }
+            });
+            assertSame(original, SystemOutput.OUT.get());
+        }
+    }
+
+    @Test
+    public void registrationRacingLastDeregistrationLeavesOutputWrapped() throws Exception {
+        final PrintStream first = new PrintStream(new ByteArrayOutputStream());
+        final ByteArrayOutputStream secondOutput = new ByteArrayOutputStream();
+        final PrintStream second = new PrintStream(secondOutput, true);
+        for (int round = 0; round < ROUNDS * 10; round++) {
+            Thread.currentThread().setContextClassLoader(contexts[0]);
+            PerContextSystemOutput.OUT.registerPrintStreamForThisContext(first);
+
+            final CyclicBarrier start = new CyclicBarrier(2);
+            final Future<?> deregistration = executor.submit(inContext(contexts[0], start, new Runnable() {
+                @Override
+                public void run() {
+                    PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+                }
+            }));
+            final Future<?> registration = executor.submit(inContext(contexts[1], start, new Runnable() {
+                @Override
+                public void run() {
+                    PerContextSystemOutput.OUT.registerPrintStreamForThisContext(second);
+                }
+            }));
+            deregistration.get(10, TimeUnit.SECONDS);
+            registration.get(10, TimeUnit.SECONDS);
+
+            Thread.currentThread().setContextClassLoader(contexts[1]);
+            System.out.print("x");
+            assertEquals("round " + round, round + 1, secondOutput.size());
+            PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+            assertSame(original, SystemOutput.OUT.get());
+        }
+    }
+
+    private interface ContextTask {
+        void perform(int context);
+    }
+
+    private void inParallelInEachContext(final ContextTask task) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(CONTEXTS);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            final int context = i;
+            futures.add(executor.submit(inContext(contexts[context], start, new Runnable() {
+                @Override
+                public void run() {
+                    task.perform(context);
+                }
+            })));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Callable<Void> inContext(final ClassLoader context, final CyclicBarrier start, final Runnable task) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final Thread thread = Thread.currentThread();
+                final ClassLoader previous = thread.getContextClassLoader();
+                thread.setContextClassLoader(context);
+                try {
+                    start.await();
+                    task.run();
+                } finally {
+                    thread.setContextClassLoader(previous);
+                }
+                return null;
+            }
+        };
+    }
+}
@@ -26,17 +26,24 @@ package uk.org.lidalia.sysoutslf4j.system;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 
@@ -52,10 +59,10 @@ public class PerContextSystemOutputTests extends SysOutOverSLF4JTestCase {
 
     @Test
     public void isPerContextPrintStreamReturnsTrueWhenSystemOutIsPerContextPrintStream() {
-        System.setOut(new PerContextPrintStream(System.out));
+        System.setOut(new PerContextPrintStream(System.out, PerContextSystemOutput.OUT));
         assertTrue(PerContextSystemOutput.OUT.isPerContextPrintStream());
 
-        System.setErr(new PerContextPrintStream(System.err));
+        System.setErr(new PerContextPrintStream(System.err, PerContextSystemOutput.ERR));
         assertTrue(PerContextSystemOutput.ERR.isPerContextPrintStream());
     }
 
@@ -92,7 +99,7 @@ public class PerContextSystemOutputTests extends SysOutOverSLF4JTestCase {
 
     private void assertRestoreOriginalPrintStreamRestoresOriginalPrintStreamIfOutputIsPerContextPrintStream(SystemOutput output, PerContextSystemOutput perContextOutput) {
         PrintStream original = output.get();
-        output.set(new PerContextPrintStream(output.get()));
+        output.set(new PerContextPrintStream(output.get(), perContextOutput));
         perContextOutput.restoreOriginalPrintStream();
         assertSame(original, output.get());
     }
@@ -123,7 +130,7 @@ public class PerContextSystemOutputTests extends SysOutOverSLF4JTestCase {
 
     private void getOriginalPrintStreamReturnsOriginalWhenOutputIsPerContextPrintStream(SystemOutput output, PerContextSystemOutput perContextOutput) {
         PrintStream original = output.get();
-        output.set(new PerContextPrintStream(output.get()));
+        output.set(new PerContextPrintStream(output.get(), perContextOutput));
         assertSame(original, perContextOutput.getOriginalPrintStream());
     }
 
@@ -145,7 +152,8 @@ public class PerContextSystemOutputTests extends SysOutOverSLF4JTestCase {
         PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
         PerContextPrintStream perContextPrintStreamMock = mock(PerContextPrintStream.class);
 
-        whenNew(PerContextPrintStream.class).withArguments(original).thenReturn(perContextPrintStreamMock);
+        whenNew(PerContextPrintStream.class).withArguments(original, perContextOutput).thenReturn(perContextPrintStreamMock);
+        when(perContextPrintStreamMock.hasRegisteredPrintStreams()).thenReturn(true);
 
         perContextOutput.registerPrintStreamForThisContext(toRegister);
 
@@ -193,9 +201,139 @@ public class PerContextSystemOutputTests extends SysOutOverSLF4JTestCase {
     private void deregisterLoggerAppenderDeregistersAppenderIfOutputIsPerContextPrintStream(SystemOutput output, PerContextSystemOutput perContextOutput) {
         PerContextPrintStream perContextPrintStreamMock = mock(PerContextPrintStream.class);
 
+        when(perContextPrintStreamMock.hasRegisteredPrintStreams()).thenReturn(true);
+
         output.set(perContextPrintStreamMock);
         perContextOutput.deregisterPrintStreamForThisContext();
 
         verify(perContextPrintStreamMock).deregisterPrintStreamForThisContext();
+        assertSame(perContextPrintStreamMock, output.get());
+    }
+
+    @Test
+    public void deregisterLoggerAppenderRestoresOriginalPrintStreamWhenNoContextRemains() {
+        deregisterLoggerAppenderRestoresOriginalPrintStreamWhenNoContextRemains(SystemOutput.OUT, PerContextSystemOutput.OUT);
+        deregisterLoggerAppenderRestoresOriginalPrintStreamWhenNoContextRemains(SystemOutput.ERR, PerContextSystemOutput.ERR);
+    }
+
+    private void deregisterLoggerAppenderRestoresOriginalPrintStreamWhenNoContextRemains(SystemOutput output, PerContextSystemOutput perContextOutput) {
+        PrintStream original = new PrintStream(new ByteArrayOutputStream());
+        PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
+        output.set(new PerContextPrintStream(original, perContextOutput));
+
+        perContextOutput.registerPrintStreamForThisContext(toRegister);
+        perContextOutput.deregisterPrintStreamForThisContext();
+
+        assertSame(original, output.get());
+    }
+
+    @Test
+    public void deregisterLoggerAppenderLeavesPerContextPrintStreamWhileAnotherContextRemains() {
+        PrintStream original = new PrintStream(new ByteArrayOutputStream());
+        PerContextPrintStream perContextPrintStream = new PerContextPrintStream(original, PerContextSystemOutput.OUT);
+        PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
+        SystemOutput.OUT.set(perContextPrintStream);
+
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+        Thread.currentThread().setContextClassLoader(new ClassLoader() { });
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+        PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+
+        assertSame(perContextPrintStream, SystemOutput.OUT.get());
+    }
+
+    @Test
+    public void registerLoggerAppenderReinstallsUninstalledPerContextPrintStream() {
+        PrintStream original = new PrintStream(new ByteArrayOutputStream());
+        PerContextPrintStream perContextPrintStream = new PerContextPrintStream(original, PerContextSystemOutput.OUT);
+        PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
+        SystemOutput.OUT.set(perContextPrintStream);
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+        PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+
+        assertSame(perContextPrintStream, SystemOutput.OUT.get());
+    }
+
+    @Test
+    public void registerLoggerAppenderAfterRestoreDoesNotReinstateEarlierRegistrations() {
+        ByteArrayOutputStream originalBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream earlierContextBytes = new ByteArrayOutputStream();
+        SystemOutput.OUT.set(new PrintStream(originalBytes, true));
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(new PrintStream(earlierContextBytes, true));
+        PerContextSystemOutput.OUT.restoreOriginalPrintStream();
+
+        Thread.currentThread().setContextClassLoader(new ClassLoader() { });
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(new PrintStream(new ByteArrayOutputStream()));
+        Thread.currentThread().setContextClassLoader(originalContextClassLoader);
+        SystemOutput.OUT.get().print("text");
+
+        assertEquals("", earlierContextBytes.toString());
+        assertEquals("text", originalBytes.toString());
+    }
+
+    @Test
+    public void sweepRestoresOriginalPrintStreamOnceEveryContextHasBeenGarbageCollected() throws Exception {
+        PrintStream original = new PrintStream(new ByteArrayOutputStream());
+        SystemOutput.OUT.set(original);
+        Thread.currentThread().setContextClassLoader(new ClassLoader() { });
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(new PrintStream(new ByteArrayOutputStream()));
+        Thread.currentThread().setContextClassLoader(originalContextClassLoader);
+
+        for (int attempt = 0; attempt < 100 && SystemOutput.OUT.get() != original; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            Whitebox.invokeMethod(PerContextSystemOutput.OUT, "sweepCollectedContexts");
+        }
+
+        assertSame(original, SystemOutput.OUT.get());
+    }
+
+    @Test
+    public void sweepLeavesPerContextPrintStreamWhileAContextIsAlive() throws Exception {
+        PerContextPrintStream perContextPrintStream =
+                new PerContextPrintStream(new PrintStream(new ByteArrayOutputStream()), PerContextSystemOutput.OUT);
+        SystemOutput.OUT.set(perContextPrintStream);
+        PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+
+        System.gc();
+        Whitebox.invokeMethod(PerContextSystemOutput.OUT, "sweepCollectedContexts");
+
+        assertSame(perContextPrintStream, SystemOutput.OUT.get());
+    }
+
+    @Test
+    public void registeredContextsCountsContextsWithAPrintStreamRegistered() {
+        SystemOutput.OUT.set(
+                new PerContextPrintStream(new PrintStream(new ByteArrayOutputStream()), PerContextSystemOutput.OUT));
+        PrintStream toRegister = new PrintStream(new ByteArrayOutputStream());
+        ClassLoader otherContext = new ClassLoader() { };
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+        Thread.currentThread().setContextClassLoader(otherContext);
+        PerContextSystemOutput.OUT.registerPrintStreamForThisContext(toRegister);
+        RegisteredContextsMXBean registeredContexts = PerContextSystemOutput.OUT.getRegisteredContexts();
+
+        assertEquals(2, registeredContexts.getLiveContexts());
+        assertEquals(2, registeredContexts.getRetainedEntries());
+
+        PerContextSystemOutput.OUT.deregisterPrintStreamForThisContext();
+
+        assertEquals(1, registeredContexts.getLiveContexts());
+        assertEquals(1, registeredContexts.getRetainedEntries());
+    }
+
+    @Test
+    public void registerMBeansRegistersRegisteredContextsOfEachOutput() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        PerContextSystemOutput.registerMBeans(mBeanServer);
+        PerContextSystemOutput.registerMBeans(mBeanServer);
+
+        assertTrue(mBeanServer.isRegistered(
+                new ObjectName("uk.org.lidalia.sysoutslf4j.system:type=RegisteredContexts,output=System.out")));
+        assertTrue(mBeanServer.isRegistered(
+                new ObjectName("uk.org.lidalia.sysoutslf4j.system:type=RegisteredContexts,output=System.err")));
     }
 }
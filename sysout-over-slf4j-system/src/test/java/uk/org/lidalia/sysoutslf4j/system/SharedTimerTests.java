@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009-2012 Robert Elliot
+ * All rights reserved.
+ *
+ * Permission is hereby granted, free  of charge, to any person obtaining
+ * a  copy  of this  software  and  associated  documentation files  (the
+ * "Software"), to  deal in  the Software without  restriction, including
+ * without limitation  the rights to  use, copy, modify,  merge, publish,
+ * distribute,  sublicense, and/or sell  copies of  the Software,  and to
+ * permit persons to whom the Software  is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The  above  copyright  notice  and  this permission  notice  shall  be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE  SOFTWARE IS  PROVIDED  "AS  IS", WITHOUT  WARRANTY  OF ANY  KIND,
+ * EXPRESS OR  IMPLIED, INCLUDING  BUT NOT LIMITED  TO THE  WARRANTIES OF
+ * MERCHANTABILITY,    FITNESS    FOR    A   PARTICULAR    PURPOSE    AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE,  ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package uk.org.lidalia.sysoutslf4j.system;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SharedTimerTests extends SysOutOverSLF4JTestCase {
+
+    @Test
+    public void runsTaskAfterDelay() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+        long start = System.nanoTime();
+
+        SharedTimer.schedule(task, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    public void runsTaskScheduledAheadOfALaterOneWhenItIsDue() throws Exception {
+        final CountDownLatch later = new CountDownLatch(1);
+        final CountDownLatch sooner = new CountDownLatch(1);
+        Runnable laterTask = new CountingDownTask(later);
+        Runnable soonerTask = new CountingDownTask(sooner);
+
+        SharedTimer.schedule(laterTask, 10, TimeUnit.SECONDS);
+        SharedTimer.schedule(soonerTask, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(sooner.await(2, TimeUnit.SECONDS));
+        assertFalse(later.await(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void runsTasksWithoutThreadLocalValuesOfTheSchedulingThread() throws Exception {
+        final InheritableThreadLocal<Object> inheritable = new InheritableThreadLocal<Object>();
+        inheritable.set(new Object());
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<Object> inherited = new AtomicReference<Object>(new Object());
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                inherited.set(inheritable.get());
+                ran.countDown();
+            }
+        };
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("sysout-over-slf4j timer")) {
+                thread.interrupt();
+                thread.join(5000);
+            }
+        }
+
+        SharedTimer.schedule(task, 1, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertNull(inherited.get());
+    }
+
+    @Test
+    public void runsTasksWithNoContextClassLoader() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final AtomicReference<ClassLoader> contextClassLoader = new AtomicReference<ClassLoader>(new ClassLoader() { });
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                contextClassLoader.set(Thread.currentThread().getContextClassLoader());
+                ran.countDown();
+            }
+        };
+
+        SharedTimer.schedule(task, 1, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertNull(contextClassLoader.get());
+    }
+
+    @Test
+    public void failingTaskDoesNotStopTimer() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable failingTask = new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException();
+            }
+        };
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        };
+
+        SharedTimer.schedule(failingTask, 1, TimeUnit.MILLISECONDS);
+        SharedTimer.schedule(task, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void taskThrowingErrorDoesNotStopTimer() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable failingTask = new Runnable() {
+            @Override
+            public void run() {
+                throw new StackOverflowError();
+            }
+        };
+        Runnable task = new CountingDownTask(ran);
+
+        SharedTimer.schedule(failingTask, 1, TimeUnit.MILLISECONDS);
+        SharedTimer.schedule(task, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timerIsRestartedAfterItsThreadHasEnded() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        Runnable startingTask = new CountingDownTask(started);
+        SharedTimer.schedule(startingTask, 1, TimeUnit.MILLISECONDS);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("sysout-over-slf4j timer")) {
+                thread.interrupt();
+                thread.join(5000);
+            }
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable task = new CountingDownTask(ran);
+
+        SharedTimer.schedule(task, 1, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void holdsTasksWeakly() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable task = new CountingDownTask(ran);
+        WeakReference<Runnable> reference = new WeakReference<Runnable>(task);
+
+        SharedTimer.schedule(task, 300, TimeUnit.MILLISECONDS);
+        task = null;
+        System.gc();
+
+        assertNull("task has not been garbage collected", reference.get());
+        assertFalse(ran.await(600, TimeUnit.MILLISECONDS));
+    }
+
+    private static class CountingDownTask implements Runnable {
+
+        private final CountDownLatch latch;
+
+        CountingDownTask(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            latch.countDown();
+        }
+    }
+}